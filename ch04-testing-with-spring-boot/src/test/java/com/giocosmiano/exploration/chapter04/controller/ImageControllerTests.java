@@ -12,15 +12,20 @@ import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.reactive.server.EntityExchangeResult;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.FileCopyUtils;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.File;
 import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.*;
@@ -99,7 +104,8 @@ public class ImageControllerTests {
 
      webClient calls GET /images/alpha.png/raw
 
-     exchange() method is made, and we verify the HTTP status is OK
+     exchange() method is made, and we verify the HTTP status is OK, and that the Content-Type is the one of
+     the image name's extension, even though the resource isn't a file
 
      We check the data content in the body of the HTTP response given that the bytes can be
      curried back into a Java string
@@ -116,12 +122,62 @@ public class ImageControllerTests {
                 .get().uri("/images/alpha.png/raw")
                 .exchange()
                 .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.IMAGE_PNG)
                 .expectBody(String.class).isEqualTo("data");
 
         verify(imageService).findOneImageResource("alpha.png");
         verifyNoMoreInteractions(imageService);
     }
 
+    /*
+     A file-backed Resource (FileSystemResource over a temp file) exercises the zero-copy path of
+     the controller
+
+     The first GET verifies the content type is resolved from the file extension and that both
+     ETag and Last-Modified are sent back
+
+     Replaying the ETag through If-None-Match must give a bodiless 304 Not Modified
+
+     A Range request must give a 206 Partial Content holding only the requested bytes
+     */
+    @Test
+    public void fetchingImageFileShouldSupportConditionalAndRangeRequests() throws IOException {
+        File file = File.createTempFile("alpha", ".png");
+        file.deleteOnExit();
+        FileCopyUtils.copy("data".getBytes(), file);
+        given(imageService.findOneImageResource(any()))
+                .willReturn(Mono.just(new FileSystemResource(file)));
+
+        String eTag = webClient
+                .get().uri("/images/alpha.png/raw")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.IMAGE_PNG)
+                .expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .expectBody(String.class).isEqualTo("data")
+                .returnResult()
+                .getResponseHeaders().getETag();
+
+        assertThat(eTag).isNotNull();
+
+        webClient
+                .get().uri("/images/alpha.png/raw")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectBody().isEmpty();
+
+        webClient
+                .get().uri("/images/alpha.png/raw")
+                .header(HttpHeaders.RANGE, "bytes=1-2")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("at");
+
+        verify(imageService, times(3)).findOneImageResource("alpha.png");
+        verifyNoMoreInteractions(imageService);
+    }
+
     /*
      Mock out the file on the server, which is represented as a Spring Resource and forcing
      it to throw an IOException when getInputStream is invoked
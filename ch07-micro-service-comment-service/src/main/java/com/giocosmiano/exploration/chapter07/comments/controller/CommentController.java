@@ -1,20 +1,41 @@
 package com.giocosmiano.exploration.chapter07.comments.controller;
 
 import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.comments.domain.CommentSummary;
+import com.giocosmiano.exploration.chapter07.comments.domain.ImageComments;
 import com.giocosmiano.exploration.chapter07.comments.repository.CommentRepository;
+import com.giocosmiano.exploration.chapter07.comments.repository.CommentSummaryRepository;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RestController
 public class CommentController {
 
 	private final CommentRepository commentRepository;
+	private final CommentSummaryRepository summaryRepository;
+	private final int maxImageIds;
 
-	public CommentController(CommentRepository commentRepository) {
+	public CommentController(CommentRepository commentRepository,
+							 CommentSummaryRepository summaryRepository,
+							 @Value("${comments.batch.max-image-ids:500}") int maxImageIds) {
 		this.commentRepository = commentRepository;
+		this.summaryRepository = summaryRepository;
+		this.maxImageIds = maxImageIds;
 	}
 
 	/*
@@ -39,9 +60,79 @@ public class CommentController {
 	 application making RestTemplate calls is blocking. In the future, when that becomes
 	 available, it is highly recommended migrating to it, based on its fluent API and support for
 	 Reactor types
+
+	 That time has come. Spring Cloud's LoadBalancerExchangeFilterFunction resolves logical hostnames for
+	 WebClient, and the `images` service now calls us with it (see its CommentHelper)
 	 */
 	@GetMapping("/comments/{imageId}")
 	public Flux<Comment> comments(@PathVariable String imageId) {
 		return commentRepository.findByImageId(imageId);
 	}
+
+	/*
+	 The comments of a whole page of images at once, e.g. POST /comments/batch with ["id1","id2"]. Asking
+	 for them one image at a time costs the `images` service a round trip per image, on every page render
+
+	 All of them are found with a single query ($in on the imageId index), sorted by image. So they're streamed
+	 back one image at a time, as an ImageComments holding its comments, as soon as the next image's comments
+	 show up. Images without any comments are left out. A client asking for application/json gets them all in
+	 one JSON array, application/stream+json gets one per line
+
+	 At most comments.batch.max-image-ids ids are accepted per request, to keep the $in reasonable
+	 */
+	@PostMapping(value = "/comments/batch",
+			produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+	public Flux<ImageComments> commentsByImage(@RequestBody Mono<List<String>> imageIds) {
+		return imageIds
+				.flatMapMany(ids -> distinct(ids)
+						.flatMapMany(distinct -> groupedByImage(
+								commentRepository.findByImageIdInOrderByImageId(distinct))))
+				.log("commentsByImage");
+	}
+
+	/*
+	 How many comments each of the given images has, and its latest one, e.g. POST /comments/summaries with
+	 ["id1","id2"], for listings that only show "N comments, latest one is X". They're read from the summaries
+	 CommentService keeps up to date as comments are saved, a single $in on _id, rather than from the comments
+	 themselves. Images without any comments are left out
+
+	 Same as the batch lookup, it takes at most comments.batch.max-image-ids ids, and answers with a JSON array
+	 or one summary per line (application/stream+json)
+	 */
+	@PostMapping(value = "/comments/summaries",
+			produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+	public Flux<CommentSummary> summaries(@RequestBody Mono<List<String>> imageIds) {
+		return imageIds
+				.flatMapMany(ids -> distinct(ids)
+						.flatMapMany(summaryRepository::findByImageIdIn))
+				.log("summaries");
+	}
+
+	/*
+	 The ids without duplicates, empty when there are none, turned down when there are too many
+	 */
+	private Mono<Set<String>> distinct(List<String> ids) {
+		Set<String> distinct = new LinkedHashSet<>(ids);
+		if (distinct.size() > maxImageIds) {
+			return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"At most " + maxImageIds + " image ids per request"));
+		}
+		return distinct.isEmpty() ? Mono.empty() : Mono.just(distinct);
+	}
+
+	/*
+	 The comments come sorted by image, so a new image starting is all it takes to know the previous one is
+	 complete. Nothing but the current image's comments is ever held in memory
+	 */
+	private static Flux<ImageComments> groupedByImage(Flux<Comment> comments) {
+		return Flux.defer(() -> {
+			AtomicReference<String> current = new AtomicReference<>();
+			return comments
+					.bufferUntil(comment -> {
+						String previous = current.getAndSet(comment.getImageId());
+						return previous != null && !previous.equals(comment.getImageId());
+					}, true)
+					.map(imageComments -> new ImageComments(imageComments.get(0).getImageId(), imageComments));
+		});
+	}
 }
@@ -0,0 +1,41 @@
+package com.giocosmiano.exploration.chapter07.comments.domain;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Data
+@Document
+public class CommentSummary {
+
+    /*
+     How many comments an image has, and its latest one, kept up to date by CommentService.save() as comments
+     are saved, so listing "N comments, latest one is X" doesn't take reading every comment of every image
+
+     There's a single summary per image, keyed by the image's id (so looking summaries up by image is a lookup
+     on _id), and none for an image without any comments
+
+     The stored summary also holds the ids of the comments it has counted lately (appliedCommentIds), so a
+     comment is never counted twice, see CommentService.summarize(). They're left out here, nobody reading a
+     summary needs them
+     */
+
+    @Id
+    private String imageId;
+    private long count;
+    private String lastCommentId;
+    private String lastComment;
+    private Instant updatedAt;
+
+    public CommentSummary() {}
+
+    public CommentSummary(String imageId, long count, String lastCommentId, String lastComment, Instant updatedAt) {
+        this.imageId = imageId;
+        this.count = count;
+        this.lastCommentId = lastCommentId;
+        this.lastComment = lastComment;
+        this.updatedAt = updatedAt;
+    }
+}
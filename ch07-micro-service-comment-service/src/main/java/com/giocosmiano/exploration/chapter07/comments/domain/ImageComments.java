@@ -0,0 +1,23 @@
+package com.giocosmiano.exploration.chapter07.comments.domain;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImageComments {
+
+    /*
+     All the comments of one image, as handed out by the batch lookup (see CommentController)
+     */
+
+    private String imageId;
+    private List<Comment> comments;
+
+    public ImageComments() {}
+
+    public ImageComments(String imageId, List<Comment> comments) {
+        this.imageId = imageId;
+        this.comments = comments;
+    }
+}
@@ -0,0 +1,151 @@
+package com.giocosmiano.exploration.chapter07.comments.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class HeavyHitters {
+
+    /*
+     The Space-Saving algorithm, keeping track of the most frequent keys in a fixed amount of memory, no matter
+     how many distinct keys we see. It holds at most capacity counters, one per key it tracks
+
+     A key that's tracked already has its counter incremented. A new key takes a free counter if there's one,
+     otherwise it takes over the smallest counter, counting on from there. The count it took over is kept as
+     its error, since that much of its count may well belong to the keys it took over from. So a key's count is
+     an upper bound of how often it was seen, count - error a lower bound
+
+     Any key seen more than total / capacity times is guaranteed to be tracked. The hottest keys stay, the long
+     tail keeps taking over each other's counter
+
+     The counters are kept in a min-heap on their count, so the smallest one is always at the top, and a key's
+     position in it is kept with its counter. Adding a key costs a map lookup and O(log capacity)
+     */
+
+    static class Hitter {
+        private String key;
+        private long count;
+        private long error;
+        private int position;
+
+        String getKey() {
+            return key;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+    private final Hitter[] heap;
+    private final Map<String, Hitter> hitters;
+    private int size;
+    private long total;
+
+    HeavyHitters(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.heap = new Hitter[this.capacity];
+        this.hitters = new HashMap<>(this.capacity * 2);
+    }
+
+    synchronized void add(String key) {
+        total++;
+        Hitter hitter = hitters.get(key);
+        if (hitter == null) {
+            if (size < capacity) {
+                hitter = new Hitter();
+                hitter.key = key;
+                hitter.count = 1;
+                hitters.put(key, hitter);
+                hitter.position = size;
+                heap[size++] = hitter;
+                siftUp(hitter.position);
+                return;
+            }
+            hitter = heap[0];
+            hitters.remove(hitter.key);
+            hitter.error = hitter.count;
+            hitter.key = key;
+            hitters.put(key, hitter);
+        }
+        hitter.count++;
+        siftDown(hitter.position);
+    }
+
+    /*
+     Copies of the (at most) limit most frequent keys, most frequent first
+     */
+    synchronized List<Hitter> top(int limit) {
+        List<Hitter> top = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Hitter copy = new Hitter();
+            copy.key = heap[i].key;
+            copy.count = heap[i].count;
+            copy.error = heap[i].error;
+            top.add(copy);
+        }
+        top.sort(Comparator.comparingLong(Hitter::getCount).reversed());
+        return top.subList(0, Math.min(limit, top.size()));
+    }
+
+    synchronized long total() {
+        return total;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /*
+     A new counter starts at the bottom of the heap with a count of 1, which is as small as it gets
+     */
+    private void siftUp(int position) {
+        Hitter hitter = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heap[parent].count <= hitter.count) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heap[position].position = position;
+            position = parent;
+        }
+        heap[position] = hitter;
+        hitter.position = position;
+    }
+
+    /*
+     Otherwise a count only ever grows, so a counter can only ever have to move down the heap
+     */
+    private void siftDown(int position) {
+        Hitter hitter = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (hitter.count <= heap[child].count) {
+                break;
+            }
+            heap[position] = heap[child];
+            heap[position].position = position;
+            position = child;
+        }
+        heap[position] = hitter;
+        hitter.position = position;
+    }
+}
@@ -0,0 +1,71 @@
+package com.giocosmiano.exploration.chapter07.comments.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@Component
+@Endpoint(id = "hotimages")
+public class HotImages {
+
+    /*
+     Which images get the most comments, e.g. GET /actuator/hotimages?limit=10
+
+     There used to be a comments.consumed counter tagged with the imageId, a meter per image. With millions of
+     images that's millions of meters, held in memory and handed out on every scrape. Now comments.consumed is
+     a single counter, for the total, and the comments per image go to a HeavyHitters sketch instead, which only
+     keeps track of the comments.hot-images.capacity most commented images, in a fixed amount of memory
+
+     Every image it lists comes with its count, an upper bound of its comments, and its error, how much of that
+     count it may have taken over from other images. Any image with more than total / capacity comments is sure
+     to be listed. The counts are since the service started
+     */
+
+    private final HeavyHitters hitters;
+    private final Counter total;
+    private final int defaultLimit;
+
+    public HotImages(MeterRegistry meterRegistry,
+                     @Value("${comments.hot-images.capacity:1000}") int capacity,
+                     @Value("${comments.hot-images.limit:20}") int defaultLimit) {
+        this.hitters = new HeavyHitters(capacity);
+        this.total = meterRegistry.counter("comments.consumed");
+        this.defaultLimit = defaultLimit;
+    }
+
+    public void record(String imageId) {
+        total.increment();
+        if (imageId != null) {
+            hitters.add(imageId);
+        }
+    }
+
+    @ReadOperation
+    public Map<String, Object> hotImages(@Nullable Integer limit) {
+        List<Map<String, Object>> images = hitters.top(limit == null ? defaultLimit : limit).stream()
+                .map(hitter -> {
+                    Map<String, Object> image = new LinkedHashMap<>();
+                    image.put("imageId", hitter.getKey());
+                    image.put("count", hitter.getCount());
+                    image.put("error", hitter.getError());
+                    return image;
+                })
+                .collect(Collectors.toList());
+
+        Map<String, Object> hotImages = new LinkedHashMap<>();
+        hotImages.put("total", hitters.total());
+        hotImages.put("tracked", hitters.size());
+        hotImages.put("capacity", hitters.capacity());
+        hotImages.put("images", images);
+        return hotImages;
+    }
+}
@@ -0,0 +1,22 @@
+package com.giocosmiano.exploration.chapter07.comments.repository;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.CommentSummary;
+import org.springframework.data.repository.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+public interface CommentSummaryRepository
+        extends Repository<CommentSummary, String> {
+
+    /*
+     Only reads (and clears) the summaries. They're written by CommentService.save(), with an atomic upsert
+     ($inc and $set), which a repository can't express
+
+     imageId being the @Id, this is a single $in on _id
+     */
+    Flux<CommentSummary> findByImageIdIn(Collection<String> imageIds);
+
+    Mono<Void> deleteAll();
+}
@@ -1,20 +1,50 @@
 package com.giocosmiano.exploration.chapter07.comments.service;
 
 import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.comments.domain.CommentSummary;
+import com.giocosmiano.exploration.chapter07.comments.metrics.HotImages;
 import com.giocosmiano.exploration.chapter07.comments.processor.CustomProcessor;
 import com.giocosmiano.exploration.chapter07.comments.repository.CommentRepository;
+import com.giocosmiano.exploration.chapter07.comments.repository.CommentSummaryRepository;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.annotation.Input;
 import org.springframework.cloud.stream.annotation.Output;
 import org.springframework.cloud.stream.annotation.StreamListener;
 import org.springframework.context.annotation.Bean;
-import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 @Service
 @EnableBinding(CustomProcessor.class)
 public class CommentService {
@@ -26,13 +56,26 @@ public class CommentService {
      code a custom set of channels
      */
 
-    private CommentRepository repository;
+    private static final Logger log = LoggerFactory.getLogger(CommentService.class);
+
+    private static final String APPLIED = "appliedCommentIds";
+
+    private final CommentWriter commentWriter;
+    private final ReactiveMongoOperations operations;
+    private final HotImages hotImages;
     private final MeterRegistry meterRegistry;
+    private final int maxAppliedIds;
 
-    public CommentService(CommentRepository repository,
-                          MeterRegistry meterRegistry) {
-        this.repository = repository;
+    public CommentService(CommentWriter commentWriter,
+                          ReactiveMongoOperations operations,
+                          HotImages hotImages,
+                          MeterRegistry meterRegistry,
+                          @Value("${comments.summary.max-applied-ids:1000}") int maxAppliedIds) {
+        this.commentWriter = commentWriter;
+        this.operations = operations;
+        this.hotImages = hotImages;
         this.meterRegistry = meterRegistry;
+        this.maxAppliedIds = maxAppliedIds;
     }
 
     /*
@@ -46,8 +89,8 @@ public class CommentService {
      Since we have to hand a stream back to the framework, we have marked up the whole method with
      @Output
 
-     From there, we can flatMap it to generate metrics and then transform it into a Flux of Mono<Void> s
-     with Mono.empty() . This ensures that no more processing is done by the framework
+     From there, we map it to generate metrics and hand every saved comment, now with its id, on to the
+     output channel. The images service keeps its local view of the comments (CommentView) up to date with them
 
      This method has the same concept as all Spring @*Listener annotations--​ invoke the method with optional
      domain objects. But this time, it receives them from whatever underlying technology we have
@@ -57,30 +100,182 @@ public class CommentService {
      Jackson2JsonMessageConverter bean to handle serialization is no longer needed. Spring Cloud Stream
      uses Esoteric Software's Kryo library for serialization/deserialization,
      https://github.com/EsotericSoftware/kryo.
+
+     The comments may also come a batch at a time, on the batchInput channel (see CustomProcessor), as an array
+     of comments. Each batch is unpacked into its comments, which are saved along with the ones coming one at a
+     time. How many batches come in, and how many comments they hold, is recorded (comments.consumed.batches
+     and comments.consumed.batch-size)
+
+     The comments are no longer saved one at a time (the repository's saveAll()), but a batch at a time, with a
+     single insertMany each, by the CommentWriter. A comment that couldn't be saved is left out, rather than
+     bringing the whole stream down
+
+     Every batch of saved comments also updates the CommentSummary of its images (see summarize()) before its
+     comments are handed on. The batches are summarized one after the other, in the order they were saved, so
+     the latest comment of a summary really is the latest one. The CommentWriter is told once a batch is done
+     with (release()), so a copy of one of its comments coming in from then on counts as a duplicate
+
+     Consumed comments are counted (comments.consumed) as a whole, the comments per image go to HotImages,
+     rather than to a counter per image
      */
     @StreamListener
     @Output(CustomProcessor.OUTPUT)
-    public Flux<Void> save(@Input(CustomProcessor.INPUT)
-                                   Flux<Comment> newComments) {
-        return repository
-                .saveAll(newComments)
+    public Flux<Comment> save(@Input(CustomProcessor.INPUT)
+                                   Flux<Comment> newComments,
+                              @Input(CustomProcessor.BATCH_INPUT)
+                                   Flux<Comment[]> newBatches) {
+        return commentWriter
+                .saveAll(Flux.merge(newComments, unpack(newBatches)))
                 .log("commentService-save")
-                .flatMap(comment -> {
-                    meterRegistry
-                            .counter("comments.consumed", "imageId", comment.getImageId())
-                            .increment();
+                .concatMap(batch -> summarize(batch)
+                        .doFinally(signal -> commentWriter.release(batch))
+                        .thenMany(Flux.fromIterable(batch)))
+                .map(comment -> {
+                    hotImages.record(comment.getImageId());
+                    return comment;
+                });
+    }
+
+    private Flux<Comment> unpack(Flux<Comment[]> batches) {
+        return batches
+                .doOnNext(batch -> {
+                    meterRegistry.counter("comments.consumed.batches").increment();
+                    meterRegistry.summary("comments.consumed.batch-size").record(batch.length);
+                })
+                .flatMapIterable(Arrays::asList);
+    }
+
+    /*
+     The batch's comments are added up per image, and every image's summary gets a single atomic upsert, $inc on
+     its count by the number of its comments in the batch and $set of the latest of them, so no summary is ever
+     read back and written again, and concurrent saves (on other instances) don't lose counts. The first comment
+     of an image creates its summary. All of a batch's upserts go in a single unordered bulkWrite, one round
+     trip however many images the batch touches, and one image's upsert failing doesn't hold up the others
+
+     Each upsert is idempotent per comment. A summary keeps the ids of the comments it has counted lately
+     (appliedCommentIds, the last comments.summary.max-applied-ids of them), and the upsert only matches when
+     none of its comments are among them. Otherwise it doesn't match, tries to insert the summary, and is turned
+     down by the _id's unique index. That image's comments are then applied one at a time (see applyOneByOne()),
+     each of them skipped when it's been counted already. So a comment whose summary was updated, but which
+     wasn't marked as summarized (the update marking it failed, or the instance went down in between), isn't
+     counted again when it's redelivered, or posted again by a client
+
+     The comments whose summary was updated are then marked as summarized (see CommentWriter), so the ones
+     whose summary wasn't get summarized when they're redelivered. A summary failing to update doesn't fail its
+     comments, which have been saved already
+     */
+    private Mono<Void> summarize(List<Comment> batch) {
+        Map<String, List<Comment>> byImage = batch.stream()
+                .collect(Collectors.groupingBy(Comment::getImageId, LinkedHashMap::new, Collectors.toList()));
+        List<String> imageIds = new ArrayList<>(byImage.keySet());
+        Date now = new Date();
+        MongoCollection<Document> summaries = operations.getCollection(operations.getConverter()
+                .getMappingContext()
+                .getRequiredPersistentEntity(CommentSummary.class)
+                .getCollection());
+
+        List<UpdateOneModel<Document>> upserts = new ArrayList<>(imageIds.size());
+        for (String imageId : imageIds) {
+            List<Comment> comments = byImage.get(imageId);
+            upserts.add(new UpdateOneModel<>(
+                    Filters.and(
+                            Filters.eq("_id", key(imageId)),
+                            Filters.nin(APPLIED, comments.stream().map(Comment::getId).collect(Collectors.toList()))),
+                    update(comments, now),
+                    new UpdateOptions().upsert(true)));
+        }
+
+        return Mono.from(summaries.bulkWrite(upserts, new BulkWriteOptions().ordered(false)))
+                .thenReturn(imageIds)
+                .onErrorResume(e -> {
+                    Map<Integer, BulkWriteError> errors = new HashMap<>();
+                    if (e instanceof MongoBulkWriteException) {
+                        ((MongoBulkWriteException) e).getWriteErrors()
+                                .forEach(error -> errors.put(error.getIndex(), error));
+                    }
+                    List<String> summarized = new ArrayList<>(imageIds.size());
+                    List<String> applied = new ArrayList<>();
+                    for (int index = 0; index < imageIds.size(); index++) {
+                        BulkWriteError error = errors.get(index);
+                        if (error != null
+                                && ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                            applied.add(imageIds.get(index));
+                        } else if (error != null || errors.isEmpty()) {
+                            log.warn("Couldn't update the comment summary of image " + imageIds.get(index), e);
+                        } else {
+                            summarized.add(imageIds.get(index));
+                        }
+                    }
+                    return Flux.fromIterable(applied)
+                            .concatMap(imageId -> applyOneByOne(summaries, imageId, byImage.get(imageId), now))
+                            .collectList()
+                            .map(oneByOne -> {
+                                summarized.addAll(oneByOne);
+                                return summarized;
+                            });
+                })
+                .map(summarized -> summarized.stream()
+                        .flatMap(imageId -> byImage.get(imageId).stream())
+                        .collect(Collectors.toList()))
+                .filter(summarized -> !summarized.isEmpty())
+                .flatMap(commentWriter::summarized)
+                .onErrorResume(e -> {
+                    log.warn("Couldn't mark " + batch.size() + " comments as summarized", e);
+                    return Mono.empty();
+                })
+                .log("commentService-summarize");
+    }
+
+    /*
+     Some of the image's comments (or a summary of the image inserted meanwhile, by another instance) are in its
+     summary already. Each comment gets an upsert of its own, in order, which the unique index turns down when
+     the comment has been counted already. The image is handed back once all of its comments are in its summary
+     */
+    private Mono<String> applyOneByOne(MongoCollection<Document> summaries, String imageId, List<Comment> comments,
+                                       Date now) {
+        return Flux.fromIterable(comments)
+                .concatMap(comment -> Mono.from(summaries.updateOne(
+                        Filters.and(Filters.eq("_id", key(imageId)), Filters.ne(APPLIED, comment.getId())),
+                        update(Collections.singletonList(comment), now),
+                        new UpdateOptions().upsert(true)))
+                        .then()
+                        .onErrorResume(e -> e instanceof MongoWriteException
+                                && ((MongoWriteException) e).getError().getCategory() == ErrorCategory.DUPLICATE_KEY,
+                                e -> Mono.empty()))
+                .then(Mono.just(imageId))
+                .onErrorResume(e -> {
+                    log.warn("Couldn't update the comment summary of image " + imageId, e);
                     return Mono.empty();
                 });
     }
 
+    private Bson update(List<Comment> comments, Date now) {
+        Comment latest = comments.get(comments.size() - 1);
+        return Updates.combine(
+                Updates.inc("count", comments.size()),
+                Updates.set("lastCommentId", latest.getId()),
+                Updates.set("lastComment", latest.getComment()),
+                Updates.set("updatedAt", now),
+                Updates.pushEach(APPLIED,
+                        comments.stream().map(Comment::getId).collect(Collectors.toList()),
+                        new PushOptions().slice(-maxAppliedIds)));
+    }
+
+    private static Object key(String imageId) {
+        return ObjectId.isValid(imageId) ? new ObjectId(imageId) : imageId;
+    }
+
     /*
      This code is handy for development, but should be either removed in production or wrapped in a
      @Profile("dev") annotation such that it ONLY runs when spring.profiles.active=dev is present
      */
     @Bean
-    CommandLineRunner setUpComments(CommentRepository repository) {
+    CommandLineRunner setUpComments(CommentRepository repository,
+                                    CommentSummaryRepository summaryRepository) {
         return args -> {
-            repository.deleteAll().subscribe();
+            repository.deleteAll()
+                    .then(summaryRepository.deleteAll())
+                    .subscribe();
         };
     }
 }
@@ -0,0 +1,65 @@
+package com.giocosmiano.exploration.chapter07.comments.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Component
+public class RecentIds {
+
+    /*
+     The ids of the comments saved lately, so a comment coming in again (RabbitMQ redelivers whatever wasn't
+     acknowledged when a consumer went away) can be skipped without asking MongoDB whether it's there already
+
+     It's bounded both ways, at most comments.dedup.max-ids ids, and none older than comments.dedup.window-ms,
+     the oldest go first. An id that has been forgotten isn't a problem, the comment's insert then fails on the
+     _id's unique index, see CommentWriter. It's only a shortcut. It's an exact set of ids rather than a Bloom
+     filter on purpose, a false positive would drop a comment that has never been saved
+
+     How many ids it holds is a gauge (comments.dedup.ids)
+     */
+
+    private final int maxIds;
+    private final long windowMs;
+    private final LinkedHashMap<String, Long> ids = new LinkedHashMap<>();
+
+    public RecentIds(MeterRegistry meterRegistry,
+                     @Value("${comments.dedup.max-ids:100000}") int maxIds,
+                     @Value("${comments.dedup.window-ms:600000}") long windowMs) {
+        this.maxIds = maxIds;
+        this.windowMs = windowMs;
+
+        meterRegistry.gauge("comments.dedup.ids", this, RecentIds::size);
+    }
+
+    public synchronized boolean contains(String id) {
+        expire(System.currentTimeMillis());
+        return ids.containsKey(id);
+    }
+
+    public synchronized void add(String id) {
+        long now = System.currentTimeMillis();
+        ids.remove(id);
+        ids.put(id, now);
+        expire(now);
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> oldest = ids.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<String, Long> entry = oldest.next();
+            if (ids.size() <= maxIds && now - entry.getValue() <= windowMs) {
+                break;
+            }
+            oldest.remove();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.giocosmiano.exploration.chapter07.comments.service;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.comments.metrics.HotImages;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.Success;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class CommentServiceTests {
+
+    /*
+     The CommentService saving comments through a real CommentWriter, over an in-memory stand-in for the two
+     collections involved. The comments collection turns down an _id it holds already, the way the unique index
+     on _id does, and is written a little later rather than right away, so the writer has several batches under
+     way at once. The summaries collection applies the $inc of every upsert it's sent, later still, so a batch
+     isn't summarized yet by the time the next one has been written. It keeps the ids each summary has counted,
+     and turns down an upsert for a comment among them like MongoDB does, with a duplicate key (the upsert
+     doesn't match, and tries to insert the summary again)
+
+     The very same comment (same id) may come in twice, e.g. a client posting it again, or RabbitMQ redelivering
+     it. However it comes in, it's saved once, handed on once, and counted once in its image's summary. Unless
+     its summary never made it the first time, in which case it's counted when it comes in again. And a comment
+     whose summary made it, but that couldn't be marked as summarized, is still only counted once
+
+     Comments coming a batch at a time are unpacked, and saved and counted along with those coming one at a time
+     */
+
+    private static final String IMAGE_ID = "image-1";
+
+    private final Map<String, Document> comments = new ConcurrentHashMap<>();
+    private final Map<String, Long> counts = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> applied = new ConcurrentHashMap<>();
+
+    private MeterRegistry meterRegistry;
+    private ReactiveMongoOperations operations;
+    private volatile boolean markingFails;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(mock(DbRefResolver.class), mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+
+        MongoCollection<Document> commentCollection = mock(MongoCollection.class);
+        when(commentCollection.insertMany(anyList(), any()))
+                .thenAnswer(invocation -> insert(invocation.getArgument(0)));
+        when(commentCollection.updateMany(any(Bson.class), any(Bson.class))).thenAnswer(invocation -> {
+            if (markingFails) {
+                return Mono.error(new MongoSocketReadException("Gone", new ServerAddress()));
+            }
+            ids(invocation.getArgument(0)).forEach(id -> comments.get(id).put("summarized", true));
+            return Mono.just(UpdateResult.unacknowledged());
+        });
+        when(commentCollection.find(any(Bson.class))).thenAnswer(invocation -> {
+            Set<String> ids = ids(invocation.getArgument(0));
+            return unsummarized(ids);
+        });
+
+        MongoCollection<Document> summaryCollection = mock(MongoCollection.class);
+        when(summaryCollection.bulkWrite(anyList(), any())).thenAnswer(invocation -> {
+            List<WriteModel<Document>> upserts = invocation.getArgument(0);
+            return Mono.delay(Duration.ofMillis(100))
+                    .then(Mono.defer(() -> {
+                        List<BulkWriteError> errors = new ArrayList<>();
+                        for (int i = 0; i < upserts.size(); i++) {
+                            UpdateOneModel<Document> update = (UpdateOneModel<Document>) upserts.get(i);
+                            if (!upsert(update.getFilter(), update.getUpdate())) {
+                                errors.add(new BulkWriteError(11000, "duplicate key", new BsonDocument(), i));
+                            }
+                        }
+                        return errors.isEmpty()
+                                ? Mono.just(BulkWriteResult.unacknowledged())
+                                : Mono.error(new MongoBulkWriteException(BulkWriteResult.unacknowledged(), errors,
+                                null, new ServerAddress()));
+                    }));
+        });
+        when(summaryCollection.updateOne(any(Bson.class), any(Bson.class), any())).thenAnswer(invocation ->
+                upsert(invocation.getArgument(0), invocation.getArgument(1))
+                        ? Mono.just(UpdateResult.unacknowledged())
+                        : Mono.error(new MongoWriteException(
+                        new WriteError(11000, "duplicate key", new BsonDocument()), new ServerAddress())));
+
+        operations = mock(ReactiveMongoOperations.class);
+        when(operations.getConverter()).thenReturn(converter);
+        when(operations.getCollection("comment")).thenReturn(commentCollection);
+        when(operations.getCollection("commentSummary")).thenReturn(summaryCollection);
+    }
+
+    @Test(timeout = 10000)
+    public void theSameCommentTwiceInOneBatchShouldBeCountedOnce() {
+        // given
+        CommentService commentService = commentService(new RecentIds(meterRegistry, 100, 60000), 10);
+        String id = new ObjectId().toHexString();
+
+        // when
+        List<Comment> saved = save(commentService, comment(id), comment(id));
+
+        // then
+        assertThat(saved).extracting(Comment::getId).containsExactly(id);
+        assertThat(comments).containsOnlyKeys(id);
+        assertThat(counts).containsEntry(IMAGE_ID, 1L);
+    }
+
+    @Test(timeout = 10000)
+    public void theSameCommentInTwoBatchesUnderWayShouldBeCountedOnce() {
+        // given
+        CommentService commentService = commentService(new RecentIds(meterRegistry, 100, 60000), 1);
+        String id = new ObjectId().toHexString();
+
+        // when
+        List<Comment> saved = save(commentService, comment(id), comment(id));
+
+        // then
+        assertThat(saved).extracting(Comment::getId).containsExactly(id);
+        assertThat(comments).containsOnlyKeys(id);
+        assertThat(counts).containsEntry(IMAGE_ID, 1L);
+    }
+
+    @Test(timeout = 10000)
+    public void aRedeliveredCommentThatWasSummarizedShouldNotBeCountedAgain() {
+        // given
+        String id = new ObjectId().toHexString();
+        save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(id));
+
+        // when (after a restart, nothing is remembered)
+        List<Comment> saved = save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(id));
+
+        // then
+        assertThat(saved).isEmpty();
+        assertThat(counts).containsEntry(IMAGE_ID, 1L);
+    }
+
+    @Test(timeout = 10000)
+    public void aRedeliveredCommentThatWasNeverSummarizedShouldBeCountedOnce() {
+        // given
+        String id = new ObjectId().toHexString();
+        comments.put(id, new Document("_id", new ObjectId(id))
+                .append("imageId", IMAGE_ID)
+                .append("summarized", false));
+
+        // when
+        List<Comment> saved = save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(id));
+
+        // then
+        assertThat(saved).extracting(Comment::getId).containsExactly(id);
+        assertThat(counts).containsEntry(IMAGE_ID, 1L);
+        assertThat(comments.get(id).getBoolean("summarized")).isTrue();
+    }
+
+    @Test(timeout = 10000)
+    public void aRedeliveredCommentThatWasSummarizedButNeverMarkedShouldNotBeCountedAgain() {
+        // given (the summary is updated, marking the comment as summarized fails)
+        String id = new ObjectId().toHexString();
+        markingFails = true;
+        save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(id));
+        assertThat(comments.get(id).getBoolean("summarized")).isFalse();
+        markingFails = false;
+
+        // when (after a restart, nothing is remembered)
+        save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(id));
+
+        // then
+        assertThat(counts).containsEntry(IMAGE_ID, 1L);
+        assertThat(comments.get(id).getBoolean("summarized")).isTrue();
+    }
+
+    @Test(timeout = 10000)
+    public void aRedeliveredCommentThatWasSummarizedShouldNotHoldUpANewOneInTheSameBatch() {
+        // given (the summary is updated, marking the comment as summarized fails)
+        String redelivered = new ObjectId().toHexString();
+        markingFails = true;
+        save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(redelivered));
+        markingFails = false;
+        String fresh = new ObjectId().toHexString();
+
+        // when
+        save(commentService(new RecentIds(meterRegistry, 100, 60000), 10), comment(redelivered), comment(fresh));
+
+        // then
+        assertThat(counts).containsEntry(IMAGE_ID, 2L);
+        assertThat(applied.get(IMAGE_ID)).containsOnly(redelivered, fresh);
+        assertThat(comments.get(fresh).getBoolean("summarized")).isTrue();
+    }
+
+    @Test(timeout = 10000)
+    public void batchesShouldBeUnpackedAndSavedAlongWithSingleComments() {
+        // given
+        CommentService commentService = commentService(new RecentIds(meterRegistry, 100, 60000), 10);
+        Comment single = comment(new ObjectId().toHexString());
+        Comment[] first = {comment(new ObjectId().toHexString()), comment(new ObjectId().toHexString())};
+        Comment[] second = {comment(new ObjectId().toHexString())};
+
+        // when
+        List<Comment> saved = commentService
+                .save(Flux.just(single), Flux.just(first, second))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(saved).extracting(Comment::getId).containsExactlyInAnyOrder(
+                single.getId(), first[0].getId(), first[1].getId(), second[0].getId());
+        assertThat(comments).hasSize(4);
+        assertThat(counts).containsEntry(IMAGE_ID, 4L);
+        assertThat(meterRegistry.counter("comments.consumed.batches").count()).isEqualTo(2);
+        assertThat(meterRegistry.summary("comments.consumed.batch-size").totalAmount()).isEqualTo(3);
+    }
+
+    private CommentService commentService(RecentIds recentIds, int maxBatchSize) {
+        CommentWriter commentWriter = new CommentWriter(operations, recentIds, meterRegistry, maxBatchSize, 20, 2, 64);
+        return new CommentService(commentWriter, operations, new HotImages(meterRegistry, 100, 20), meterRegistry,
+                1000);
+    }
+
+    private static List<Comment> save(CommentService commentService, Comment... newComments) {
+        return commentService
+                .save(Flux.just(newComments), Flux.empty())
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    private static Comment comment(String id) {
+        return new Comment(id, IMAGE_ID, "Nice!");
+    }
+
+    /*
+     Like an unordered insertMany, everything that can be inserted is, and the ids taken already are reported
+     at their index
+     */
+    private Mono<Success> insert(List<Document> documents) {
+        return Mono.delay(Duration.ofMillis(50))
+                .then(Mono.defer(() -> {
+                    List<BulkWriteError> errors = new ArrayList<>();
+                    for (int i = 0; i < documents.size(); i++) {
+                        Document document = documents.get(i);
+                        if (comments.putIfAbsent(String.valueOf(document.get("_id")), document) != null) {
+                            errors.add(new BulkWriteError(11000, "duplicate key", new BsonDocument(), i));
+                        }
+                    }
+                    return errors.isEmpty()
+                            ? Mono.just(Success.SUCCESS)
+                            : Mono.error(new MongoBulkWriteException(BulkWriteResult.unacknowledged(), errors,
+                            null, new ServerAddress()));
+                }));
+    }
+
+    /*
+     Like an upsert whose filter is {_id: ..., appliedCommentIds: {$nin: [...]}} (or {$ne: ...}). It doesn't
+     match a summary holding any of those ids, and the summary's _id is taken, so it's turned down (false)
+     */
+    private synchronized boolean upsert(Bson filter, Bson update) {
+        BsonDocument condition = toBson(filter);
+        String imageId = condition.getString("_id").getValue();
+        BsonValue ids = condition.getDocument("appliedCommentIds").containsKey("$nin")
+                ? condition.getDocument("appliedCommentIds").get("$nin")
+                : new BsonArray(Collections.singletonList(condition.getDocument("appliedCommentIds").get("$ne")));
+        Set<String> commentIds = ids.asArray().stream()
+                .map(id -> id.asString().getValue())
+                .collect(Collectors.toSet());
+
+        Set<String> summarized = applied.computeIfAbsent(imageId, image -> ConcurrentHashMap.newKeySet());
+        if (commentIds.stream().anyMatch(summarized::contains)) {
+            return false;
+        }
+        summarized.addAll(commentIds);
+        counts.merge(imageId, toBson(update).getDocument("$inc").getNumber("count").longValue(), Long::sum);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private FindPublisher<Document> unsummarized(Set<String> ids) {
+        List<Document> found = ids.stream()
+                .map(comments::get)
+                .filter(document -> document != null && Boolean.FALSE.equals(document.get("summarized")))
+                .collect(Collectors.toList());
+        FindPublisher<Document> publisher = mock(FindPublisher.class);
+        when(publisher.projection(any())).thenReturn(publisher);
+        doAnswer(invocation -> {
+            Flux.fromIterable(found).subscribe((Subscriber<Document>) invocation.getArgument(0));
+            return null;
+        }).when(publisher).subscribe(any());
+        return publisher;
+    }
+
+    /*
+     The ids of an {_id: {$in: [...]}} filter, whether or not it's and'ed with anything else
+     */
+    private static Set<String> ids(Bson filter) {
+        BsonDocument document = toBson(filter);
+        if (document.containsKey("$and")) {
+            document = document.getArray("$and").stream()
+                    .map(BsonValue::asDocument)
+                    .filter(condition -> condition.containsKey("_id"))
+                    .findFirst()
+                    .orElseThrow(IllegalArgumentException::new);
+        }
+        return document.getDocument("_id").getArray("$in").stream()
+                .map(id -> id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.asString().getValue())
+                .collect(Collectors.toSet());
+    }
+
+    private static BsonDocument toBson(Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClients.getDefaultCodecRegistry());
+    }
+}
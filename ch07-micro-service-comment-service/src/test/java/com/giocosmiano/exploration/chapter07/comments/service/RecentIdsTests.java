@@ -0,0 +1,51 @@
+package com.giocosmiano.exploration.chapter07.comments.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class RecentIdsTests {
+
+    /*
+     RecentIds holding at most three ids. Once there's a fourth, the one added the longest ago goes, an id added
+     again counting as just added. And whatever the count, an id is forgotten once it's older than the window
+     */
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test(timeout = 10000)
+    public void theOldestIdShouldGoFirst() {
+        // given
+        RecentIds recentIds = new RecentIds(meterRegistry, 3, 60000);
+        recentIds.add("a");
+        recentIds.add("b");
+        recentIds.add("c");
+        recentIds.add("a");
+
+        // when
+        recentIds.add("d");
+
+        // then
+        assertThat(recentIds.contains("b")).isFalse();
+        assertThat(recentIds.contains("a")).isTrue();
+        assertThat(recentIds.contains("c")).isTrue();
+        assertThat(recentIds.contains("d")).isTrue();
+        assertThat(recentIds.size()).isEqualTo(3);
+    }
+
+    @Test(timeout = 10000)
+    public void idsShouldBeForgottenOnceOlderThanTheWindow() throws InterruptedException {
+        // given
+        RecentIds recentIds = new RecentIds(meterRegistry, 3, 50);
+        recentIds.add("a");
+        assertThat(recentIds.contains("a")).isTrue();
+
+        // when
+        Thread.sleep(100);
+
+        // then
+        assertThat(recentIds.contains("a")).isFalse();
+        assertThat(recentIds.size()).isZero();
+    }
+}
@@ -8,6 +8,7 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.support.BindingAwareModelMap;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -64,7 +65,9 @@ public class CommentSimulator {
 				})
 				.flatMap(newComment ->
 						Mono.defer(() ->
-								commentController.addComment(newComment)))
+								commentController.addComment(newComment))
+								// a comment turned down by a full CommentQueue is simply skipped
+								.onErrorResume(ResponseStatusException.class, e -> Mono.empty()))
 				.subscribe();
 	}
 
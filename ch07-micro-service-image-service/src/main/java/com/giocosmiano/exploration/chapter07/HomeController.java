@@ -1,22 +1,46 @@
 package com.giocosmiano.exploration.chapter07;
 
+import com.giocosmiano.exploration.chapter07.HomePageCache.HomePage;
+import com.giocosmiano.exploration.chapter07.comments.domain.CommentSummary;
 import com.giocosmiano.exploration.chapter07.comments.helper.CommentHelper;
 import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.domain.ImageDeleteResult;
+import com.giocosmiano.exploration.chapter07.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter07.images.domain.ImagePage;
+import com.giocosmiano.exploration.chapter07.images.service.ByteBufferResource;
+import com.giocosmiano.exploration.chapter07.images.service.DescribedFileResource;
+import com.giocosmiano.exploration.chapter07.images.service.FileIoScheduler;
+import com.giocosmiano.exploration.chapter07.images.service.ImageFeed;
+import com.giocosmiano.exploration.chapter07.images.service.ImageResource;
 import com.giocosmiano.exploration.chapter07.images.service.ImageService;
+import com.giocosmiano.exploration.chapter07.images.service.MultipartUploadReader;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.thymeleaf.spring5.context.webflux.ReactiveDataDriverContextVariable;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @Controller
 public class HomeController {
@@ -26,24 +50,116 @@ public class HomeController {
     private static final String FILENAME = "{filename:.+}";
     private static final String BASE_PATH = "/images";
     private static final String API_BASE_PATH = "/api";
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
 
     private final ImageService imageService;
+    private final HomePageCache homePageCache;
+    private final ImageFeed imageFeed;
     private final CommentHelper commentHelper;
+    private final FileIoScheduler fileIoScheduler;
+    private final MultipartUploadReader multipartUploadReader;
+    private final ObjectMapper objectMapper;
+    private final int pageSize;
+    private final int rowsPerChunk;
+    private final Duration heartbeat;
 
     public HomeController(ImageService imageService,
-                          CommentHelper commentHelper) {
+                          HomePageCache homePageCache,
+                          ImageFeed imageFeed,
+                          CommentHelper commentHelper,
+                          FileIoScheduler fileIoScheduler,
+                          MultipartUploadReader multipartUploadReader,
+                          ObjectMapper objectMapper,
+                          @Value("${images.page.size:20}") int pageSize,
+                          @Value("${images.render.rows-per-chunk:5}") int rowsPerChunk,
+                          @Value("${images.feed.heartbeat-ms:15000}") long heartbeatMs) {
         this.imageService = imageService;
+        this.homePageCache = homePageCache;
+        this.imageFeed = imageFeed;
         this.commentHelper = commentHelper;
+        this.fileIoScheduler = fileIoScheduler;
+        this.multipartUploadReader = multipartUploadReader;
+        this.objectMapper = objectMapper;
+        this.pageSize = pageSize;
+        this.rowsPerChunk = rowsPerChunk;
+        this.heartbeat = Duration.ofMillis(heartbeatMs);
     }
 
-    @GetMapping(API_BASE_PATH + "/images")
+    /*
+     The image listing, a page at a time (images.page.size by default). The response carries the cursor of the
+     next page, e.g. GET /api/images?after=<next>&size=50, see ImageService.findImagePage()
+     */
+    @GetMapping(value = API_BASE_PATH + "/images", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    Mono<ImagePage> images(@RequestParam(required = false) String after,
+                           @RequestParam(required = false) Integer size) {
+        return imageService.findImagePage(after, size == null ? pageSize : size);
+    }
+
+    /*
+     The same listing, streamed in full to a client asking for application/x-ndjson, one JSON image per line,
+     as they're read from MongoDB. An after cursor resumes an interrupted stream
+     */
+    @GetMapping(value = API_BASE_PATH + "/images", produces = APPLICATION_NDJSON_VALUE)
+    @ResponseBody
+    Flux<String> streamImages(@RequestParam(required = false) String after) {
+        return imageService.streamImages(after)
+                .map(this::toJsonLine);
+    }
+
+    private String toJsonLine(Image image) {
+        try {
+            return objectMapper.writeValueAsString(image) + "\n";
+        } catch (JsonProcessingException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /*
+     The comment summaries (how many comments, and the latest one) of the same page of images as
+     GET /api/images, with the same after and size, one per image in the same order. An image without any
+     comments gets a summary with a count of 0
+
+     They come from the comments service's summaries (CommentHelper.getSummaries()), which it keeps up to date as
+     comments are saved, so it's a single cheap call, whatever the number of comments. When the comments
+     service can't be reached, it's answered with a 503 rather than counts of 0
+     */
+    @GetMapping(value = API_BASE_PATH + "/images/summaries", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    Flux<Image> images() {
-        return Flux.just(
-                new Image("1", "learning-spring-boot-cover.jpg"),
-                new Image("2", "learning-spring-boot-2nd-edition-cover.jpg"),
-                new Image("3", "bazinga.png")
-        );
+    Flux<CommentSummary> summaries(@RequestParam(required = false) String after,
+                                   @RequestParam(required = false) Integer size) {
+        return imageService.findImagePage(after, size == null ? pageSize : size)
+                .flatMapMany(page -> commentHelper.getSummaries(page.getImages())
+                        .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                "Couldn't reach the comments service")))
+                        .flatMapIterable(summaries -> page.getImages().stream()
+                                .map(image -> summaries.getOrDefault(image.getId(),
+                                        CommentSummary.empty(image.getId())))
+                                .collect(Collectors.toList())))
+                .log("summaries");
+    }
+
+    /*
+     Every image created, replaced or deleted from now on, as Server-Sent Events (created, replaced or deleted,
+     with the image's id and name as JSON), see ImageFeed. The home page follows it with an EventSource to add,
+     refresh and remove rows in place, rather than reloading itself after every upload or delete
+
+     A comment is sent every images.feed.heartbeat-ms when nothing happens, so proxies don't close the
+     connection for being idle
+     */
+    @GetMapping(value = API_BASE_PATH + "/images/feed", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    Flux<ServerSentEvent<ImageEvent>> feed() {
+        return Flux.merge(
+                imageFeed.changes()
+                        .map(event -> ServerSentEvent.builder(event)
+                                .event(event.getType().name().toLowerCase())
+                                .build()),
+                Flux.interval(heartbeat)
+                        .map(tick -> ServerSentEvent.<ImageEvent>builder()
+                                .comment("heartbeat")
+                                .build()))
+                .log("feed");
     }
 
     @PostMapping(API_BASE_PATH + "/images")
@@ -88,49 +204,174 @@ public class HomeController {
      Reactor's operators and hitching them to Thymeleaf's reactive solution, ensures that
      everything is being fetched as efficiently as possible and only when necessary. Writing
      reactive apps hinges on having a fully reactive stack
+
+     Only the first page of images is rendered though (ImageService.findImagePage()), the home page fetches the
+     following ones (GET /images?after=...) as they're needed, see imagesPage()
+
+     And rather than one call to the comments service per image, the comments of the whole page are fetched at
+     once, then handed to each image by its id. They come out of the CommentView, a local view of the comments
+     kept up to date by the stream of saved comments, so most renders don't involve the comments service at
+     all. Only the images missing from the view are fetched from it, with a single non-blocking WebClient call
+     (CommentHelper.getComments(List<Image>)), so rendering the page never blocks a thread
+
+     Now all of that is put together by the HomePageCache, which keeps the first page around until an image is
+     created or deleted, or one of its images gets a comment, so most visits of the home page are rendered from
+     a ready-made list of rows
+
+     The rows are handed to Thymeleaf as a data-driver (ReactiveDataDriverContextVariable), and the template is
+     rendered in chunked mode (spring.thymeleaf.reactive.max-chunk-size). Rather than waiting for every row,
+     then sending the whole page at once, Thymeleaf sends everything up to the table's rows as soon as the rest
+     of the model (the next cursor) is there, then images.render.rows-per-chunk rows at a time as they come in.
+     So the page's head, its stylesheet and scripts, reach the browser while the comments are still being
+     looked up. How long that first byte takes is recorded by the TimeToFirstByteFilter
      */
     @GetMapping("/")
     public Mono<String> index(Model model) {
-        model.addAttribute("images",
-                imageService
-                        .findAllImages()
-                        .map(image ->
-                                new HashMap<String, Object>(){{
-                                    put("id", image.getId());
-                                    put("name", image.getName());
-                                    put("comments", commentHelper.getComments(image));
-                                }})
-        );
+        addImagePage(model, null);
 
         model.addAttribute("extra",
                 "DevTools can also detect code changes too");
         return Mono.just("index").log("index");
     }
 
-    @GetMapping(value = BASE_PATH + "/" + FILENAME + "/raw",
-            produces = MediaType.IMAGE_JPEG_VALUE)
+    /*
+     Just the rows of one more page, rendered by the very same template (its "images" fragment), ready to be
+     appended to the table by the home page
+     */
+    @GetMapping(BASE_PATH)
+    public Mono<String> imagesPage(@RequestParam String after, Model model) {
+        addImagePage(model, after);
+        return Mono.just("index :: images").log("imagesPage");
+    }
+
+    private void addImagePage(Model model, String after) {
+        Flux<Map<String, Object>> rows;
+        Mono<String> next;
+        if (after == null && homePageCache.isEnabled()) {
+            Mono<HomePage> page = homePageCache.firstPage().cache();
+            rows = page.flatMapIterable(HomePage::getImages);
+            next = page.map(HomePage::getNext);
+        } else {
+            Mono<ImagePage> page = homePageCache.findPage(after).cache();
+            rows = page.flatMapMany(homePageCache::rows);
+            next = page.map(imagePage -> imagePage.getNext() == null ? "" : imagePage.getNext());
+        }
+
+        model.addAttribute("images", new ReactiveDataDriverContextVariable(rows, rowsPerChunk));
+        model.addAttribute("next", next);
+    }
+
+    /*
+     The raw image is served in two different ways depending on what kind of Resource the ImageService hands us
+
+     When the Resource is backed by a file on disk (resource.isFile()), the Resource itself is used as the body
+     of the response instead of wrapping resource.getInputStream() in an InputStreamResource. Spring WebFlux's
+     ResourceHttpMessageWriter then recognizes that Reactor Netty's response is a ZeroCopyHttpOutputMessage and
+     hands the file region straight to Netty (FileRegion/sendfile), so none of the image bytes get copied
+     through the JVM heap. The same writer takes care of the Range header, answering with a
+     206 Partial Content and only the requested region(s), and advertises Accept-Ranges: bytes
+
+     The ETag is derived from the file's last-modified timestamp and its length. Both ETag and Last-Modified
+     are put on the ResponseEntity, which lets ResponseEntityResultHandler run exchange.checkNotModified() for
+     us. A browser revalidating with If-None-Match/If-Modified-Since gets back a bodiless 304 Not Modified, so
+     repeat views cost neither a disk read nor a heap copy
+
+     The Content-Type is resolved from the resource's name, or failing that from the image name's extension, via
+     MediaTypeFactory rather than advertising image/jpeg for every file (the blob on disk is named after its
+     content hash, so it has no extension). This is also why `produces` was dropped from the @GetMapping
+
+     An image held in a ByteBuffer (ByteBufferResource), either out of the HotImageCache or memory-mapped from
+     a segment of the PackedSegmentImageStore, takes the same route. It isn't a file, so there's no sendfile, but
+     its bytes are read straight from the buffer, and Range requests, ETag/Last-Modified and the content type all
+     work exactly the same way, since the resource carries the image's length and timestamp along
+
+     Any other Resource is still streamed through an InputStreamResource, its Content-Type resolved from the
+     image name's extension
+
+     Reading a file's timestamp and length (and opening it, for the InputStreamResource) blocks, so the
+     response is put together on the FileIoScheduler rather than on the Netty event loop. A file is handed on as
+     a DescribedFileResource carrying the length and timestamp just read, or Spring's writer would stat it all
+     over again on the event loop
+
+     All of the above only applies to images uploaded before their metadata was recorded on the Image document,
+     though. For every other image, the headers come straight from the record: the ETag is the content hash (it
+     changes exactly when the bytes do), Last-Modified the upload time, Content-Type the type sniffed at upload
+     time, and the Content-Length its recorded size, which the DescribedFileResource hands to Spring's writer.
+     Nothing about it needs the filesystem, so the response is put together right away, without the trip to the
+     FileIoScheduler
+     */
+    @GetMapping(value = BASE_PATH + "/" + FILENAME + "/raw")
     @ResponseBody
     public Mono<ResponseEntity<?>> oneRawImage(
             @PathVariable String filename) {
         return imageService.findOneImageResource(filename)
-                .map(resource -> {
-                    try {
-                        return ResponseEntity.ok()
-                                .contentLength(resource.contentLength())
-                                .body(new InputStreamResource(
-                                        resource.getInputStream()));
-                    } catch (IOException e) {
-                        return ResponseEntity.badRequest()
-                                .body("Couldn't find " + filename +
-                                        " => " + e.getMessage());
-                    }
-                });
+                .flatMap(found -> found.getImage().isDescribed()
+                        ? Mono.just(serve(found))
+                        : fileIoScheduler.call(() -> serve(filename, found.getResource())));
     }
 
+    /*
+     Serves a thumbnail of the image, at least w pixels wide (see ThumbnailService). It's answered just like
+     the raw image, the thumbnail being a file on disk. Its content type comes from the thumbnail itself, since
+     e.g. a GIF's thumbnail is a PNG. When no thumbnail could be made, the original image is served instead
+     */
+    @GetMapping(value = BASE_PATH + "/" + FILENAME + "/thumb")
+    @ResponseBody
+    public Mono<ResponseEntity<?>> oneThumbnail(
+            @PathVariable String filename,
+            @RequestParam(name = "w", defaultValue = "160") int width) {
+        return imageService.findOneThumbnail(filename, width)
+                .flatMap(resource -> fileIoScheduler.call(() -> serve(filename, resource)));
+    }
+
+    private ResponseEntity<?> serve(ImageResource found) {
+        Image image = found.getImage();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(image.getContentType()))
+                .lastModified(image.getUploadedAt().toEpochMilli())
+                .eTag(image.getHash())
+                .body(found.getResource());
+    }
+
+    private ResponseEntity<?> serve(String filename, Resource resource) {
+        try {
+            if (resource.isFile() || resource instanceof ByteBufferResource) {
+                long lastModified = resource.lastModified();
+                long contentLength = resource.contentLength();
+                return ResponseEntity.ok()
+                        .contentType(MediaTypeFactory
+                                .getMediaType(resource.getFilename())
+                                .orElse(MediaTypeFactory
+                                        .getMediaType(filename)
+                                        .orElse(MediaType.APPLICATION_OCTET_STREAM)))
+                        .lastModified(lastModified)
+                        .eTag(Long.toHexString(lastModified) + "-" +
+                                Long.toHexString(contentLength))
+                        .body(resource.isFile()
+                                ? new DescribedFileResource(resource.getFile(), contentLength, lastModified)
+                                : resource);
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaTypeFactory
+                            .getMediaType(filename)
+                            .orElse(MediaType.APPLICATION_OCTET_STREAM))
+                    .contentLength(resource.contentLength())
+                    .body(new InputStreamResource(
+                            resource.getInputStream()));
+        } catch (IOException e) {
+            return ResponseEntity.badRequest()
+                    .body("Couldn't find " + filename +
+                            " => " + e.getMessage());
+        }
+    }
+
+    /*
+     The "file" parts are read by the MultipartUploadReader rather than bound with @RequestPart, so they can be
+     streamed into the ImageStore while they're still being received, within the configured size limits
+     */
     @PostMapping(value = BASE_PATH)
-    public Mono<String> createFile(@RequestPart(name = "file")
-                                           Flux<FilePart> files) {
-        return imageService.createImage(files)
+    public Mono<String> createFile(ServerWebExchange exchange) {
+        return imageService.createImage(multipartUploadReader.fileParts(exchange, "file"))
                 .then(Mono.just("redirect:/"));
     }
 
@@ -139,4 +380,20 @@ public class HomeController {
         return imageService.deleteImage(filename)
                 .then(Mono.just("redirect:/"));
     }
+
+    /*
+     Bulk delete, for cleanup jobs removing many images at once. The request body is a JSON array of image
+     names, e.g. DELETE /images with ["a.jpg","b.png"]
+
+     Rather than waiting for the whole batch, a result is streamed back (application/stream+json, one JSON
+     object per line) for every name as soon as it has been dealt with, see ImageService.deleteImages()
+
+     NOTE: The body is read as a List<String>, since a Flux<String> would be decoded by the StringDecoder,
+     handing us the raw body as one single string instead of the array's elements
+     */
+    @DeleteMapping(value = BASE_PATH, produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+    @ResponseBody
+    public Flux<ImageDeleteResult> deleteFiles(@RequestBody Mono<List<String>> filenames) {
+        return imageService.deleteImages(filenames.flatMapMany(Flux::fromIterable));
+    }
 }
@@ -0,0 +1,18 @@
+package com.giocosmiano.exploration.chapter07.comments.controller;
+
+import org.springframework.cloud.stream.annotation.Output;
+import org.springframework.messaging.MessageChannel;
+
+public interface CommentBatchSource {
+    String OUTPUT = "commentBatches";
+
+    /*
+     Where the CommentController hands the comments on, a batch of them to a message, when batching is on
+     (comments.publish.batching). It's bound to a destination of its own
+     (spring.cloud.stream.bindings.commentBatches), which the comments service consumes next to the one the
+     comments go to one at a time
+     */
+
+    @Output(CommentBatchSource.OUTPUT)
+    MessageChannel commentBatches();
+}
@@ -1,31 +1,39 @@
 package com.giocosmiano.exploration.chapter07.comments.controller;
 
 import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
-import io.micrometer.core.instrument.MeterRegistry;
+import com.giocosmiano.exploration.chapter07.comments.metrics.HotImages;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.annotation.Output;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.cloud.stream.reactive.FluxSender;
 import org.springframework.cloud.stream.reactive.StreamEmitter;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PostMapping;
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+
 @Controller
-@EnableBinding(Source.class)
+@EnableBinding({Source.class, CommentBatchSource.class})
 public class CommentController {
-    private final MeterRegistry meterRegistry;
-    private FluxSink<Message<Comment>> commentSink;
-    private Flux<Message<Comment>> flux;
+    private final HotImages hotImages;
+    private final CommentQueue commentQueue;
+    private final boolean batching;
+    private final int maxBatchSize;
+    private final Duration maxBatchDelay;
 
     /*
-     @EnableBinding(Source.class) flags this app as a source for new events. Spring Cloud Stream uses this
+     @EnableBinding({Source.class, CommentBatchSource.class}) flags this app as a source for new events. Spring Cloud Stream uses this
      annotation to signal the creation of channels, which, in RabbitMQ, translates to exchanges and
      queues
 
@@ -61,41 +69,101 @@ public class CommentController {
      doesn't matter what transport technology we use. Thanks to the power of Spring Boot, this is defined by
      dependencies on the classpath. Nevertheless, we'll continue using RabbitMQ because it's darn simple
      and powerful at the same time
+
+     Ignoring back-pressure meant an unbounded buffer though, and a comment posted before the sink was set up was
+     dropped without a word. So the FluxSink has been replaced with a bounded CommentQueue, which only hands the
+     comments on as fast as the channel asks for them, and has a say on what happens once it's full. A comment
+     it turns down (it's full) is answered with a 503 rather than the redirect
+
+     Every comment is given its id right here, rather than when the comments service saves it, so the very same
+     comment delivered twice (RabbitMQ redelivers after a restart) can be told apart from a new one, and is only
+     saved once
+
+     A client retrying a post may send the id it made up for it (an ObjectId, anything else is ignored), so the
+     retry isn't posted twice. That id isn't stored as is though, a client could otherwise reuse another
+     comment's id and have its comment dropped as a duplicate of that one. The id is derived from the client's id
+     and the comment itself (see commentId()), so only the very same comment, on the same image, posted with the
+     same client id is ever a duplicate
      */
-    public CommentController(MeterRegistry meterRegistry) {
-        this.meterRegistry = meterRegistry;
-        this.flux = Flux.<Message<Comment>>
-                create(emitter -> this.commentSink = emitter,
-                FluxSink.OverflowStrategy.IGNORE)
-                .publish()
-                .autoConnect();
+    public CommentController(HotImages hotImages,
+                             CommentQueue commentQueue,
+                             @Value("${comments.publish.batching:false}") boolean batching,
+                             @Value("${comments.publish.max-batch-size:100}") int maxBatchSize,
+                             @Value("${comments.publish.max-batch-delay-ms:50}") long maxBatchDelayMs) {
+        this.hotImages = hotImages;
+        this.commentQueue = commentQueue;
+        this.batching = batching;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelay = Duration.ofMillis(maxBatchDelayMs);
     }
 
     @PostMapping("/comments")
     public Mono<String> addComment(Mono<Comment> newComment) {
-        if (commentSink != null) {
-            return newComment
-                    .map(comment -> {
-                        commentSink.next(MessageBuilder
+        return newComment
+                .map(comment -> {
+                    comment.setId(commentId(comment));
+                    return comment;
+                })
+                .flatMap(comment -> commentQueue
+                        .offer(MessageBuilder
                                 .withPayload(comment)
                                 .setHeader(MessageHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                                .build());
-                        return comment;
-                    })
-                    .flatMap(comment -> {
-                        meterRegistry
-                                .counter("comments.produced", "imageId", comment.getImageId())
-                                .increment();
-                        return Mono.just("redirect:/");
-                    });
-        } else {
-            return Mono.just("redirect:/");
+                                .build())
+                        .flatMap(accepted -> {
+                            if (!accepted) {
+                                return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                        "Too many comments waiting to be saved, try again later"));
+                            }
+                            hotImages.record(comment.getImageId());
+                            return Mono.just("redirect:/");
+                        }));
+    }
+
+    /*
+     A fresh ObjectId, unless the client sent an ObjectId of its own. Then it keeps the client id's timestamp,
+     followed by the first 8 bytes of the SHA-256 of the client id, the image id and the comment
+     */
+    static String commentId(Comment comment) {
+        String clientId = comment.getId();
+        if (clientId == null || !ObjectId.isValid(clientId)) {
+            return new ObjectId().toHexString();
+        }
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+        for (String part : new String[]{clientId, comment.getImageId(), comment.getComment()}) {
+            sha256.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            sha256.update((byte) 0);
+        }
+        byte[] id = new byte[12];
+        System.arraycopy(new ObjectId(clientId).toByteArray(), 0, id, 0, 4);
+        System.arraycopy(sha256.digest(), 0, id, 4, 8);
+        return new ObjectId(id).toHexString();
     }
 
+    /*
+     Every comment is its own message, and so its own publish to the broker, which is what costs the most at
+     peak (thousands of comments a second). With comments.publish.batching on, emitBatches() hands them on
+     instead, up to comments.publish.max-batch-size comments to a message, waiting at most
+     comments.publish.max-batch-delay-ms to fill one (see CommentQueue.batches()). Only one of the two ever gets
+     the comments, the other one sends nothing
+     */
     @StreamEmitter
     @Output(Source.OUTPUT)
     public void emit(FluxSender output) {
-        output.send(this.flux);
+        if (!batching) {
+            output.send(commentQueue.messages());
+        }
+    }
+
+    @StreamEmitter
+    @Output(CommentBatchSource.OUTPUT)
+    public void emitBatches(FluxSender output) {
+        if (batching) {
+            output.send(commentQueue.batches(maxBatchSize, maxBatchDelay));
+        }
     }
 }
\ No newline at end of file
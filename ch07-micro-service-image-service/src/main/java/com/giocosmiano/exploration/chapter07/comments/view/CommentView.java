@@ -0,0 +1,231 @@
+package com.giocosmiano.exploration.chapter07.comments.view;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.comments.helper.CommentHelper;
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.domain.ImagePage;
+import com.giocosmiano.exploration.chapter07.images.service.ImageService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@Component
+@EnableBinding(SavedCommentsSink.class)
+public class CommentView {
+
+    /*
+     A local, in-memory view of the most recent comments of every image that has been shown lately, so rendering
+     a page doesn't have to ask the comments service for them every time
+
+     It's fed by the same stream of saved comments the comments service publishes (see SavedCommentsSink). Every
+     comment saved for an image in the view is added to it as it comes in
+
+     An image that isn't in the view yet (a miss) has its comments backfilled from the comments service, with a
+     single batch call for all of a page's misses (CommentHelper.getComments). Comments coming in while that
+     call is under way are kept, and merged with what it brings back, by comment id. If the call fails, nothing
+     is remembered, those images are reported as unavailable (see ViewedComments) and the page is rendered
+     without their comments, to be retried on the next render.
+     Right after startup, the first page of images is backfilled, so the first render is already served locally
+
+     The view is bounded:
+     - at most comments.view.max-comments-per-image comments per image, the most recent ones
+     - at most comments.view.max-images images, the least recently shown go first
+     - an image's comments are backfilled again once they're older than comments.view.ttl-ms, in case a comment
+       went missing on its way (e.g. while the broker connection was down)
+
+     So a page of images that are in the view costs a map lookup per image, and the comments service is only on
+     the critical path of the page for misses. Hits and misses are counted (comments.view.hits and
+     comments.view.misses)
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(CommentView.class);
+
+    private final CommentHelper commentHelper;
+    private final ImageService imageService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int pageSize;
+    private final int maxCommentsPerImage;
+    private final long ttlMs;
+    private final Map<String, ImageEntry> entries;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public CommentView(CommentHelper commentHelper,
+                       ImageService imageService,
+                       ApplicationEventPublisher eventPublisher,
+                       MeterRegistry meterRegistry,
+                       @Value("${images.page.size:20}") int pageSize,
+                       @Value("${comments.view.max-images:10000}") int maxImages,
+                       @Value("${comments.view.max-comments-per-image:50}") int maxCommentsPerImage,
+                       @Value("${comments.view.ttl-ms:300000}") long ttlMs) {
+        this.commentHelper = commentHelper;
+        this.imageService = imageService;
+        this.eventPublisher = eventPublisher;
+        this.pageSize = pageSize;
+        this.maxCommentsPerImage = maxCommentsPerImage;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, ImageEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImageEntry> eldest) {
+                return size() > maxImages;
+            }
+        };
+
+        this.hits = meterRegistry.counter("comments.view.hits");
+        this.misses = meterRegistry.counter("comments.view.misses");
+        meterRegistry.gauge("comments.view.images", this, CommentView::size);
+    }
+
+    /*
+     The comments of the given images, keyed by image id, like CommentHelper.getComments() but served from the
+     view whenever possible, along with the images whose comments couldn't be backfilled
+     */
+    public Mono<ViewedComments> getComments(List<Image> images) {
+        return Mono.defer(() -> {
+            Map<String, List<Comment>> found = new HashMap<>();
+            List<Image> missing = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (Image image : images) {
+                    ImageEntry entry = entries.get(image.getId());
+                    if (entry != null && entry.loadedAt >= 0 && now - entry.loadedAt <= ttlMs) {
+                        found.put(image.getId(), new ArrayList<>(entry.comments.values()));
+                    } else {
+                        if (entry == null) {
+                            entries.put(image.getId(), new ImageEntry());
+                        }
+                        missing.add(image);
+                    }
+                }
+            }
+            hits.increment(found.size());
+            misses.increment(missing.size());
+            if (missing.isEmpty()) {
+                return Mono.just(new ViewedComments(found, Collections.emptySet()));
+            }
+
+            return backfill(missing)
+                    .map(backfilled -> {
+                        found.putAll(backfilled);
+                        return new ViewedComments(found, Collections.emptySet());
+                    })
+                    .defaultIfEmpty(new ViewedComments(found, missing.stream()
+                            .map(Image::getId)
+                            .collect(Collectors.toSet())));
+        })
+                .log("commentView-getComments");
+    }
+
+    /*
+     Only the comments of images already in the view are kept. The others will be backfilled, with this very
+     comment in it, once they're shown. Comments that haven't been saved (yet) have no id, and are skipped
+
+     Every saved comment is then handed on as a Spring application event, for whoever renders comments out of
+     the view to know it has changed (e.g. the HomePageCache). They can't simply add a @StreamListener of their
+     own, the subscribers of a channel take turns, so each of them would only get to see some of the comments
+     */
+    @StreamListener(SavedCommentsSink.INPUT)
+    public void onSavedComment(Comment comment) {
+        if (comment.getId() == null) {
+            return;
+        }
+        synchronized (this) {
+            ImageEntry entry = entries.get(comment.getImageId());
+            if (entry != null) {
+                entry.add(comment, maxCommentsPerImage);
+            }
+        }
+        eventPublisher.publishEvent(comment);
+    }
+
+    @EventListener
+    public void warmUp(ApplicationReadyEvent event) {
+        imageService.findImagePage(null, pageSize)
+                .map(ImagePage::getImages)
+                .flatMap(this::getComments)
+                .subscribe(
+                        comments -> log.info("Backfilled the comments of " + comments.getComments().size()
+                                + " images, " + comments.getUnavailable().size() + " unavailable"),
+                        e -> log.warn("Couldn't backfill the comment view", e));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /*
+     Completes empty when the comments service couldn't be reached, see CommentHelper.getComments()
+     */
+    private Mono<Map<String, List<Comment>>> backfill(List<Image> images) {
+        return commentHelper.getComments(images)
+                .map(comments -> {
+                    Map<String, List<Comment>> backfilled = new HashMap<>();
+                    long now = System.currentTimeMillis();
+                    synchronized (this) {
+                        for (Image image : images) {
+                            ImageEntry entry = entries.computeIfAbsent(image.getId(), id -> new ImageEntry());
+                            entry.load(comments.getOrDefault(image.getId(), Collections.emptyList()),
+                                    maxCommentsPerImage, now);
+                            backfilled.put(image.getId(), new ArrayList<>(entry.comments.values()));
+                        }
+                    }
+                    return backfilled;
+                });
+    }
+
+    /*
+     An image's most recent comments, by comment id, oldest first. loadedAt stays negative until the comments
+     have been backfilled at least once, meanwhile it only collects the comments coming in
+     */
+    private static class ImageEntry {
+        private final LinkedHashMap<String, Comment> comments = new LinkedHashMap<>();
+        private long loadedAt = -1;
+
+        private void add(Comment comment, int max) {
+            comments.put(comment.getId(), comment);
+            trim(max);
+        }
+
+        private void load(List<Comment> backfilled, int max, long now) {
+            Map<String, Comment> arrived = new LinkedHashMap<>(comments);
+            comments.clear();
+            for (Comment comment : backfilled) {
+                if (comment.getId() != null) {
+                    comments.put(comment.getId(), comment);
+                }
+            }
+            arrived.forEach(comments::putIfAbsent);
+            trim(max);
+            loadedAt = now;
+        }
+
+        private void trim(int max) {
+            Iterator<String> oldest = comments.keySet().iterator();
+            while (comments.size() > max && oldest.hasNext()) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.giocosmiano.exploration.chapter07.comments.view;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Data
+public class ViewedComments {
+
+    /*
+     What CommentView.getComments() found, the comments of the images keyed by image id, along with the ids of
+     the images whose comments couldn't be backfilled (the comments service couldn't be reached). Those images
+     aren't in comments at all, which isn't the same as them having no comments, so whatever is put together out
+     of an incomplete lookup shouldn't be kept around
+     */
+
+    final private Map<String, List<Comment>> comments;
+    final private Set<String> unavailable;
+
+    public ViewedComments(Map<String, List<Comment>> comments, Set<String> unavailable) {
+        this.comments = comments;
+        this.unavailable = unavailable;
+    }
+
+    public boolean isComplete() {
+        return unavailable.isEmpty();
+    }
+}
@@ -1,13 +1,21 @@
 package com.giocosmiano.exploration.chapter07.images.clr;
 
 import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
 
 import java.util.UUID;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 @Component
 public class InitDatabase {
 
@@ -18,28 +26,43 @@ public class InitDatabase {
      MongoOperations object, we can simply grab hold of that
      */
 
+    private static final Logger log = LoggerFactory.getLogger(InitDatabase.class);
+
     @Bean
     CommandLineRunner init(MongoOperations operations) {
         return args -> {
+            initIndexes(operations);
             initImages(operations);
         };
     }
 
+    /*
+     The image listing pages through the images by name and id (see ImageService.findImagePage), which only
+     stays cheap with an index on both. ensureIndex() leaves an existing index alone, so this is safe to run on
+     every startup
+     */
+    private void initIndexes(final MongoOperations operations) {
+        operations.indexOps(Image.class)
+                .ensureIndex(new Index()
+                        .on("name", Sort.Direction.ASC)
+                        .on("_id", Sort.Direction.ASC)
+                        .named("name_id"));
+    }
+
     private void initImages(final MongoOperations operations) {
-        operations.dropCollection(Image.class);
+        insertIfMissing(operations, "learning-spring-boot-cover.jpg");
 
-        operations.insert(new Image(UUID.randomUUID().toString(),
-                "learning-spring-boot-cover.jpg"));
+        insertIfMissing(operations, "learning-spring-boot-2nd-edition-cover.jpg");
 
-        operations.insert(new Image(UUID.randomUUID().toString(),
-                "learning-spring-boot-2nd-edition-cover.jpg"));
+        insertIfMissing(operations, "bazinga.png");
 
-        operations.insert(new Image(UUID.randomUUID().toString(),
-                "bazinga.png"));
+        log.info("{} images in MongoDB", operations.count(new Query(), Image.class));
+    }
 
-        operations
-                .findAll(Image.class)
-                .forEach(image -> System.out.println(image.toString()));
+    private void insertIfMissing(final MongoOperations operations, String name) {
+        if (!operations.exists(query(where("name").is(name)), Image.class)) {
+            operations.insert(new Image(UUID.randomUUID().toString(), name));
+        }
     }
 
     /*
@@ -50,8 +73,10 @@ public class InitDatabase {
      Spring Boot CommandLineRunner , of which all are run after the application context is fully formed
      (though in no particular order)
 
-     When invoked, the command-line runner will use MongoOperations , and request that all entries be
-     deleted ( dropCollection ). Then it will insert three new Image records. Finally, it will fetch with ( findAll )
-     and iterate over them, printing each out
+     When invoked, the command-line runner will use MongoOperations to insert three Image records, skipping
+     those that already exist ( exists ) so a restart keeps every image uploaded so far. Finally, it logs how
+     many images there are ( count ), rather than fetching and printing every single one of them, which takes
+     ever longer as images pile up. Whatever drifted apart between MongoDB and upload-dir is left for the
+     ImageReconciler to find
      */
 }
\ No newline at end of file
@@ -0,0 +1,310 @@
+package com.giocosmiano.exploration.chapter07.images.clr;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.service.BlobGuard;
+import com.giocosmiano.exploration.chapter07.images.service.ImageStore;
+import com.giocosmiano.exploration.chapter07.images.service.UploadedFile;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.Pair;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@Component
+@Profile("seed")
+public class SyntheticDataLoader {
+
+    /*
+     Only with spring.profiles.active=seed, loads a large synthetic dataset, so load tests and index tuning can
+     run against something closer to production than InitDatabase's three images
+
+     images.seed.blobs distinct PNGs are generated and written to the ImageStore first, the same way an upload
+     is. Then images.seed.images Image records (seed-00000000.png, seed-00000001.png, ...) are generated, each
+     pointing at one of those blobs, with its size, content type, dimensions and upload time filled in, along
+     with about images.seed.comments-per-image comments each (anywhere from none to twice as many)
+
+     The blobs stay pinned (see BlobGuard) until the records pointing at them have been written
+
+     The records are written with unordered bulk inserts (BulkOperations), images.seed.batch-size documents at a
+     time, on images.seed.concurrency threads. Each batch is a single round trip, and being unordered, MongoDB
+     is free to apply its inserts in any order, and one failing doesn't stop the others. Progress, and the
+     inserts per second, are logged every images.seed.log-every batches and once it's done
+
+     It picks up where it stopped, after the last seed- image already there (by name), so running it again never
+     inserts the same image twice. A batch that failed along the way leaves a gap behind it though, it isn't
+     filled in
+
+     Every image's CommentSummary (how many comments it has, and its latest one, see the comments service) is
+     seeded along with its comments, one unordered bulk upsert per batch, so summaries are there for seeded
+     images as they would be for real ones. The comments service only goes back over comments marked
+     summarized: false, and seeded ones are written without that flag, so they're never counted twice
+
+     Like InitDatabase it uses the blocking MongoOperations. It runs as a CommandLineRunner, once the
+     application has started, and by then Netty is serving already, so requests coming in while it's still
+     going see a partly seeded database
+
+     NOTE: The comments (and their summaries) go to the collections the comments service reads from (both
+     services use the same database). The comments service deletes every comment and summary when it starts
+     though (see its CommentService), so start it before seeding
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(SyntheticDataLoader.class);
+
+    private static final String PREFIX = "seed-";
+    private static final String SUMMARIES = "commentSummary";
+    private static final int SIZE = 64;
+
+    private final int images;
+    private final int commentsPerImage;
+    private final int blobs;
+    private final int batchSize;
+    private final int concurrency;
+    private final int logEvery;
+
+    public SyntheticDataLoader(@Value("${images.seed.images:1000000}") int images,
+                               @Value("${images.seed.comments-per-image:3}") int commentsPerImage,
+                               @Value("${images.seed.blobs:256}") int blobs,
+                               @Value("${images.seed.batch-size:1000}") int batchSize,
+                               @Value("${images.seed.concurrency:4}") int concurrency,
+                               @Value("${images.seed.log-every:100}") int logEvery) {
+        this.images = images;
+        this.commentsPerImage = commentsPerImage;
+        this.blobs = blobs;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.logEvery = logEvery;
+    }
+
+    @Bean
+    CommandLineRunner seed(MongoOperations operations, ImageStore imageStore, BlobGuard blobGuard) {
+        return args -> {
+            Image last = operations.findOne(query(where("name").regex("^" + PREFIX))
+                    .with(Sort.by(Sort.Direction.DESC, "name")), Image.class);
+            int from = last == null ? 0 : next(last.getName());
+            if (from >= images) {
+                log.info("Already seeded, up to " + last.getName());
+                return;
+            }
+
+            List<SeedBlob> stored = storeBlobs(imageStore);
+            try {
+                insertAll(operations, stored, from);
+            } finally {
+                stored.forEach(blob -> blobGuard.unpin(blob.hash));
+            }
+        };
+    }
+
+    private List<SeedBlob> storeBlobs(ImageStore imageStore) throws IOException {
+        List<SeedBlob> stored = new ArrayList<>();
+        for (int i = 0; i < Math.max(blobs, 1); i++) {
+            byte[] png = png(i);
+            UploadedFile uploaded = imageStore
+                    .store(new SeedFilePart(PREFIX + i + ".png", png))
+                    .block();
+            stored.add(new SeedBlob(uploaded.getSha256(), uploaded.getSize()));
+        }
+        log.info("Stored " + stored.size() + " blobs");
+        return stored;
+    }
+
+    private void insertAll(MongoOperations operations, List<SeedBlob> stored, int from)
+            throws InterruptedException {
+        AtomicLong insertedImages = new AtomicLong();
+        AtomicLong insertedComments = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        for (int first = from; first < images; first += batchSize) {
+            int batchStart = first;
+            int batchEnd = Math.min(first + batchSize, images);
+            executor.execute(() -> {
+                try {
+                    insertBatch(operations, stored, batchStart, batchEnd, insertedImages, insertedComments);
+                    if (batches.incrementAndGet() % logEvery == 0) {
+                        report("Seeding", insertedImages.get(), insertedComments.get(), start);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Couldn't seed images " + batchStart + " to " + (batchEnd - 1), e);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        report("Seeded", insertedImages.get(), insertedComments.get(), start);
+    }
+
+    private void insertBatch(MongoOperations operations, List<SeedBlob> stored, int from, int to,
+                             AtomicLong insertedImages, AtomicLong insertedComments) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Image> batch = new ArrayList<>(to - from);
+        List<Comment> comments = new ArrayList<>();
+        List<Pair<Query, Update>> summaries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            SeedBlob blob = stored.get(i % stored.size());
+            Image image = new Image(UUID.randomUUID().toString(), String.format(PREFIX + "%08d.png", i),
+                    blob.hash, blob.size, "image/png", SIZE, SIZE,
+                    Instant.now().minusSeconds(random.nextInt(365 * 24 * 3600)));
+            batch.add(image);
+
+            int count = commentsPerImage > 0 ? random.nextInt(2 * commentsPerImage + 1) : 0;
+            Comment latest = null;
+            for (int c = 0; c < count; c++) {
+                latest = new Comment(new ObjectId().toHexString(), image.getId(),
+                        "Synthetic comment #" + c + " on " + image.getName());
+                comments.add(latest);
+            }
+            if (latest != null) {
+                summaries.add(Pair.of(query(where("_id").is(image.getId())), new Update()
+                        .inc("count", count)
+                        .set("lastCommentId", latest.getId())
+                        .set("lastComment", latest.getComment())
+                        .set("updatedAt", new Date())));
+            }
+        }
+
+        insertedImages.addAndGet(operations
+                .bulkOps(BulkOperations.BulkMode.UNORDERED, Image.class)
+                .insert(batch)
+                .execute()
+                .getInsertedCount());
+
+        // a batch of comments is cut at batchSize documents too, however many images they belong to
+        for (int first = 0; first < comments.size(); first += batchSize) {
+            insertedComments.addAndGet(operations
+                    .bulkOps(BulkOperations.BulkMode.UNORDERED, Comment.class)
+                    .insert(comments.subList(first, Math.min(first + batchSize, comments.size())))
+                    .execute()
+                    .getInsertedCount());
+        }
+
+        if (!summaries.isEmpty()) {
+            operations
+                    .bulkOps(BulkOperations.BulkMode.UNORDERED, SUMMARIES)
+                    .upsert(summaries)
+                    .execute();
+        }
+    }
+
+    private static int next(String name) {
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - ".png".length())) + 1;
+    }
+
+    private static void report(String what, long images, long comments, long start) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        log.info(String.format("%s %d images and %d comments in %.1fs (%.0f inserts/sec)",
+                what, images, comments, seconds, (images + comments) / seconds));
+    }
+
+    /*
+     A flat colored square, its color derived from i, so every blob (up to 2^24 of them) has a hash of its own
+     */
+    private static byte[] png(int i) throws IOException {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color((i * 0x9E3779B1) & 0xFFFFFF));
+        graphics.fillRect(0, 0, SIZE, SIZE);
+        graphics.dispose();
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    private static class SeedBlob {
+
+        private final String hash;
+        private final long size;
+
+        private SeedBlob(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    /*
+     A generated image, handed to the ImageStore as if it had been uploaded
+     */
+    private static class SeedFilePart implements FilePart {
+
+        private final String filename;
+        private final byte[] content;
+
+        private SeedFilePart(String filename, byte[] content) {
+            this.filename = filename;
+            this.content = content;
+        }
+
+        @Override
+        public String name() {
+            return "file";
+        }
+
+        @Override
+        public String filename() {
+            return filename;
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.EMPTY;
+        }
+
+        @Override
+        public Flux<DataBuffer> content() {
+            return Flux.just(new DefaultDataBufferFactory().wrap(content));
+        }
+
+        @Override
+        public Mono<Void> transferTo(File dest) {
+            return Mono.fromRunnable(() -> {
+                try {
+                    Files.write(dest.toPath(), content);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.giocosmiano.exploration.chapter07.images.domain;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImagePage {
+
+    /*
+     One page of the image listing, ordered by name. next is the cursor to hand back (as ?after=) for the page
+     that follows, it's null on the last page
+     */
+
+    final private List<Image> images;
+    final private String next;
+
+    public ImagePage(List<Image> images, String next) {
+        this.images = images;
+        this.next = next;
+    }
+}
@@ -0,0 +1,24 @@
+package com.giocosmiano.exploration.chapter07.images.domain;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+@Data
+@Document
+public class ReconciliationCheckpoint {
+
+    /*
+     How far ImageReconciler got through the blobs, so a pass spread over several runs (or interrupted by a
+     restart) picks up right after the last hash it has looked at. An empty lastHash starts a new pass
+     */
+
+    @Id
+    final private String id;
+    final private String lastHash;
+
+    public ReconciliationCheckpoint(String id, String lastHash) {
+        this.id = id;
+        this.lastHash = lastHash;
+    }
+}
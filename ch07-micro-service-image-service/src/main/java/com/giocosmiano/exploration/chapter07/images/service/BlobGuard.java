@@ -0,0 +1,135 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+@Component
+public class BlobGuard {
+
+    /*
+     A blob's reference count is the number of Image records pointing at its hash, and a blob is deleted once
+     that count drops to zero. Counting and deleting aren't atomic though, and neither are storing a blob and
+     saving the record that references it. An upload whose bytes are already stored reuses the blob right
+     away, but its record is only saved a little later (once the image has been probed). A delete counting the
+     references in between finds none, and deletes the very blob the new record is about to point at
+
+     So the two sides go through this guard, which serializes them per hash (a stripe of locks, so different
+     hashes don't wait on each other)
+
+     An upload commits its blob (moves it into place, or finds it's there already) through commit(), which
+     pins the blob. It stays pinned until its record has been saved (or the upload failed), see unpin()
+
+     A delete claims the hash (claim()) before it counts the references, and only deletes the blob through
+     delete(), which doesn't do anything when the blob is pinned, or has been committed again since the claim
+     was made. Either way some upload is using it, and it stays. The claim is given back with release()
+
+     A blob that stays even though nobody references it in the end (its upload failed) is no worse than any
+     other orphan, the ImageReconciler takes care of it
+
+     This only covers the uploads and deletes of this very instance, which is all there is, the blobs being on
+     its local disk
+     */
+
+    private static final int STRIPES = 64;
+
+    private final Object[] locks = new Object[STRIPES];
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public BlobGuard() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /*
+     Runs the commit, which makes sure the blob is in place, and pins the blob
+     */
+    public <T> T commit(String hash, Callable<T> commit) throws Exception {
+        synchronized (lockOf(hash)) {
+            T committed = commit.call();
+            Entry entry = entry(hash);
+            entry.pins++;
+            entry.version++;
+            return committed;
+        }
+    }
+
+    public void unpin(String hash) {
+        synchronized (lockOf(hash)) {
+            Entry entry = entry(hash);
+            entry.pins--;
+            forget(hash, entry);
+        }
+    }
+
+    public Claim claim(String hash) {
+        synchronized (lockOf(hash)) {
+            Entry entry = entry(hash);
+            entry.claims++;
+            return new Claim(hash, entry.pins > 0 ? -1 : entry.version);
+        }
+    }
+
+    public void release(Claim claim) {
+        synchronized (lockOf(claim.hash)) {
+            Entry entry = entry(claim.hash);
+            entry.claims--;
+            forget(claim.hash, entry);
+        }
+    }
+
+    /*
+     Runs the delete, unless the blob has been pinned since the claim was made. Returns whether it ran
+     */
+    public boolean delete(Claim claim, Callable<?> delete) throws Exception {
+        synchronized (lockOf(claim.hash)) {
+            Entry entry = entry(claim.hash);
+            if (entry.pins > 0 || entry.version != claim.version) {
+                return false;
+            }
+            delete.call();
+            return true;
+        }
+    }
+
+    private Object lockOf(String hash) {
+        return locks[(hash.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private Entry entry(String hash) {
+        synchronized (entries) {
+            return entries.computeIfAbsent(hash, key -> new Entry());
+        }
+    }
+
+    private void forget(String hash, Entry entry) {
+        if (entry.pins <= 0 && entry.claims <= 0) {
+            synchronized (entries) {
+                entries.remove(hash);
+            }
+        }
+    }
+
+    public static class Claim {
+        private final String hash;
+        private final long version;
+
+        private Claim(String hash, long version) {
+            this.hash = hash;
+            this.version = version;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+        private int pins;
+        private int claims;
+        private long version;
+    }
+}
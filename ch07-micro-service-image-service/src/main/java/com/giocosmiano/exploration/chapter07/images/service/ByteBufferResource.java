@@ -0,0 +1,98 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+public class ByteBufferResource extends AbstractResource {
+
+    /*
+     A Resource over an image's bytes held in a ByteBuffer, either an off-heap copy kept by the HotImageCache
+     or a memory-mapped slice of one of the PackedSegmentImageStore's segment files
+
+     Every reader gets its own duplicate() of the read-only buffer, so concurrent responses never step on each
+     other's position. readableChannel() copies straight from the buffer into whatever buffer the reader hands
+     it (Netty's direct buffers when serving), never going through a byte[] on the heap.
+     Spring's DataBufferUtils.read(Resource, ...) relies on it, which is what ResourceHttpMessageWriter uses
+     to serve both full responses and Range requests
+     */
+
+    private final String filename;
+    private final ByteBuffer content;
+    private final long lastModified;
+
+    public ByteBufferResource(String filename, ByteBuffer content, long lastModified) {
+        this.filename = filename;
+        this.content = content.asReadOnlyBuffer();
+        this.lastModified = lastModified;
+    }
+
+    public ByteBuffer content() {
+        return content.duplicate();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return content.remaining();
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getDescription() {
+        return "ByteBuffer resource [" + filename + "]";
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return Channels.newInputStream(readableChannel());
+    }
+
+    @Override
+    public ReadableByteChannel readableChannel() {
+        ByteBuffer source = content();
+        return new ReadableByteChannel() {
+
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer destination) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int length = Math.min(destination.remaining(), source.remaining());
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + length);
+                destination.put(chunk);
+                source.position(source.position() + length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+
+public class DescribedFileResource extends FileSystemResource {
+
+    /*
+     An image's file, whose length and timestamp are already known from its Image record
+
+     Spring's ResourceHttpMessageWriter asks the Resource for its length (for the Content-Length, and to work out
+     Range requests) and, on the zero-copy path, the File too. A plain FileSystemResource answers each of those
+     with a stat of the file. This one answers from what was recorded at upload time, so serving the image only
+     ever opens the file to send it
+     */
+
+    private final long contentLength;
+    private final long lastModified;
+
+    public DescribedFileResource(File file, long contentLength, long lastModified) {
+        super(new DescribedFile(file, contentLength));
+        this.contentLength = contentLength;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    private static class DescribedFile extends File {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long length;
+
+        private DescribedFile(File file, long length) {
+            super(file.getPath());
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
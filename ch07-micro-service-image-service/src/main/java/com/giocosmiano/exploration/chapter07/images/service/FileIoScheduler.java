@@ -0,0 +1,98 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+public class FileIoScheduler {
+
+    /*
+     Plain java.io/java.nio.file calls (Files.move, Files.deleteIfExists, File.length(), opening a file, ...)
+     block the calling thread until the disk answers. Whoever subscribes to a Mono.fromCallable() runs it, and
+     that's usually one of Reactor Netty's event loop threads (reactor-http-nio-*). Each of them multiplexes
+     many connections, so one slow disk would stall every one of them
+
+     So every blocking file operation of the image service goes through call(), which runs it on the dedicated
+     image-io-* threads instead, and hands the result back as a Mono
+
+     The pool is bounded on both ends. images.io.threads caps how many file operations run at the same time,
+     and images.io.queue-size caps how many may wait for a thread. Past that, the operation fails right away
+     with a RejectedExecutionException (counted as images.io.rejected) rather than piling up work the disk
+     can't keep up with
+
+     images.io.queue (waiting operations) and images.io.active (running ones) are exposed as gauges,
+     images.io.wait times how long operations waited for a thread and images.io.execution how long they ran
+     */
+
+    private static final String THREAD_PREFIX = "image-io-";
+
+    private final ThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+    private final Timer waiting;
+    private final Timer execution;
+    private final Counter rejected;
+
+    public FileIoScheduler(MeterRegistry meterRegistry,
+                           @Value("${images.io.threads:8}") int threads,
+                           @Value("${images.io.queue-size:1024}") int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, THREAD_PREFIX + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.scheduler = Schedulers.fromExecutorService(executor);
+
+        this.waiting = meterRegistry.timer("images.io.wait");
+        this.execution = meterRegistry.timer("images.io.execution");
+        this.rejected = meterRegistry.counter("images.io.rejected");
+        meterRegistry.gauge("images.io.queue", executor, pool -> pool.getQueue().size());
+        meterRegistry.gauge("images.io.active", executor, ThreadPoolExecutor::getActiveCount);
+    }
+
+    /*
+     A null result completes the Mono empty, just like Mono.fromCallable() does
+     */
+    public <T> Mono<T> call(Callable<T> work) {
+        return Mono.defer(() -> {
+            long queuedAt = System.nanoTime();
+            return Mono.fromCallable(() -> {
+                waiting.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                return execution.recordCallable(work);
+            });
+        })
+                .subscribeOn(scheduler)
+                .doOnError(RejectedExecutionException.class, e -> rejected.increment());
+    }
+
+    /*
+     For fire-and-forget work, like cleaning up after a failed upload
+     */
+    public void execute(Runnable work) {
+        call(() -> {
+            work.run();
+            return null;
+        }).subscribe(nothing -> { }, e -> { });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.dispose();
+    }
+}
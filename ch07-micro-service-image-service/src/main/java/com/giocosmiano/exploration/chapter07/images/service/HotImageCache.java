@@ -0,0 +1,215 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class HotImageCache {
+
+    /*
+     A handful of images (the ones on the home page) get asked for over and over again. Even with zero-copy,
+     every one of those requests costs a MongoDB lookup and a trip through the filesystem. This cache keeps
+     the bytes of the hottest images in direct (off-heap) ByteBuffers, so repeat views are served straight from
+     memory without touching either one, and without adding to the garbage collector's workload
+
+     The cache is bounded by images.cache.max-bytes in total, and images larger than images.cache.max-entry-bytes
+     are never cached at all, they're better off with zero-copy from disk. Setting max-bytes to 0 turns it off
+
+     Eviction picks the least recently used entries, but an image is only let in if it has been asked for more
+     often than the entries it would evict (TinyLFU admission). The frequencies come from a FrequencySketch,
+     which counts every request, hit or miss. That way a one-off crawl through the whole gallery can't flush out
+     the images everyone keeps looking at
+
+     Whoever changes or removes an image calls invalidate(). A load that was already in flight when that happened
+     is not let in, since it may have read the old bytes
+
+     The image's record is kept along with its bytes, so a hit has everything needed to serve it, headers included
+     */
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    private long invalidations;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter rejections;
+
+    public HotImageCache(@Value("${images.cache.max-bytes:67108864}") long maxBytes,
+                         @Value("${images.cache.max-entry-bytes:1048576}") long maxEntryBytes,
+                         @Value("${images.cache.sketch-width:4096}") int sketchWidth,
+                         MeterRegistry meterRegistry) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+        this.sketch = new FrequencySketch(sketchWidth);
+
+        this.hits = meterRegistry.counter("images.cache.hits");
+        this.misses = meterRegistry.counter("images.cache.misses");
+        this.evictions = meterRegistry.counter("images.cache.evictions");
+        this.rejections = meterRegistry.counter("images.cache.rejections");
+        meterRegistry.gauge("images.cache.bytes", this, HotImageCache::usedBytes);
+        meterRegistry.gauge("images.cache.entries", this, HotImageCache::size);
+    }
+
+    /*
+     Looks the image up, and counts the request towards its frequency either way. On a miss, hand the token
+     that comes back in the Lookup to admit() once the image has been loaded
+     */
+    public synchronized Lookup lookup(String filename) {
+        sketch.increment(filename);
+        Entry cached = entries.get(filename);
+        if (cached != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return new Lookup(cached == null ? null : new ImageResource(cached.image, cached.content), invalidations);
+    }
+
+    /*
+     Offers a freshly loaded image to the cache. When it is let in, the bytes are copied off-heap and the cached
+     copy is returned. Otherwise the original resource is handed back untouched and will be served from disk
+     */
+    public ImageResource admit(Image image, Resource resource, Lookup lookup) {
+        ImageResource original = new ImageResource(image, resource);
+        if (maxBytes <= 0 || !resource.isFile()) {
+            return original;
+        }
+        String filename = image.getName();
+        try {
+            long size = resource.contentLength();
+            if (size > maxEntryBytes || size > maxBytes || !canAdmit(filename, size, lookup)) {
+                return original;
+            }
+            ByteBufferResource cached = new ByteBufferResource(
+                    filename, load(resource, (int) size), resource.lastModified());
+            return put(filename, new Entry(image, cached), lookup) ? new ImageResource(image, cached) : original;
+        } catch (IOException e) {
+            return original;
+        }
+    }
+
+    public synchronized void invalidate(String filename) {
+        invalidations++;
+        Entry removed = entries.remove(filename);
+        if (removed != null) {
+            usedBytes -= removed.content.contentLength();
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /*
+     Checked before reading the file, so we don't bother loading images that won't be let in anyway
+     */
+    private synchronized boolean canAdmit(String filename, long size, Lookup lookup) {
+        if (lookup.invalidations != invalidations || entries.containsKey(filename)) {
+            return false;
+        }
+        boolean admitted = victimsFor(filename, size) != null;
+        if (!admitted) {
+            rejections.increment();
+        }
+        return admitted;
+    }
+
+    private synchronized boolean put(String filename, Entry cached, Lookup lookup) {
+        if (lookup.invalidations != invalidations || entries.containsKey(filename)) {
+            return false;
+        }
+        List<String> victims = victimsFor(filename, cached.content.contentLength());
+        if (victims == null) {
+            rejections.increment();
+            return false;
+        }
+        for (String victim : victims) {
+            usedBytes -= entries.remove(victim).content.contentLength();
+            evictions.increment();
+        }
+        entries.put(filename, cached);
+        usedBytes += cached.content.contentLength();
+        return true;
+    }
+
+    /*
+     Walks the entries from least to most recently used until enough room would be freed. If any of them has been
+     asked for at least as often as the candidate, the candidate is rejected (null) and nothing gets evicted
+     */
+    private List<String> victimsFor(String filename, long size) {
+        List<String> victims = new ArrayList<>();
+        int frequency = sketch.frequency(filename);
+        long freed = maxBytes - usedBytes;
+        Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+        while (freed < size && lru.hasNext()) {
+            Map.Entry<String, Entry> victim = lru.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return null;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().content.contentLength();
+        }
+        return freed >= size ? victims : null;
+    }
+
+    private static ByteBuffer load(Resource resource, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class Entry {
+        private final Image image;
+        private final ByteBufferResource content;
+
+        private Entry(Image image, ByteBufferResource content) {
+            this.image = image;
+            this.content = content;
+        }
+    }
+
+    public static class Lookup {
+        private final ImageResource cached;
+        private final long invalidations;
+
+        private Lookup(ImageResource cached, long invalidations) {
+            this.cached = cached;
+            this.invalidations = invalidations;
+        }
+
+        public boolean isHit() {
+            return cached != null;
+        }
+
+        public ImageResource getCached() {
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter07.images.domain.ReconciliationCheckpoint;
+import com.giocosmiano.exploration.chapter07.images.repository.ImageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@Component
+public class ImageReconciler {
+
+    /*
+     The blobs in the ImageStore and the Image records in MongoDB are written one after the other, never
+     atomically. A crash in between, or somebody tidying upload-dir by hand, leaves one side without the other:
+     a blob no image points at (wasted disk) or an image whose blob is gone (a broken link on the home page)
+
+     This reconciler walks both sides in the background, on a thread of its own (image-reconciler), every
+     images.reconcile.interval-ms. Both are read in hash order, the blobs from ImageStore.blobs() and the
+     records through a sorted (indexed) query, and merge-joined like two sorted files: whichever side is behind
+     moves forward, and a hash found on one side only is an orphan. Only a small batch of each side is ever in
+     memory, whether there are a thousand blobs or millions
+
+     A run stops after images.reconcile.max-keys-per-run hashes, and the last hash it got to is saved as a
+     checkpoint in MongoDB every images.reconcile.checkpoint-every hashes. The next run (even after a restart)
+     resumes right after it, so a full pass is spread over as many runs as it takes, and none of them holds up
+     anything else. Once a pass has gone through every hash, the images from before content addressing (found by
+     name directly underneath upload-dir) are reconciled the same way, by name, and a new pass starts
+
+     Both sides keep changing while they're being walked, so every orphan is double-checked right before it's
+     acted upon. A blob younger than images.reconcile.grace-period-ms is left alone altogether, its Image record
+     may simply not be saved yet. The same goes for the temp files of uploads. An orphan blob is claimed (see
+     BlobGuard) before its references are counted, like ImageService does, so an upload reusing it in the
+     meantime keeps it. An image record is only removed while it still points at the blob that was found
+     missing, since uploading its name again keeps the record (and its id) but points it at another blob
+
+     images.reconcile.mode decides what happens to confirmed orphans:
+       off - the reconciler doesn't run
+       report (default) - they're logged and counted (images.reconcile.orphan.blobs/records)
+       repair - orphan blobs (and their thumbnails) and stale temp files are deleted, and so are the records
+                of images whose blob is gone, counted as images.reconcile.repaired. Such a record going away
+                publishes an ImageEvent, just like deleting the image through ImageService does
+
+     images.reconcile.run times every run
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(ImageReconciler.class);
+
+    private static final String CHECKPOINT_ID = "images";
+    private static final String TEMP_FILE_PREFIX = ".upload-";
+    private static final String TEMP_FILE_SUFFIX = ".part";
+    private static final int BATCH_SIZE = 256;
+
+    private final ImageStore imageStore;
+    private final ImageRepository imageRepository;
+    private final ReactiveMongoOperations mongoOperations;
+    private final HotImageCache hotImageCache;
+    private final ThumbnailService thumbnailService;
+    private final FileIoScheduler fileIoScheduler;
+    private final BlobGuard blobGuard;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Path root;
+    private final Mode mode;
+    private final int maxKeysPerRun;
+    private final int checkpointEvery;
+    private final long gracePeriodMs;
+
+    private final Counter orphanBlobs;
+    private final Counter orphanRecords;
+    private final Counter repaired;
+    private final Timer runs;
+    private final Scheduler reconciler;
+    private final Disposable reconciliation;
+
+    @Autowired
+    public ImageReconciler(ImageStore imageStore,
+                           ImageRepository imageRepository,
+                           ReactiveMongoOperations mongoOperations,
+                           HotImageCache hotImageCache,
+                           ThumbnailService thumbnailService,
+                           FileIoScheduler fileIoScheduler,
+                           BlobGuard blobGuard,
+                           ApplicationEventPublisher eventPublisher,
+                           MeterRegistry meterRegistry,
+                           @Value("${images.reconcile.mode:report}") String mode,
+                           @Value("${images.reconcile.initial-delay-ms:60000}") long initialDelayMs,
+                           @Value("${images.reconcile.interval-ms:600000}") long intervalMs,
+                           @Value("${images.reconcile.max-keys-per-run:10000}") int maxKeysPerRun,
+                           @Value("${images.reconcile.checkpoint-every:1000}") int checkpointEvery,
+                           @Value("${images.reconcile.grace-period-ms:3600000}") long gracePeriodMs) {
+        this(imageStore, imageRepository, mongoOperations, hotImageCache, thumbnailService, fileIoScheduler,
+                blobGuard, eventPublisher, meterRegistry, mode, initialDelayMs, intervalMs, maxKeysPerRun,
+                checkpointEvery, gracePeriodMs, Paths.get(ImageService.UPLOAD_ROOT));
+    }
+
+    /*
+     With a root other than upload-dir, for the tests
+     */
+    ImageReconciler(ImageStore imageStore,
+                    ImageRepository imageRepository,
+                    ReactiveMongoOperations mongoOperations,
+                    HotImageCache hotImageCache,
+                    ThumbnailService thumbnailService,
+                    FileIoScheduler fileIoScheduler,
+                    BlobGuard blobGuard,
+                    ApplicationEventPublisher eventPublisher,
+                    MeterRegistry meterRegistry,
+                    String mode,
+                    long initialDelayMs,
+                    long intervalMs,
+                    int maxKeysPerRun,
+                    int checkpointEvery,
+                    long gracePeriodMs,
+                    Path root) {
+        this.imageStore = imageStore;
+        this.imageRepository = imageRepository;
+        this.mongoOperations = mongoOperations;
+        this.hotImageCache = hotImageCache;
+        this.thumbnailService = thumbnailService;
+        this.fileIoScheduler = fileIoScheduler;
+        this.blobGuard = blobGuard;
+        this.eventPublisher = eventPublisher;
+        this.root = root;
+        this.mode = Mode.valueOf(mode.toUpperCase());
+        this.maxKeysPerRun = maxKeysPerRun;
+        this.checkpointEvery = Math.max(1, checkpointEvery);
+        this.gracePeriodMs = gracePeriodMs;
+
+        this.orphanBlobs = meterRegistry.counter("images.reconcile.orphan.blobs");
+        this.orphanRecords = meterRegistry.counter("images.reconcile.orphan.records");
+        this.repaired = meterRegistry.counter("images.reconcile.repaired");
+        this.runs = meterRegistry.timer("images.reconcile.run");
+
+        this.reconciler = Schedulers.newSingle("image-reconciler");
+        this.reconciliation = this.mode == Mode.OFF
+                ? Disposables.disposed()
+                : Flux.interval(Duration.ofMillis(initialDelayMs), Duration.ofMillis(intervalMs), reconciler)
+                .subscribe(tick -> reconcile());
+    }
+
+    /*
+     Runs on the image-reconciler thread, which is free to wait on MongoDB and the FileIoScheduler
+     */
+    void reconcile() {
+        long start = System.nanoTime();
+        try {
+            String after = mongoOperations.findById(CHECKPOINT_ID, ReconciliationCheckpoint.class)
+                    .map(ReconciliationCheckpoint::getLastHash)
+                    .defaultIfEmpty("")
+                    .block();
+            if (reconcileBlobs(after)) {
+                reconcileLegacyImages();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Reconciling " + root + " with MongoDB failed, will retry", e);
+        } finally {
+            runs.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reconciliation.dispose();
+        reconciler.dispose();
+    }
+
+    /*
+     Returns whether the pass went all the way through, rather than stopping at max-keys-per-run
+     */
+    private boolean reconcileBlobs(String after) {
+        Query records = query(where("hash").gt(after)).with(Sort.by("hash"));
+
+        try (Stream<StoredBlob> blobStream = imageStore.blobs(after).toStream(BATCH_SIZE);
+             Stream<Image> imageStream = mongoOperations.find(records, Image.class).toStream(BATCH_SIZE)) {
+            Iterator<StoredBlob> blobs = blobStream.iterator();
+            Iterator<Image> images = imageStream.iterator();
+            StoredBlob blob = next(blobs);
+            Image image = next(images);
+            String checkpoint = after;
+            int keys = 0;
+
+            while (blob != null || image != null) {
+                if (keys == maxKeysPerRun) {
+                    saveCheckpoint(checkpoint);
+                    return false;
+                }
+                int order = blob == null ? 1 : image == null ? -1 : blob.getHash().compareTo(image.getHash());
+                String hash = order <= 0 ? blob.getHash() : image.getHash();
+                if (order < 0) {
+                    orphanBlob(blob);
+                }
+                if (order <= 0) {
+                    blob = next(blobs);
+                }
+                while (image != null && image.getHash().equals(hash)) {
+                    if (order > 0) {
+                        orphanImage(image);
+                    }
+                    image = next(images);
+                }
+                checkpoint = hash;
+                if (++keys % checkpointEvery == 0) {
+                    saveCheckpoint(checkpoint);
+                }
+            }
+        }
+        saveCheckpoint("");
+        return true;
+    }
+
+    /*
+     The same merge-join, by name, between the images without a hash and the files directly underneath
+     upload-dir. Those only ever shrink (new uploads are content-addressed), so they're simply listed at once
+     */
+    private void reconcileLegacyImages() {
+        Query records = query(where("hash").is(null)).with(Sort.by("name"));
+        List<String> files = fileIoScheduler.call(this::legacyFiles).block();
+
+        try (Stream<Image> imageStream = mongoOperations.find(records, Image.class).toStream(BATCH_SIZE)) {
+            Iterator<String> names = files.iterator();
+            Iterator<Image> images = imageStream.iterator();
+            String name = next(names);
+            Image image = next(images);
+
+            while (name != null || image != null) {
+                int order = name == null ? 1 : image == null ? -1 : name.compareTo(image.getName());
+                if (order < 0) {
+                    orphanLegacyFile(name);
+                }
+                if (order <= 0) {
+                    name = next(names);
+                }
+                if (order >= 0) {
+                    if (order > 0) {
+                        orphanImage(image);
+                    }
+                    image = next(images);
+                }
+            }
+        }
+    }
+
+    private void orphanBlob(StoredBlob blob) {
+        if (isRecent(blob.getLastModified())) {
+            return;
+        }
+        BlobGuard.Claim claim = blobGuard.claim(blob.getHash());
+        try {
+            if (imageRepository.countByHash(blob.getHash()).block() > 0) {
+                return;
+            }
+            orphanBlobs.increment();
+            if (mode != Mode.REPAIR) {
+                log.warn("Blob {} isn't referenced by any image", blob.getHash());
+                return;
+            }
+            Image unreferenced = new Image(null, null, blob.getHash());
+            if (imageStore.delete(unreferenced, claim).block()) {
+                thumbnailService.delete(unreferenced).block();
+                repaired.increment();
+                log.info("Deleted blob {}, which wasn't referenced by any image", blob.getHash());
+            }
+        } finally {
+            blobGuard.release(claim);
+        }
+    }
+
+    private void orphanLegacyFile(String name) {
+        Image unreferenced = new Image(null, name);
+        if (fileIoScheduler.call(() -> isRecent(Files.getLastModifiedTime(root.resolve(name)).toMillis()))
+                .onErrorReturn(IOException.class, true)
+                .block()
+                || mongoOperations.exists(query(where("name").is(name).and("hash").is(null)), Image.class).block()) {
+            return;
+        }
+        orphanBlobs.increment();
+        if (mode != Mode.REPAIR) {
+            log.warn("File {} isn't referenced by any image", name);
+            return;
+        }
+        imageStore.delete(unreferenced, null)
+                .then(thumbnailService.delete(unreferenced))
+                .block();
+        repaired.increment();
+        log.info("Deleted file {}, which wasn't referenced by any image", name);
+    }
+
+    private void orphanImage(Image image) {
+        boolean missing = imageStore.findOne(image)
+                .flatMap(resource -> fileIoScheduler.call(() -> !resource.exists()))
+                .defaultIfEmpty(true)
+                .block();
+        if (!missing) {
+            return;
+        }
+        orphanRecords.increment();
+        if (mode != Mode.REPAIR) {
+            log.warn("Image {} points at blob {}, which is missing", image.getName(), image.getHash());
+            return;
+        }
+        long deleted = mongoOperations
+                .remove(query(where("id").is(image.getId()).and("hash").is(image.getHash())), Image.class)
+                .block()
+                .getDeletedCount();
+        if (deleted != 1) {
+            return;
+        }
+        hotImageCache.invalidate(image.getName());
+        eventPublisher.publishEvent(ImageEvent.deleted(image));
+        repaired.increment();
+        log.info("Deleted image {}, whose blob {} was missing", image.getName(), image.getHash());
+    }
+
+    /*
+     The plain files directly underneath upload-dir, i.e. the images from before content addressing. Temp
+     files left behind by uploads that never finished are dropped along the way once they're stale
+     */
+    private List<String> legacyFiles() throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return names;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                if (!Files.isRegularFile(entry)) {
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                if (name.startsWith(TEMP_FILE_PREFIX) && name.endsWith(TEMP_FILE_SUFFIX)) {
+                    if (!isRecent(Files.getLastModifiedTime(entry).toMillis())) {
+                        staleTempFile(entry);
+                    }
+                } else if (!name.startsWith(".")) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private void staleTempFile(Path tempFile) throws IOException {
+        if (mode != Mode.REPAIR) {
+            log.warn("Temp file {} was left behind by an upload that never finished", tempFile);
+            return;
+        }
+        Files.deleteIfExists(tempFile);
+        repaired.increment();
+    }
+
+    private void saveCheckpoint(String lastHash) {
+        mongoOperations.save(new ReconciliationCheckpoint(CHECKPOINT_ID, lastHash)).block();
+    }
+
+    private boolean isRecent(long lastModified) {
+        return System.currentTimeMillis() - lastModified < gracePeriodMs;
+    }
+
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private enum Mode {
+        OFF, REPORT, REPAIR
+    }
+}
@@ -0,0 +1,111 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+public class ReactiveSemaphore {
+
+    /*
+     A java.util.concurrent.Semaphore parks the calling thread until permits become available. That is exactly
+     what we must never do on a Reactor Netty event loop, since every other connection multiplexed on that
+     thread would stall with it
+
+     This semaphore hands out permits through a Mono instead. When enough permits are available the Mono
+     completes right away, otherwise the request is queued (FIFO, so large requests don't starve) and the Mono
+     completes once someone else releases enough permits. No thread is ever parked
+
+     A request for more permits than the semaphore holds is capped to the maximum, so a single oversized
+     request can still make progress on its own instead of waiting forever
+
+     If the subscriber cancels while still waiting, the request is simply dropped from the queue. If it cancels
+     right as the permits were being granted, MonoSink drops the value and the permits are handed back
+     */
+
+    private final long maxPermits;
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+    private long availablePermits;
+
+    public ReactiveSemaphore(long permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive, was " + permits);
+        }
+        this.maxPermits = permits;
+        this.availablePermits = permits;
+    }
+
+    public Mono<Long> acquire(long permits) {
+        long wanted = Math.max(1, Math.min(permits, maxPermits));
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(wanted, sink);
+            sink.onCancel(() -> cancel(waiter));
+
+            boolean granted;
+            synchronized (this) {
+                granted = waiters.isEmpty() && availablePermits >= wanted;
+                if (granted) {
+                    availablePermits -= wanted;
+                } else {
+                    waiters.add(waiter);
+                }
+            }
+            if (granted) {
+                sink.success(wanted);
+            }
+        });
+    }
+
+    public void release(long permits) {
+        Queue<Waiter> granted = new ArrayDeque<>();
+        synchronized (this) {
+            availablePermits = Math.min(maxPermits, availablePermits + permits);
+            while (!waiters.isEmpty() && availablePermits >= waiters.peek().permits) {
+                Waiter waiter = waiters.poll();
+                availablePermits -= waiter.permits;
+                granted.add(waiter);
+            }
+        }
+        granted.forEach(waiter -> waiter.sink.success(waiter.permits));
+    }
+
+    /*
+     Runs the given work once the permits have been acquired and releases them when the work terminates,
+     whether it completes, errors or gets cancelled
+     */
+    public <T> Mono<T> withPermits(long permits, Supplier<Mono<T>> work) {
+        return acquire(permits)
+                .flatMap(granted -> work.get()
+                        .doFinally(signal -> release(granted)));
+    }
+
+    public synchronized long availablePermits() {
+        return availablePermits;
+    }
+
+    public synchronized int queueLength() {
+        return waiters.size();
+    }
+
+    private void cancel(Waiter waiter) {
+        boolean wasWaiting;
+        synchronized (this) {
+            wasWaiting = waiters.remove(waiter);
+        }
+        if (!wasWaiting) {
+            release(waiter.permits);
+        }
+    }
+
+    private static class Waiter {
+        private final long permits;
+        private final MonoSink<Long> sink;
+
+        private Waiter(long permits, MonoSink<Long> sink) {
+            this.permits = permits;
+            this.sink = sink;
+        }
+    }
+}
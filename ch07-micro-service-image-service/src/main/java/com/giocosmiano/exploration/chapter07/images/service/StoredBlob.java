@@ -0,0 +1,20 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import lombok.Data;
+
+@Data
+public class StoredBlob {
+
+    /*
+     One blob held by an ImageStore, as listed by ImageStore.blobs(). lastModified (in epoch millis) is when its
+     bytes were written, which tells a blob whose Image record is simply not saved yet from a real orphan
+     */
+
+    final private String hash;
+    final private long lastModified;
+
+    public StoredBlob(String hash, long lastModified) {
+        this.hash = hash;
+        this.lastModified = lastModified;
+    }
+}
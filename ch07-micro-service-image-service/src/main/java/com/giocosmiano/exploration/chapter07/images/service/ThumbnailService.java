@@ -0,0 +1,263 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+@Service
+public class ThumbnailService {
+
+    /*
+     The home page used to render every image at full size, even though it only ever shows them 75px wide.
+     This pipeline produces smaller copies (derivatives) of every image, in the widths listed in
+     images.thumbnails.widths
+
+     Scaling is done in pure Java (javax.imageio and Java2D), no native libraries involved. Large reductions are
+     done in several passes, halving the image each time, since a single bilinear pass over a large reduction
+     skips most of the source pixels and looks noticeably jagged. Images are never scaled up
+
+     The work runs on a dedicated, bounded pool of thumbnail-worker threads (images.thumbnails.workers), fed by a
+     bounded queue (images.thumbnails.queue-size). Decoding and scaling images is CPU heavy, so it has no
+     business on the Netty event loop, and an upload burst must not be able to queue up unbounded work.
+     When the queue is full the job is rejected and counted (images.thumbnails.rejected), the thumbnail will
+     then simply be generated the first time it is asked for
+
+     Thumbnails are cached on disk, underneath upload-dir/thumbnails, by the image's content hash (or its name for
+     images without one) and width. Generating the same thumbnail twice at the same time is avoided through
+     single-flight: the first request starts the work and keeps it in inFlight, every concurrent request for that
+     very thumbnail shares the same (cached) Mono, and the entry goes away once the thumbnail is on disk.
+     Checking the disk cache and deleting thumbnails run on the FileIoScheduler, generating them on the workers
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+
+    private final ImageStore imageStore;
+    private final FileIoScheduler fileIoScheduler;
+    private final Path root;
+    private final List<Integer> widths;
+    private final ThreadPoolExecutor executor;
+    private final Scheduler workers;
+    private final Map<Path, Mono<Path>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter generated;
+    private final Counter rejected;
+    private final Timer generation;
+
+    @Autowired
+    public ThumbnailService(ImageStore imageStore,
+                            FileIoScheduler fileIoScheduler,
+                            MeterRegistry meterRegistry,
+                            @Value("${images.thumbnails.widths:160,320}") Integer[] widths,
+                            @Value("${images.thumbnails.workers:2}") int workers,
+                            @Value("${images.thumbnails.queue-size:64}") int queueSize) {
+        this(imageStore, fileIoScheduler, meterRegistry, widths, workers, queueSize,
+                Paths.get(ImageService.UPLOAD_ROOT));
+    }
+
+    /*
+     With a root other than upload-dir, for the tests
+     */
+    ThumbnailService(ImageStore imageStore,
+                     FileIoScheduler fileIoScheduler,
+                     MeterRegistry meterRegistry,
+                     Integer[] widths,
+                     int workers,
+                     int queueSize,
+                     Path uploadRoot) {
+        this.imageStore = imageStore;
+        this.fileIoScheduler = fileIoScheduler;
+        this.root = uploadRoot.resolve(THUMBNAIL_DIRECTORY);
+        this.widths = Arrays.stream(widths).sorted().distinct().collect(Collectors.toList());
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-worker-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.workers = Schedulers.fromExecutorService(executor);
+
+        this.generated = meterRegistry.counter("images.thumbnails.generated");
+        this.rejected = meterRegistry.counter("images.thumbnails.rejected");
+        this.generation = meterRegistry.timer("images.thumbnails.generation");
+        meterRegistry.gauge("images.thumbnails.queue", executor, pool -> pool.getQueue().size());
+    }
+
+    /*
+     Called once an image has been uploaded, so its thumbnails are ready by the time anybody asks for them
+     */
+    public void enqueue(Image image) {
+        Flux.fromIterable(widths)
+                .flatMap(width -> thumbnail(image, width))
+                .subscribe(thumbnail -> { },
+                        e -> log.warn("Couldn't generate thumbnails of " + image.getName(), e));
+    }
+
+    /*
+     The requested width is rounded up to the next width we generate (or down to the largest one), so a client
+     can't fill the disk with one variant per pixel. An image that can't be decoded (or is narrower than the
+     thumbnail) is served as is
+     */
+    public Mono<Resource> thumbnail(Image image, int requestedWidth) {
+        int width = widths.stream()
+                .filter(candidate -> candidate >= requestedWidth)
+                .findFirst()
+                .orElse(widths.get(widths.size() - 1));
+        Path target = thumbnailDirectory(image).resolve(width + "." + formatOf(image));
+
+        return fileIoScheduler.call(() -> Files.exists(target))
+                .flatMap(exists -> exists
+                        ? Mono.just(target)
+                        : inFlight.computeIfAbsent(target, key -> generate(image, width, key)
+                                .doFinally(signal -> inFlight.remove(key))
+                                .cache()))
+                .map(path -> (Resource) new FileSystemResource(path.toFile()))
+                .switchIfEmpty(imageStore.findOne(image))
+                .log("thumbnail");
+    }
+
+    /*
+     Drops the image's thumbnails, once nothing references its content anymore (see ImageService)
+     */
+    public Mono<Void> delete(Image image) {
+        return fileIoScheduler.call(() ->
+                FileSystemUtils.deleteRecursively(thumbnailDirectory(image).toFile()))
+                .log("thumbnail-delete")
+                .then();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.dispose();
+    }
+
+    /*
+     Completes empty when no thumbnail could be made, in which case the original is served instead
+
+     The ImageStore may hand the original back on its own threads (e.g. the FileIoScheduler), so the decoding and
+     scaling are moved back onto the workers (publishOn) rather than running wherever findOne() completed
+     */
+    private Mono<Path> generate(Image image, int width, Path target) {
+        return Mono.defer(() -> imageStore.findOne(image))
+                .subscribeOn(workers)
+                .publishOn(workers)
+                .flatMap(original -> Mono.fromCallable(() -> {
+                    if (Files.exists(target)) {
+                        return target;
+                    }
+                    long start = System.nanoTime();
+                    BufferedImage source;
+                    try (InputStream in = original.getInputStream()) {
+                        source = ImageIO.read(in);
+                    }
+                    if (source == null || source.getWidth() <= width) {
+                        return null;
+                    }
+                    write(scale(source, width, "png".equals(formatOf(image))), formatOf(image), target);
+                    generation.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    generated.increment();
+                    return target;
+                }))
+                .onErrorResume(RejectedExecutionException.class, e -> {
+                    rejected.increment();
+                    return Mono.empty();
+                })
+                .log("thumbnail-generate");
+    }
+
+    private static BufferedImage scale(BufferedImage source, int width, boolean alpha) {
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        int height = Math.max(1, (int) Math.round((double) source.getHeight() * width / source.getWidth()));
+
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = currentWidth == width ? height : Math.max(height, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth > width);
+
+        return current;
+    }
+
+    /*
+     Written to a temp file first and then moved into place, so nobody ever serves a half-written thumbnail
+     */
+    private static void write(BufferedImage thumbnail, String format, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tempFile = Files.createTempFile(target.getParent(), ".thumbnail-", ".part");
+        try {
+            if (!ImageIO.write(thumbnail, format, tempFile.toFile())) {
+                throw new IOException("No ImageIO writer for " + format);
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    private Path thumbnailDirectory(Image image) {
+        return image.getHash() == null
+                ? root.resolve("by-name").resolve(image.getName())
+                : root.resolve(image.getHash());
+    }
+
+    /*
+     JPEGs stay JPEGs, everything else (PNG, GIF, ...) becomes a PNG so transparency survives
+     */
+    private static String formatOf(Image image) {
+        String name = image.getName().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpg" : "png";
+    }
+}
@@ -0,0 +1,149 @@
+package com.giocosmiano.exploration.chapter07;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.comments.view.CommentView;
+import com.giocosmiano.exploration.chapter07.comments.view.ViewedComments;
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter07.images.domain.ImagePage;
+import com.giocosmiano.exploration.chapter07.images.service.ImageService;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class HomePageCacheTests {
+
+    /*
+     A HomePageCache over a stand-in for the ImageService whose first page holds alpha.png and bravo.png, and a
+     CommentView without any comments. Putting the page together is counted
+
+     The page is put together once, then served as it is, until an image is created or deleted, or one of the
+     page's images gets a comment. A comment about some other image doesn't matter. The request finding the page
+     stale is still served the page it found, and the next one the rebuilt page. When there's no page yet,
+     concurrent requests all wait on the very same rebuild. A page put together while comments couldn't be
+     backfilled is served once, then put together again
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger pagesFound = new AtomicInteger();
+    private final List<Image> images = Arrays.asList(new Image("1", "alpha.png"), new Image("2", "bravo.png"));
+
+    private ImageService imageService;
+    private CommentView commentView;
+
+    @Before
+    public void setUp() {
+        imageService = mock(ImageService.class);
+        when(imageService.findImagePage(null, 20)).thenReturn(Mono.fromCallable(() -> {
+            pagesFound.incrementAndGet();
+            return new ImagePage(images, null);
+        }));
+        commentView = mock(CommentView.class);
+        when(commentView.getComments(anyList()))
+                .thenReturn(Mono.just(new ViewedComments(Collections.emptyMap(), Collections.emptySet())));
+    }
+
+    @Test(timeout = 10000)
+    public void thePageShouldOnlyBeRebuiltAfterItChanged() {
+        // given
+        HomePageCache cache = new HomePageCache(imageService, commentView, meterRegistry, 20, true, 60000);
+        HomePageCache.HomePage built = firstPage(cache);
+
+        // when
+        cache.onComment(new Comment("c1", "3", "about an image on another page"));
+
+        // then
+        assertThat(firstPage(cache)).isSameAs(built);
+        assertThat(pagesFound).hasValue(1);
+
+        // and when
+        cache.onComment(new Comment("c2", "2", "about bravo.png"));
+
+        // then
+        assertThat(firstPage(cache)).isSameAs(built);
+        HomePageCache.HomePage rebuilt = firstPage(cache);
+        assertThat(rebuilt).isNotSameAs(built);
+        assertThat(rebuilt.getImages().stream().map(row -> row.get("name")))
+                .containsExactly("alpha.png", "bravo.png");
+        assertThat(pagesFound).hasValue(2);
+
+        // and when
+        cache.onImage(ImageEvent.created(new Image("3", "charlie.png")));
+
+        // then
+        assertThat(firstPage(cache)).isSameAs(rebuilt);
+        assertThat(pagesFound).hasValue(3);
+        assertThat(meterRegistry.counter("images.home-cache.misses").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("images.home-cache.hits").count()).isEqualTo(2);
+        assertThat(meterRegistry.counter("images.home-cache.stale").count()).isEqualTo(2);
+        assertThat(meterRegistry.counter("images.home-cache.rebuilds").count()).isEqualTo(3);
+    }
+
+    @Test(timeout = 10000)
+    public void requestsWithoutAPageShouldWaitOnTheSameRebuild() {
+        // given
+        when(imageService.findImagePage(null, 20)).thenReturn(Mono.fromCallable(() -> {
+            pagesFound.incrementAndGet();
+            return new ImagePage(images, null);
+        }).delaySubscription(Duration.ofMillis(200)));
+        HomePageCache cache = new HomePageCache(imageService, commentView, meterRegistry, 20, true, 60000);
+
+        // when
+        List<HomePageCache.HomePage> pages = Flux.range(0, 8)
+                .flatMap(i -> cache.firstPage())
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(pages).hasSize(8);
+        assertThat(pages).containsOnly(pages.get(0));
+        assertThat(pagesFound).hasValue(1);
+        assertThat(meterRegistry.counter("images.home-cache.misses").count()).isEqualTo(8);
+        assertThat(meterRegistry.counter("images.home-cache.rebuilds").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void aPageMissingCommentsShouldBeRebuiltOnTheNextRequest() {
+        // given
+        Comment nice = new Comment("c1", "1", "Nice!");
+        when(commentView.getComments(anyList())).thenReturn(
+                Mono.just(new ViewedComments(Collections.emptyMap(), new HashSet<>(Arrays.asList("1", "2")))),
+                Mono.just(new ViewedComments(Collections.singletonMap("1", Collections.singletonList(nice)),
+                        Collections.emptySet())));
+        HomePageCache cache = new HomePageCache(imageService, commentView, meterRegistry, 20, true, 60000);
+        HomePageCache.HomePage built = firstPage(cache);
+
+        // when
+        HomePageCache.HomePage served = firstPage(cache);
+        HomePageCache.HomePage rebuilt = firstPage(cache);
+
+        // then
+        assertThat(served).isSameAs(built);
+        assertThat(rebuilt).isNotSameAs(built);
+        assertThat(rebuilt.getImages().get(0).get("comments")).isEqualTo(Collections.singletonList(nice));
+        assertThat(firstPage(cache)).isSameAs(rebuilt);
+        assertThat(meterRegistry.counter("images.home-cache.rebuilds").count()).isEqualTo(2);
+    }
+
+    private static HomePageCache.HomePage firstPage(HomePageCache cache) {
+        return cache.firstPage().block(Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,129 @@
+package com.giocosmiano.exploration.chapter07;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.giocosmiano.exploration.chapter07.comments.helper.CommentHelper;
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.service.DescribedFileResource;
+import com.giocosmiano.exploration.chapter07.images.service.ImageFeed;
+import com.giocosmiano.exploration.chapter07.images.service.ImageIoFixture;
+import com.giocosmiano.exploration.chapter07.images.service.ImageResource;
+import com.giocosmiano.exploration.chapter07.images.service.ImageService;
+import com.giocosmiano.exploration.chapter07.images.service.MultipartUploadReader;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.config.EnableWebFlux;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.NettyContext;
+import reactor.ipc.netty.http.server.HttpServer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+
+import static com.giocosmiano.exploration.chapter07.images.service.ImageIoFixture.image;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class RawImageTests {
+
+    /*
+     GET /images/{filename}/raw served by the HomeController behind a real Reactor Netty server, so the request
+     is handled on its reactor-http-* event loop, with the BlockingCallDetector watching it
+
+     An image uploaded before its metadata was recorded has its file stat'ed on the FileIoScheduler, a described
+     one not at all, and either way its bytes are sent with sendfile. Any other file access along the way, in the
+     controller or in Spring's writer, happens on the event loop and fails the request
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private ImageService imageService;
+    private AnnotationConfigApplicationContext context;
+    private NettyContext server;
+    private WebTestClient client;
+
+    @Before
+    public void setUp() {
+        imageService = mock(ImageService.class);
+
+        context = new AnnotationConfigApplicationContext();
+        context.register(WebFlux.class);
+        context.registerBean(HomeController.class, () -> new HomeController(imageService,
+                mock(HomePageCache.class), mock(ImageFeed.class), mock(CommentHelper.class),
+                io.fileIoScheduler(), mock(MultipartUploadReader.class), new ObjectMapper(), 20, 5, 15000));
+        context.refresh();
+
+        server = HttpServer.create(0)
+                .newHandler(new ReactorHttpHandlerAdapter(WebHttpHandlerBuilder.applicationContext(context).build()))
+                .block();
+        client = WebTestClient.bindToServer()
+                .baseUrl("http://localhost:" + server.address().getPort())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        server.dispose();
+        context.close();
+    }
+
+    @Test(timeout = 10000)
+    public void anImageWithoutMetadataShouldBeServedWithoutBlockingTheEventLoop() throws Exception {
+        // given
+        File file = io.newFile("3fa9c2");
+        Files.write(file.toPath(), image(1024));
+        when(imageService.findOneImageResource(eq("legacy.png"))).thenReturn(Mono.just(
+                new ImageResource(new Image("1", "legacy.png", "3fa9c2"), new FileSystemResource(file))));
+
+        // when
+        client.get().uri("/images/legacy.png/raw")
+                .exchange()
+
+                // then
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.IMAGE_PNG)
+                .expectHeader().valueEquals("Content-Length", "1024")
+                .expectBody(byte[].class).isEqualTo(image(1024));
+    }
+
+    @Test(timeout = 10000)
+    public void aDescribedImageShouldBeServedWithoutBlockingTheEventLoop() throws Exception {
+        // given
+        File file = io.newFile("3fa9c2");
+        Files.write(file.toPath(), image(1024));
+        Instant uploadedAt = Instant.parse("2018-03-01T10:15:30Z");
+        Image described = new Image("1", "described.png", "3fa9c2", 1024L, "image/png", 40, 20, uploadedAt);
+        when(imageService.findOneImageResource(eq("described.png"))).thenReturn(Mono.just(new ImageResource(
+                described, new DescribedFileResource(file, 1024, uploadedAt.toEpochMilli()))));
+
+        // when
+        client.get().uri("/images/described.png/raw")
+                .exchange()
+
+                // then
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.IMAGE_PNG)
+                .expectHeader().valueEquals("ETag", "\"3fa9c2\"")
+                .expectBody(byte[].class).isEqualTo(image(1024));
+    }
+
+    @Configuration
+    @EnableWebFlux
+    static class WebFlux {
+    }
+}
@@ -0,0 +1,137 @@
+package com.giocosmiano.exploration.chapter07.images.clr;
+
+import com.giocosmiano.exploration.chapter07.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.service.BlobGuard;
+import com.giocosmiano.exploration.chapter07.images.service.ImageStore;
+import com.giocosmiano.exploration.chapter07.images.service.UploadedFile;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import com.mongodb.bulk.BulkWriteResult;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SyntheticDataLoaderTests {
+
+    /*
+     The SyntheticDataLoader seeding 25 images, in batches of 10 on two threads, over two blobs, into a stand-in
+     for MongoDB that keeps whatever it's bulk inserted
+
+     Every image is inserted exactly once, a batch (at most 10 documents) per unordered bulk insert, with its
+     metadata filled in and pointing at one of the blobs, which are unpinned once it's done. Every comment belongs
+     to one of the images, and so does every summary. Seeding again, once part of the images are there, only
+     inserts the ones after the last of them
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private final List<Image> images = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> imageBatches = Collections.synchronizedList(new ArrayList<>());
+    private final List<Comment> comments = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> commentBatches = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger summaries = new AtomicInteger();
+
+    private MongoOperations operations;
+    private ImageStore imageStore;
+    private BlobGuard blobGuard;
+
+    @Before
+    public void setUp() {
+        operations = mock(MongoOperations.class);
+        when(operations.bulkOps(BulkOperations.BulkMode.UNORDERED, Image.class))
+                .then(invocation -> bulk(images, imageBatches));
+        when(operations.bulkOps(BulkOperations.BulkMode.UNORDERED, Comment.class))
+                .then(invocation -> bulk(comments, commentBatches));
+        when(operations.bulkOps(BulkOperations.BulkMode.UNORDERED, "commentSummary")).then(invocation -> {
+            BulkOperations bulk = mock(BulkOperations.class);
+            when(bulk.upsert(anyList())).then(upsert -> {
+                summaries.addAndGet(upsert.<List<?>>getArgument(0).size());
+                return bulk;
+            });
+            when(bulk.execute()).thenReturn(mock(BulkWriteResult.class));
+            return bulk;
+        });
+
+        imageStore = mock(ImageStore.class);
+        when(imageStore.store(any())).then(invocation -> {
+            FilePart filePart = invocation.getArgument(0);
+            return Mono.just(new UploadedFile(Paths.get(filePart.filename()), 100, "hash-" + filePart.filename()));
+        });
+        blobGuard = mock(BlobGuard.class);
+    }
+
+    @Test(timeout = 10000)
+    public void everyImageShouldBeInsertedOnceInBulk() throws Exception {
+        // when
+        new SyntheticDataLoader(25, 2, 2, 10, 2, 1).seed(operations, imageStore, blobGuard).run();
+
+        // then
+        assertThat(images).extracting(Image::getName).containsExactlyInAnyOrderElementsOf(names(0, 25));
+        assertThat(images).allMatch(Image::isDescribed);
+        assertThat(images).extracting(Image::getHash).containsOnly("hash-seed-0.png", "hash-seed-1.png");
+        assertThat(imageBatches).containsExactlyInAnyOrder(10, 10, 5);
+        assertThat(commentBatches).allMatch(size -> size <= 10);
+        verify(blobGuard).unpin("hash-seed-0.png");
+        verify(blobGuard).unpin("hash-seed-1.png");
+
+        Set<String> ids = images.stream().map(Image::getId).collect(Collectors.toSet());
+        assertThat(comments).extracting(Comment::getImageId).allMatch(ids::contains);
+        assertThat(summaries)
+                .hasValue((int) comments.stream().map(Comment::getImageId).distinct().count());
+    }
+
+    @Test(timeout = 10000)
+    public void seedingShouldPickUpAfterTheLastImage() throws Exception {
+        // given
+        when(operations.findOne(any(Query.class), eq(Image.class)))
+                .thenReturn(new Image("19", "seed-00000019.png"));
+
+        // when
+        new SyntheticDataLoader(25, 0, 2, 10, 2, 1).seed(operations, imageStore, blobGuard).run();
+
+        // then
+        assertThat(images).extracting(Image::getName).containsExactlyElementsOf(names(20, 25));
+        assertThat(comments).isEmpty();
+    }
+
+    private static List<String> names(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> String.format("seed-%08d.png", i))
+                .collect(Collectors.toList());
+    }
+
+    private static <T> BulkOperations bulk(List<T> inserted, List<Integer> batches) {
+        BulkOperations bulk = mock(BulkOperations.class);
+        AtomicInteger count = new AtomicInteger();
+        when(bulk.insert(anyList())).then(invocation -> {
+            List<T> documents = invocation.getArgument(0);
+            inserted.addAll(documents);
+            batches.add(documents.size());
+            count.addAndGet(documents.size());
+            return bulk;
+        });
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getInsertedCount()).then(invocation -> count.get());
+        when(bulk.execute()).thenReturn(result);
+        return bulk;
+    }
+}
@@ -0,0 +1,76 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class FileIoSchedulerTests {
+
+    /*
+     A FileIoScheduler with a single image-io thread and room for one more operation in its queue
+
+     Blocking work never runs on the thread that subscribes, but on the image-io thread. Once that thread is busy
+     and the queue is full, another operation is turned down right away (and counted), instead of piling up
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture(1, 1);
+
+    private final FileIoScheduler fileIoScheduler = io.fileIoScheduler();
+    private final CountDownLatch disk = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        disk.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void blockingWorkShouldRunOnTheImageIoThreads() {
+        // when
+        String thread = fileIoScheduler.call(() -> Thread.currentThread().getName())
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(thread).startsWith("image-io-");
+        assertThat(io.meterRegistry().timer("images.io.execution").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void workShouldBeTurnedDownOnceTheQueueIsFull() throws InterruptedException {
+        // given
+        CountDownLatch running = new CountDownLatch(1);
+        Mono<Boolean> stuck = fileIoScheduler.call(() -> {
+            running.countDown();
+            disk.await();
+            return true;
+        }).toProcessor();
+        running.await();
+        Mono<Boolean> queued = fileIoScheduler.call(() -> true).toProcessor();
+
+        // when
+        Throwable failure = catchThrowable(() -> fileIoScheduler.call(() -> true).block(Duration.ofSeconds(5)));
+
+        // then
+        assertThat(failure).isInstanceOf(RejectedExecutionException.class);
+        assertThat(io.meterRegistry().counter("images.io.rejected").count()).isEqualTo(1);
+
+        // and when
+        disk.countDown();
+
+        // then
+        assertThat(stuck.block(Duration.ofSeconds(5))).isTrue();
+        assertThat(queued.block(Duration.ofSeconds(5))).isTrue();
+    }
+}
@@ -0,0 +1,97 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class HotImageCacheTests {
+
+    /*
+     A HotImageCache with room for a single 200 byte image (300 bytes in all), with images on disk in a temporary
+     upload-dir
+
+     An image let in is served from memory from then on, with the very same bytes. Another image, asked for less
+     often than the cached one, is turned away rather than evicting it (TinyLFU admission), and an image
+     invalidated while it was being loaded is never let in
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private final HotImageCache cache = new HotImageCache(300, 200, 64, io.meterRegistry());
+
+    @Test
+    public void anAdmittedImageShouldBeServedFromMemory() throws IOException {
+        // given
+        Resource onDisk = file("hot.png", 200);
+        cache.admit(new Image("1", "hot.png"), onDisk, cache.lookup("hot.png"));
+
+        // when
+        HotImageCache.Lookup lookup = cache.lookup("hot.png");
+
+        // then
+        assertThat(lookup.isHit()).isTrue();
+        assertThat(lookup.getCached().getResource()).isInstanceOf(ByteBufferResource.class);
+        assertThat(bytes(lookup.getCached().getResource())).isEqualTo(bytes(onDisk));
+        assertThat(cache.usedBytes()).isEqualTo(200);
+    }
+
+    @Test
+    public void aColdImageShouldNotEvictAHotOne() throws IOException {
+        // given
+        cache.lookup("hot.png");
+        cache.lookup("hot.png");
+        cache.admit(new Image("1", "hot.png"), file("hot.png", 200), cache.lookup("hot.png"));
+        Resource cold = file("cold.png", 200);
+
+        // when
+        ImageResource served = cache.admit(new Image("2", "cold.png"), cold, cache.lookup("cold.png"));
+
+        // then
+        assertThat(served.getResource()).isSameAs(cold);
+        assertThat(cache.lookup("hot.png").isHit()).isTrue();
+        assertThat(cache.lookup("cold.png").isHit()).isFalse();
+    }
+
+    @Test
+    public void anImageInvalidatedWhileLoadingShouldNotBeLetIn() throws IOException {
+        // given
+        Resource onDisk = file("hot.png", 200);
+        HotImageCache.Lookup lookup = cache.lookup("hot.png");
+        cache.invalidate("hot.png");
+
+        // when
+        ImageResource served = cache.admit(new Image("1", "hot.png"), onDisk, lookup);
+
+        // then
+        assertThat(served.getResource()).isSameAs(onDisk);
+        assertThat(cache.size()).isZero();
+    }
+
+    private Resource file(String name, int size) throws IOException {
+        File file = io.newFile(name);
+        Files.write(file.toPath(), ImageIoFixture.image(size, name.hashCode()));
+        return new FileSystemResource(file);
+    }
+
+    private static byte[] bytes(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.images.domain.ImageDeleteResult;
+import com.giocosmiano.exploration.chapter07.images.domain.ImagePage;
+import com.giocosmiano.exploration.chapter07.images.repository.ImageRepository;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import com.mongodb.client.result.DeleteResult;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ImageServiceTests {
+
+    /*
+     The ImageService over a stand-in for MongoDB (the ImageRepository and ReactiveMongoOperations) and the
+     ImageStore
+
+     Deleting images in bulk looks up, and removes, a whole batch with a single query each, whatever its size.
+     Every name gets its result, and a blob is only deleted when no image left behind still references it
+
+     Paging through the images with the cursor each page hands out goes over every one of them exactly once, in
+     order, even across images sharing a name. The stand-in for MongoDB answers a page's query the way MongoDB
+     would, filtering, sorting and limiting the images it holds
+
+     An image described by its record is served with the length and timestamp recorded at upload time, not those
+     of its file, which here is deliberately some other size. One that isn't described is served from its file
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private ImageRepository imageRepository;
+    private ReactiveMongoOperations operations;
+    private ImageStore imageStore;
+    private ThumbnailService thumbnailService;
+    private ImageService imageService;
+
+    @Before
+    public void setUp() {
+        imageRepository = mock(ImageRepository.class);
+        operations = mock(ReactiveMongoOperations.class);
+        imageStore = mock(ImageStore.class);
+        thumbnailService = mock(ThumbnailService.class);
+        when(imageStore.delete(any(), any())).thenReturn(Mono.just(true));
+        when(thumbnailService.delete(any())).thenReturn(Mono.empty());
+
+        imageService = new ImageService(imageRepository, operations, io.meterRegistry(), imageStore,
+                new HotImageCache(0, 0, 16, io.meterRegistry()), thumbnailService, io.fileIoScheduler(),
+                mock(ApplicationEventPublisher.class), new BlobGuard(), 500, 8, 100);
+    }
+
+    @Test(timeout = 10000)
+    public void aBatchShouldBeDeletedWithOneQueryForEachStep() {
+        // given
+        Image alpha = new Image("1", "alpha.png", "hash-a");
+        Image bravo = new Image("2", "bravo.png", "hash-b");
+        when(imageRepository.findByNameIn(anyCollection())).thenReturn(Flux.just(alpha, bravo));
+        when(operations.remove(any(Query.class), eq(Image.class))).thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+        when(operations.find(any(Query.class), eq(Image.class)))
+                .thenReturn(Flux.just(new Image(null, null, "hash-b")));
+
+        // when
+        List<ImageDeleteResult> results = imageService
+                .deleteImages(Flux.just("alpha.png", "bravo.png", "missing.png", "alpha.png"))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(results)
+                .extracting(ImageDeleteResult::getName, ImageDeleteResult::getStatus)
+                .containsExactlyInAnyOrder(
+                        tuple("alpha.png", ImageDeleteResult.Status.DELETED),
+                        tuple("bravo.png", ImageDeleteResult.Status.DELETED),
+                        tuple("missing.png", ImageDeleteResult.Status.NOT_FOUND));
+        verify(imageRepository, times(1))
+                .findByNameIn(argThat(names -> names.containsAll(Arrays.asList("alpha.png", "bravo.png"))));
+        verify(operations, times(1)).remove(any(Query.class), eq(Image.class));
+        verify(imageStore).delete(eq(alpha), any());
+        verify(imageStore, never()).delete(eq(bravo), any());
+        verify(thumbnailService).delete(alpha);
+    }
+
+    @Test(timeout = 10000)
+    public void pagesShouldHaveNoGapsOrDuplicates() {
+        // given
+        List<Image> images = Arrays.asList(
+                new Image("5", "alpha.png"),
+                new Image("2", "bravo.png"),
+                new Image("1", "same.png"),
+                new Image("3", "same.png"),
+                new Image("4", "same.png"),
+                new Image("7", "same.png"),
+                new Image("6", "zulu.png"));
+        when(operations.find(any(Query.class), eq(Image.class)))
+                .then(invocation -> Flux.fromIterable(find(images, invocation.getArgument(0))));
+
+        // when
+        List<Image> paged = new ArrayList<>();
+        String next = null;
+        do {
+            ImagePage page = imageService.findImagePage(next, 2).block(Duration.ofSeconds(5));
+            assertThat(page.getImages().size()).isLessThanOrEqualTo(2);
+            paged.addAll(page.getImages());
+            next = page.getNext();
+        } while (next != null);
+
+        // then
+        assertThat(paged)
+                .extracting(Image::getName, Image::getId)
+                .containsExactly(
+                        tuple("alpha.png", "5"),
+                        tuple("bravo.png", "2"),
+                        tuple("same.png", "1"),
+                        tuple("same.png", "3"),
+                        tuple("same.png", "4"),
+                        tuple("same.png", "7"),
+                        tuple("zulu.png", "6"));
+    }
+
+    @Test(timeout = 10000)
+    public void aDescribedImageShouldBeServedFromItsRecord() throws IOException {
+        // given
+        File file = io.newFile("3fa9c2");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        Instant uploadedAt = Instant.parse("2018-03-01T10:15:30Z");
+        Image described = new Image("1", "described.png", "3fa9c2", 1234L, "image/png", 40, 20, uploadedAt);
+        Image legacy = new Image("2", "legacy.png", "3fa9c2");
+        when(imageRepository.findByName("described.png")).thenReturn(Mono.just(described));
+        when(imageRepository.findByName("legacy.png")).thenReturn(Mono.just(legacy));
+        when(imageStore.findOne(any())).thenReturn(Mono.just(new FileSystemResource(file)));
+
+        // when
+        Resource resource = imageService.findOneImageResource("described.png")
+                .block(Duration.ofSeconds(5))
+                .getResource();
+
+        // then
+        assertThat(resource).isInstanceOf(DescribedFileResource.class);
+        assertThat(resource.contentLength()).isEqualTo(1234);
+        assertThat(resource.lastModified()).isEqualTo(uploadedAt.toEpochMilli());
+        assertThat(resource.getFile().length()).isEqualTo(1234);
+
+        // and when
+        resource = imageService.findOneImageResource("legacy.png")
+                .block(Duration.ofSeconds(5))
+                .getResource();
+
+        // then
+        assertThat(resource).isNotInstanceOf(DescribedFileResource.class);
+        assertThat(resource.contentLength()).isEqualTo(3);
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedImageShouldNotFailTheBatch() {
+        // given
+        Image alpha = new Image("1", "alpha.png", "hash-a");
+        Image bravo = new Image("2", "bravo.png", "hash-b");
+        when(imageRepository.findByNameIn(anyCollection())).thenReturn(Flux.just(alpha, bravo));
+        when(operations.remove(any(Query.class), eq(Image.class))).thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+        when(operations.find(any(Query.class), eq(Image.class))).thenReturn(Flux.empty());
+        when(imageStore.delete(eq(alpha), any())).thenReturn(Mono.error(new IllegalStateException("Disk gone")));
+
+        // when
+        List<ImageDeleteResult> results = imageService
+                .deleteImages(Flux.just("alpha.png", "bravo.png"))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(results)
+                .extracting(ImageDeleteResult::getName, ImageDeleteResult::getStatus, ImageDeleteResult::getError)
+                .containsExactlyInAnyOrder(
+                        tuple("alpha.png", ImageDeleteResult.Status.FAILED, "Disk gone"),
+                        tuple("bravo.png", ImageDeleteResult.Status.DELETED, null));
+    }
+
+    /*
+     The images matching a page's query, name > :name OR (name = :name AND id > :id), by name then id, at most
+     as many as its limit
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Image> find(List<Image> images, Query query) {
+        List<Document> or = (List<Document>) query.getQueryObject().get("$or");
+        Comparator<Image> byNameAndId = Comparator.comparing(Image::getName).thenComparing(Image::getId);
+        Image after = or == null ? null : new Image(
+                ((Document) or.get(1).get("id")).getString("$gt"),
+                ((Document) or.get(0).get("name")).getString("$gt"));
+        return images.stream()
+                .filter(image -> after == null || byNameAndId.compare(image, after) > 0)
+                .sorted(byNameAndId)
+                .limit(query.getLimit())
+                .collect(Collectors.toList());
+    }
+}
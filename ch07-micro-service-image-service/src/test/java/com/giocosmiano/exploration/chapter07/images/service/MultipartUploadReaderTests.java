@@ -0,0 +1,150 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.giocosmiano.exploration.chapter07.images.service.ImageIoFixture.image;
+import static org.assertj.core.api.Assertions.*;
+
+public class MultipartUploadReaderTests {
+
+    /*
+     The MultipartUploadReader in streaming mode, fed an upload of a single file in network buffers of 100 bytes,
+     either direct (copied into the array the parser reads from) or on the heap (read by the parser in place)
+
+     A file has to come out exactly as it went in, however its bytes were split up. A file larger than
+     max-part-bytes fails with a 413 once its limit is crossed, and a request announcing more than
+     max-request-bytes is turned down without its body ever being read
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private static final String BOUNDARY = "upload-boundary";
+    private static final int NETWORK_BUFFER = 100;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MultipartUploadReader reader =
+            new MultipartUploadReader(meterRegistry, "streaming", 65536, 4096, 1024, 4);
+
+    @Test(timeout = 10000)
+    public void aFileShouldComeOutAsItWentInFromDirectBuffers() {
+        // given
+        byte[] image = image(3000);
+
+        // when
+        byte[] file = read(exchange(body(image), new DefaultDataBufferFactory(true)));
+
+        // then
+        assertThat(file).isEqualTo(image);
+    }
+
+    @Test(timeout = 10000)
+    public void aFileShouldComeOutAsItWentInFromHeapBuffers() {
+        // given
+        byte[] image = image(3000);
+
+        // when
+        byte[] file = read(exchange(body(image), new DefaultDataBufferFactory(false)));
+
+        // then
+        assertThat(file).isEqualTo(image);
+    }
+
+    @Test(timeout = 10000)
+    public void aFileLargerThanAPartMayBeShouldBeTurnedDown() {
+        // given
+        ServerWebExchange exchange = exchange(body(image(5000)), new DefaultDataBufferFactory());
+
+        // when
+        Throwable failure = catchThrowable(() -> read(exchange));
+
+        // then
+        assertThat(failure).isInstanceOf(ResponseStatusException.class);
+        assertThat(((ResponseStatusException) failure).getStatus()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+        assertThat(meterRegistry.counter("images.upload.rejected", "limit", "part-size").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void aRequestAnnouncedAsTooLargeShouldNotBeRead() {
+        // given
+        AtomicBoolean bodyRead = new AtomicBoolean();
+        ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest
+                .post("/images")
+                .contentType(contentType())
+                .contentLength(65537)
+                .body(Flux.<DataBuffer>empty().doOnSubscribe(subscription -> bodyRead.set(true))));
+
+        // when
+        Throwable failure = catchThrowable(() -> read(exchange));
+
+        // then
+        assertThat(failure).isInstanceOf(ResponseStatusException.class);
+        assertThat(((ResponseStatusException) failure).getStatus()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+        assertThat(bodyRead).isFalse();
+    }
+
+    private byte[] read(ServerWebExchange exchange) {
+        return reader.fileParts(exchange, "file")
+                .concatMap(FilePart::content)
+                .collect(ByteArrayOutputStream::new, (file, buffer) -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    file.write(bytes, 0, bytes.length);
+                })
+                .map(ByteArrayOutputStream::toByteArray)
+                .block(Duration.ofSeconds(5));
+    }
+
+    private static ServerWebExchange exchange(byte[] body, DefaultDataBufferFactory bufferFactory) {
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int offset = 0; offset < body.length; offset += NETWORK_BUFFER) {
+            int length = Math.min(NETWORK_BUFFER, body.length - offset);
+            buffers.add(bufferFactory.allocateBuffer(length).write(body, offset, length));
+        }
+        return MockServerWebExchange.from(MockServerHttpRequest
+                .post("/images")
+                .contentType(contentType())
+                .contentLength(body.length)
+                .body(Flux.fromIterable(buffers)));
+    }
+
+    private static MediaType contentType() {
+        return new MediaType(MediaType.MULTIPART_FORM_DATA, Collections.singletonMap("boundary", BOUNDARY));
+    }
+
+    private static byte[] body(byte[] image) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"cover.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        body.write(head, 0, head.length);
+        body.write(image, 0, image.length);
+        body.write(tail, 0, tail.length);
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,95 @@
+package com.giocosmiano.exploration.chapter07.images.service;
+
+import com.giocosmiano.exploration.chapter07.images.domain.Image;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ThumbnailServiceTests {
+
+    /*
+     The ThumbnailService, making thumbnails 160 and 320 pixels wide in a temporary upload-dir, out of a
+     400 pixels wide PNG. The ImageStore takes its time handing the original over, so concurrent requests for a
+     thumbnail overlap while it's being made
+
+     Every one of them is served the same thumbnail, but the original is read and scaled only once
+     (single-flight). A requested width is rounded up to the next width made, or down to the largest one
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture(4, 64);
+
+    private final AtomicInteger originalsRead = new AtomicInteger();
+    private final Image image = new Image("1", "cover.png", "3fa9c2");
+
+    private ThumbnailService thumbnailService;
+
+    @Before
+    public void setUp() throws IOException {
+        File original = io.newFile("cover.png");
+        ImageIO.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_ARGB), "png", original);
+
+        ImageStore imageStore = mock(ImageStore.class);
+        when(imageStore.findOne(any())).thenReturn(Mono.defer(() -> {
+            originalsRead.incrementAndGet();
+            return Mono.<Resource>just(new FileSystemResource(original));
+        }).delaySubscription(Duration.ofMillis(200)));
+
+        thumbnailService = new ThumbnailService(imageStore, io.fileIoScheduler(), io.meterRegistry(),
+                new Integer[]{320, 160}, 2, 16, io.root());
+    }
+
+    @After
+    public void tearDown() {
+        thumbnailService.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentRequestsShouldShareASingleGeneration() throws IOException {
+        // when
+        List<Resource> thumbnails = Flux.range(0, 8)
+                .flatMap(i -> thumbnailService.thumbnail(image, 100))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(thumbnails).hasSize(8);
+        assertThat(thumbnails).extracting(Resource::getFile).containsOnly(thumbnails.get(0).getFile());
+        assertThat(ImageIO.read(thumbnails.get(0).getFile()).getWidth()).isEqualTo(160);
+        assertThat(originalsRead).hasValue(1);
+        assertThat(io.meterRegistry().counter("images.thumbnails.generated").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void aWidthLargerThanAnyShouldGetTheLargestThumbnail() throws IOException {
+        // when
+        Resource thumbnail = thumbnailService.thumbnail(image, 1000).block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(ImageIO.read(thumbnail.getFile()).getWidth()).isEqualTo(320);
+        assertThat(thumbnail.getFile().toPath())
+                .isEqualTo(io.root().resolve("thumbnails").resolve("3fa9c2").resolve("320.png"));
+    }
+}
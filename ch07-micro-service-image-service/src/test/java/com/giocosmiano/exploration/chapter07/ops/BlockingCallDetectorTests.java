@@ -0,0 +1,101 @@
+package com.giocosmiano.exploration.chapter07.ops;
+
+import com.giocosmiano.exploration.chapter07.images.service.FileIoScheduler;
+import com.giocosmiano.exploration.chapter07.ops.BlockingCallDetector.BlockingCallException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class BlockingCallDetectorTests {
+
+	/*
+	 The detector in fail mode, the way the test task runs it. Reading a file on one of the threads that must
+	 never block fails, reading it on the FileIoScheduler's image-io-* threads doesn't, and neither does loading
+	 a class on a thread that must never block
+	 */
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public final BlockingCallDetector blockingCalls =
+			new BlockingCallDetector("fail", "reactor-http-", "parallel-", "single-");
+
+	private Path image;
+	private Scheduler eventLoop;
+
+	@Before
+	public void setUp() throws Exception {
+		image = folder.newFile("cover.jpg").toPath();
+		Files.write(image, "not really a JPEG".getBytes(StandardCharsets.UTF_8));
+		eventLoop = Schedulers.newSingle("reactor-http-nio");
+	}
+
+	@After
+	public void tearDown() {
+		eventLoop.dispose();
+	}
+
+	@Test
+	public void readingAFileOnAnEventLoopShouldFail() {
+		assertThatThrownBy(() -> Mono.fromCallable(() -> Files.readAllBytes(image))
+				.subscribeOn(eventLoop)
+				.block(Duration.ofSeconds(5)))
+				.isInstanceOf(BlockingCallException.class)
+				.hasMessageContaining("reactor-http-nio");
+	}
+
+	@Test
+	public void readingAFileOnTheParallelSchedulerShouldFail() {
+		assertThatThrownBy(() -> Mono.fromCallable(() -> Files.readAllBytes(image))
+				.subscribeOn(Schedulers.parallel())
+				.block(Duration.ofSeconds(5)))
+				.isInstanceOf(BlockingCallException.class)
+				.hasMessageContaining("parallel-");
+	}
+
+	@Test
+	public void readingAFileOnTheFileIoSchedulerShouldNotFail() {
+		FileIoScheduler fileIoScheduler = new FileIoScheduler(new SimpleMeterRegistry(), 2, 16);
+		try {
+			byte[] read = Mono.just(image)
+					.subscribeOn(eventLoop)
+					.flatMap(path -> fileIoScheduler.call(() -> Files.readAllBytes(path)))
+					.block(Duration.ofSeconds(5));
+
+			assertThat(new String(read, StandardCharsets.UTF_8)).isEqualTo("not really a JPEG");
+		} finally {
+			fileIoScheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void loadingAClassOnAnEventLoopShouldNotFail() {
+		String loaded = Mono.fromCallable(() -> new NotLoadedYet().toString())
+				.subscribeOn(eventLoop)
+				.block(Duration.ofSeconds(5));
+
+		assertThat(loaded).isEqualTo("loaded");
+	}
+
+	private static class NotLoadedYet {
+
+		@Override
+		public String toString() {
+			return "loaded";
+		}
+	}
+}
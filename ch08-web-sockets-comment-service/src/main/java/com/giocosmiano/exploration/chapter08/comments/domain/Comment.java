@@ -2,14 +2,21 @@ package com.giocosmiano.exploration.chapter08.comments.domain;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Data
 @Document
 public class Comment {
 
+    /*
+     Comments are always looked up by the image they belong to (see CommentController), so imageId is
+     @Indexed, which has Spring Data MongoDB create the index on startup
+     */
+
     @Id
     private String id;
+    @Indexed
     private String imageId;
     private String comment;
 
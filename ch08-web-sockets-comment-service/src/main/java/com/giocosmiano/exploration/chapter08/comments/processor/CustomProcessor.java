@@ -8,6 +8,7 @@ import org.springframework.messaging.SubscribableChannel;
 public interface CustomProcessor {
     String INPUT = "input";
     String OUTPUT = "emptyOutput";
+    String BATCH_INPUT = "batchInput";
 
     /*
      It has two channel names, INPUT and OUTPUT. The INPUT channel uses the same as Processor. To avoid
@@ -20,6 +21,9 @@ public interface CustomProcessor {
      Spring Cloud Stream is Reactor-friendly. When dealing with Reactive Streams, our code
      shouldn't be the termination point for processing. So, receiving an incoming Flux of Comment objects must
      result in an outgoing Flux that the framework can invoke
+
+     BATCH_INPUT is where the images service sends the comments, a batch of them to a message, when it batches
+     them (its comments.publish.batching). It's bound to a destination of its own, in the same consumer group
      */
 
     @Input(CustomProcessor.INPUT)
@@ -27,4 +31,7 @@ public interface CustomProcessor {
 
     @Output(CustomProcessor.OUTPUT)
     MessageChannel output();
+
+    @Input(CustomProcessor.BATCH_INPUT)
+    SubscribableChannel batchInput();
 }
@@ -5,6 +5,8 @@ import org.springframework.data.repository.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface CommentRepository
         extends Repository<Comment, String> {
 
@@ -25,6 +27,12 @@ public interface CommentRepository
      */
     Flux<Comment> findByImageId(String imageId);
 
+    /*
+     The comments of all of the given images in a single query ($in on the imageId index), sorted by image so
+     each image's comments arrive next to each other
+     */
+    Flux<Comment> findByImageIdInOrderByImageId(Collection<String> imageIds);
+
     Flux<Comment> saveAll(Flux<Comment> newComment);
 
     Mono<Comment> save(Comment newComment);
@@ -0,0 +1,292 @@
+package com.giocosmiano.exploration.chapter08.comments.service;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+@Component
+public class CommentWriter {
+
+    /*
+     Saves the comments coming in a batch at a time, rather than one insert (and one round trip) per comment like
+     CommentRepository.saveAll() does
+
+     Comments are collected until comments.writer.max-batch-size of them are there, or
+     comments.writer.max-delay-ms after the first one came in, whichever comes first, then written with a single
+     unordered insertMany. Being unordered, MongoDB goes on with the rest of a batch when one of its comments
+     can't be inserted (e.g. a duplicate id). At most comments.writer.max-in-flight batches are being written at
+     a time, the comments still come out in the order they came in
+
+     A batch is cut when it's full or its time is up, whether or not a write can take it yet. bufferTimeout()
+     can't hold a batch back, it fails the whole stream (and the comments service stops consuming) when it has
+     one ready and nothing asked for it, e.g. max-in-flight writes still going when max-delay-ms is up. So the
+     batches that are ready wait in between, up to comments.writer.max-pending-batches of them (so at most that
+     many times comments.writer.max-batch-size comments). Should that be full too, the batch that just got cut
+     is failed (see dropped()) rather than the stream
+
+     Each comment has its id before it's written (one is made up for a comment coming without), so only the
+     comments that made it are handed on (with their id), and a failure is tied back to the very comments it's
+     about: a write error to the comment at its index in the batch, anything else (e.g. the connection dropped)
+     to all of the batch. Failed comments are logged, counted (comments.writer.failed) and left out, the others
+     go on as if nothing happened
+
+     The comments come with their id already (the images service gives them one as they're posted), so the very
+     same comment coming in twice (e.g. redelivered by RabbitMQ after a restart) has the same id both times. It's
+     skipped right away when its id is among the RecentIds, or is still on its way through (see below), and
+     otherwise its insert fails on the _id's unique index, which is the fallback. Either way it isn't a failure.
+     Both are counted (comments.dedup.skipped and comments.dedup.duplicates). No comment is ever looked up before
+     it's written
+
+     A comment is on its way from the moment it's let through, in the batch being filled or one being written,
+     until CommentService is done summarizing it (see release()), or it turns out it won't be handed on. A copy
+     coming in meanwhile, e.g. a client posting the same comment again, is skipped. Otherwise both would be
+     handed on, and summarized twice
+
+     Every comment is written with summarized: false, and CommentService flips it (see summarized()) once the
+     comment has made it into its image's CommentSummary. A duplicate is only handed on again when its stored
+     copy still isn't summarized (its summary failed, or the instance went down before getting to it), so it's
+     summarized this time around instead of never. Finding those takes a single query, and only for the
+     batches that ran into duplicates. Since copies on their way are skipped, the stored copy isn't on its way
+     through this instance anymore
+
+     How many comments each write holds (comments.writer.batch-size), how long it takes
+     (comments.writer.latency), and how many comments are being written at the moment (comments.writer.in-flight)
+     are all recorded
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(CommentWriter.class);
+
+    private static final String SUMMARIZED = "summarized";
+
+    private final ReactiveMongoOperations operations;
+    private final RecentIds recentIds;
+    private final int maxBatchSize;
+    private final Duration maxDelay;
+    private final int maxInFlight;
+    private final int maxPendingBatches;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<String> underway = ConcurrentHashMap.newKeySet();
+    private final DistributionSummary batchSize;
+    private final Timer latency;
+    private final Counter failed;
+    private final Counter skipped;
+    private final Counter duplicates;
+
+    public CommentWriter(ReactiveMongoOperations operations,
+                         RecentIds recentIds,
+                         MeterRegistry meterRegistry,
+                         @Value("${comments.writer.max-batch-size:500}") int maxBatchSize,
+                         @Value("${comments.writer.max-delay-ms:20}") long maxDelayMs,
+                         @Value("${comments.writer.max-in-flight:2}") int maxInFlight,
+                         @Value("${comments.writer.max-pending-batches:64}") int maxPendingBatches) {
+        this.operations = operations;
+        this.recentIds = recentIds;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = Duration.ofMillis(maxDelayMs);
+        this.maxInFlight = maxInFlight;
+        this.maxPendingBatches = maxPendingBatches;
+
+        this.batchSize = meterRegistry.summary("comments.writer.batch-size");
+        this.latency = meterRegistry.timer("comments.writer.latency");
+        this.failed = meterRegistry.counter("comments.writer.failed");
+        this.skipped = meterRegistry.counter("comments.dedup.skipped");
+        this.duplicates = meterRegistry.counter("comments.dedup.duplicates");
+        meterRegistry.gauge("comments.writer.in-flight", inFlight);
+    }
+
+    /*
+     The comments that have been saved, a batch at a time, in the order they came in
+     */
+    public Flux<List<Comment>> saveAll(Flux<Comment> comments) {
+        return comments
+                .filter(comment -> {
+                    if (comment.getId() == null) {
+                        comment.setId(new ObjectId().toHexString());
+                    }
+                    if (recentIds.contains(comment.getId()) || !underway.add(comment.getId())) {
+                        skipped.increment();
+                        return false;
+                    }
+                    return true;
+                })
+                .bufferTimeout(maxBatchSize, maxDelay)
+                .onBackpressureBuffer(maxPendingBatches, this::dropped, BufferOverflowStrategy.DROP_LATEST)
+                .flatMapSequential(this::insert, maxInFlight)
+                .filter(saved -> !saved.isEmpty())
+                .log("commentWriter-saveAll");
+    }
+
+    /*
+     Once the comments handed on have been summarized (or not, if that failed), they're no longer on their way,
+     and a copy of them coming in is handled as a duplicate
+     */
+    public void release(List<Comment> comments) {
+        comments.forEach(comment -> underway.remove(comment.getId()));
+    }
+
+    /*
+     Marks the comments as summarized, with a single update
+     */
+    public Mono<Void> summarized(List<Comment> comments) {
+        return Mono.from(operations
+                .getCollection(collection())
+                .updateMany(Filters.in("_id", ids(comments)), Updates.set(SUMMARIZED, true)))
+                .then();
+    }
+
+    /*
+     A batch there was no room for, its comments are failed, and they're no longer on their way
+     */
+    private void dropped(List<Comment> batch) {
+        failed.increment(batch.size());
+        log.warn("Couldn't save " + batch.size() + " comments, " + maxPendingBatches
+                + " batches are waiting to be written already");
+        release(batch);
+    }
+
+    private Mono<List<Comment>> insert(List<Comment> batch) {
+        return Mono.defer(() -> {
+            List<Document> documents = new ArrayList<>(batch.size());
+            for (Comment comment : batch) {
+                Document document = new Document();
+                operations.getConverter().write(comment, document);
+                document.put(SUMMARIZED, false);
+                documents.add(document);
+            }
+
+            inFlight.addAndGet(batch.size());
+            long start = System.nanoTime();
+            return Mono.from(operations
+                    .getCollection(collection())
+                    .insertMany(documents, new InsertManyOptions().ordered(false)))
+                    .thenReturn(batch)
+                    .onErrorResume(e -> saved(batch, e))
+                    .doOnNext(saved -> {
+                        saved.forEach(comment -> recentIds.add(comment.getId()));
+                        if (saved.size() < batch.size()) {
+                            Set<Comment> handedOn = Collections.newSetFromMap(new IdentityHashMap<>());
+                            handedOn.addAll(saved);
+                            batch.stream()
+                                    .filter(comment -> !handedOn.contains(comment))
+                                    .forEach(comment -> underway.remove(comment.getId()));
+                        }
+                    })
+                    .doFinally(signal -> {
+                        inFlight.addAndGet(-batch.size());
+                        batchSize.record(batch.size());
+                        latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    });
+        });
+    }
+
+    private Mono<List<Comment>> saved(List<Comment> batch, Throwable e) {
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        if (e instanceof MongoBulkWriteException) {
+            for (BulkWriteError error : ((MongoBulkWriteException) e).getWriteErrors()) {
+                errors.put(error.getIndex(), error);
+            }
+        }
+
+        List<Comment> inserted = new ArrayList<>(batch.size());
+        List<Comment> duplicated = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Comment comment = batch.get(i);
+            BulkWriteError error = errors.get(i);
+            if (error != null
+                    && ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                duplicates.increment();
+                duplicated.add(comment);
+            } else if (error != null || errors.isEmpty()) {
+                failed.increment();
+                log.warn("Couldn't save comment " + comment.getId() + " of image " + comment.getImageId()
+                        + ": " + (error != null ? error.getMessage() : e.toString()));
+            } else {
+                inserted.add(comment);
+            }
+        }
+        if (duplicated.isEmpty()) {
+            return Mono.just(inserted);
+        }
+
+        return unsummarized(duplicated)
+                .onErrorResume(lookup -> {
+                    log.warn("Couldn't tell whether " + duplicated.size() + " duplicate comments were summarized: "
+                            + lookup);
+                    return Mono.just(Collections.emptySet());
+                })
+                .map(unsummarized -> {
+                    duplicated.forEach(comment -> {
+                        if (!unsummarized.contains(comment.getId())) {
+                            recentIds.add(comment.getId());
+                        }
+                    });
+                    List<Comment> saved = new ArrayList<>(inserted.size() + unsummarized.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        Comment comment = batch.get(i);
+                        if (!errors.containsKey(i) || unsummarized.contains(comment.getId())) {
+                            saved.add(comment);
+                        }
+                    }
+                    return saved;
+                });
+    }
+
+    /*
+     The ids of the given (already stored) comments that haven't been summarized yet
+     */
+    private Mono<Set<String>> unsummarized(List<Comment> comments) {
+        return Flux.from(operations
+                .getCollection(collection())
+                .find(Filters.and(Filters.in("_id", ids(comments)), Filters.eq(SUMMARIZED, false)))
+                .projection(Projections.include("_id")))
+                .map(document -> String.valueOf(document.get("_id")))
+                .collect(Collectors.toSet());
+    }
+
+    private static List<Object> ids(List<Comment> comments) {
+        List<Object> ids = new ArrayList<>(comments.size());
+        for (Comment comment : comments) {
+            ids.add(ObjectId.isValid(comment.getId()) ? new ObjectId(comment.getId()) : comment.getId());
+        }
+        return ids;
+    }
+
+    private String collection() {
+        return operations.getConverter().getMappingContext()
+                .getRequiredPersistentEntity(Comment.class)
+                .getCollection();
+    }
+}
@@ -0,0 +1,45 @@
+package com.giocosmiano.exploration.chapter08.comments.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class HeavyHittersTests {
+
+    /*
+     HeavyHitters with 10 counters, fed 1000 keys seen once each (the long tail), with three hot keys seen 200
+     times each mixed in among them. That's 1600 keys, so any key seen more than 160 times has to be tracked
+
+     The three hot keys are, and come out on top, each with a count that's an upper bound of how often it was
+     seen, and count - error a lower bound. The long tail never takes more than the 10 counters there are
+     */
+
+    private static final List<String> HOT = Arrays.asList("hot-1", "hot-2", "hot-3");
+
+    @Test(timeout = 10000)
+    public void anyKeySeenMoreThanTotalOverCapacityShouldBeKept() {
+        // given
+        HeavyHitters heavyHitters = new HeavyHitters(10);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.add("tail-" + i);
+            if (i % 5 == 0) {
+                HOT.forEach(heavyHitters::add);
+            }
+        }
+
+        // then
+        assertThat(heavyHitters.total()).isEqualTo(1600);
+        assertThat(heavyHitters.size()).isEqualTo(10);
+        List<HeavyHitters.Hitter> top = heavyHitters.top(3);
+        assertThat(top).extracting(HeavyHitters.Hitter::getKey).containsExactlyInAnyOrderElementsOf(HOT);
+        assertThat(top).allSatisfy(hitter -> {
+            assertThat(hitter.getCount()).isGreaterThanOrEqualTo(200);
+            assertThat(hitter.getCount() - hitter.getError()).isLessThanOrEqualTo(200);
+        });
+    }
+}
@@ -0,0 +1,187 @@
+package com.giocosmiano.exploration.chapter08.comments.service;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.Success;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class CommentWriterTests {
+
+    /*
+     The CommentWriter on its own, over an in-memory stand-in for the comments collection, whose inserts take
+     insertDelay to complete. A comment whose text is INVALID fails to insert the way a document failing
+     validation does, with a write error at its index, and while unreachable every insert fails altogether, the
+     way it does when the connection drops
+
+     A write error only fails the comment it's about, the rest of its batch is saved and handed on. Any other
+     failure fails the whole batch, and a failed comment is no longer on its way, so it goes through once it's
+     posted again
+     */
+
+    private static final String IMAGE_ID = "image-1";
+    private static final String INVALID = "INVALID";
+
+    private final Map<String, Document> comments = new ConcurrentHashMap<>();
+
+    private MeterRegistry meterRegistry;
+    private ReactiveMongoOperations operations;
+    private Duration insertDelay = Duration.ZERO;
+    private volatile boolean unreachable;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(mock(DbRefResolver.class), mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+
+        MongoCollection<Document> commentCollection = mock(MongoCollection.class);
+        when(commentCollection.insertMany(anyList(), any()))
+                .thenAnswer(invocation -> insert(invocation.getArgument(0)));
+
+        operations = mock(ReactiveMongoOperations.class);
+        when(operations.getConverter()).thenReturn(converter);
+        when(operations.getCollection("comment")).thenReturn(commentCollection);
+    }
+
+    @Test(timeout = 10000)
+    public void commentsTricklingInWhileWritesAreSlowShouldAllBeSaved() {
+        // given (every write outlasts several max-delay-ms, so batches are cut with both writes under way)
+        insertDelay = Duration.ofMillis(200);
+        CommentWriter commentWriter = commentWriter(500, 20, 2);
+
+        // when
+        List<Comment> saved = commentWriter
+                .saveAll(Flux.interval(Duration.ofMillis(30))
+                        .take(20)
+                        .map(i -> comment(new ObjectId().toHexString())))
+                .flatMapIterable(batch -> batch)
+                .collectList()
+                .block(Duration.ofSeconds(8));
+
+        // then
+        assertThat(saved).hasSize(20);
+        assertThat(comments).hasSize(20);
+        assertThat(meterRegistry.counter("comments.writer.failed").count()).isZero();
+    }
+
+    @Test(timeout = 10000)
+    public void aWriteErrorShouldOnlyFailTheCommentItIsAbout() {
+        // given
+        CommentWriter commentWriter = commentWriter(10, 50, 2);
+        Comment alpha = comment(new ObjectId().toHexString());
+        Comment invalid = new Comment(new ObjectId().toHexString(), IMAGE_ID, INVALID);
+        Comment charlie = comment(new ObjectId().toHexString());
+
+        // when
+        List<Comment> saved = save(commentWriter, alpha, invalid, charlie);
+
+        // then
+        assertThat(saved).containsExactly(alpha, charlie);
+        assertThat(comments).containsOnlyKeys(alpha.getId(), charlie.getId());
+        assertThat(meterRegistry.counter("comments.writer.failed").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void anyOtherFailureShouldFailTheWholeBatch() {
+        // given
+        CommentWriter commentWriter = commentWriter(10, 50, 2);
+        Comment alpha = comment(new ObjectId().toHexString());
+        Comment bravo = comment(new ObjectId().toHexString());
+        unreachable = true;
+
+        // when
+        List<Comment> saved = save(commentWriter, alpha, bravo);
+
+        // then
+        assertThat(saved).isEmpty();
+        assertThat(comments).isEmpty();
+        assertThat(meterRegistry.counter("comments.writer.failed").count()).isEqualTo(2);
+
+        // and when
+        unreachable = false;
+        saved = save(commentWriter, alpha, bravo);
+
+        // then
+        assertThat(saved).containsExactly(alpha, bravo);
+        assertThat(comments).containsOnlyKeys(alpha.getId(), bravo.getId());
+    }
+
+    private CommentWriter commentWriter(int maxBatchSize, long maxDelayMs, int maxInFlight) {
+        return new CommentWriter(operations, new RecentIds(meterRegistry, 100, 60000), meterRegistry,
+                maxBatchSize, maxDelayMs, maxInFlight, 64);
+    }
+
+    private static List<Comment> save(CommentWriter commentWriter, Comment... newComments) {
+        return commentWriter
+                .saveAll(Flux.just(newComments))
+                .flatMapIterable(batch -> batch)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    private static Comment comment(String id) {
+        return new Comment(id, IMAGE_ID, "Nice!");
+    }
+
+    /*
+     Like an unordered insertMany, everything that can be inserted is, and the documents that couldn't be are
+     reported at their index
+     */
+    private Mono<Success> insert(List<Document> documents) {
+        return Mono.delay(insertDelay)
+                .then(Mono.defer(() -> {
+                    if (unreachable) {
+                        return Mono.error(new MongoSocketReadException("Gone", new ServerAddress()));
+                    }
+                    List<BulkWriteError> errors = new ArrayList<>();
+                    for (int i = 0; i < documents.size(); i++) {
+                        Document document = documents.get(i);
+                        if (INVALID.equals(document.get("comment"))) {
+                            errors.add(new BulkWriteError(121, "Document failed validation", new BsonDocument(), i));
+                        } else {
+                            comments.put(String.valueOf(document.get("_id")), document);
+                        }
+                    }
+                    return errors.isEmpty()
+                            ? Mono.just(Success.SUCCESS)
+                            : Mono.error(new MongoBulkWriteException(BulkWriteResult.unacknowledged(), errors,
+                            null, new ServerAddress()));
+                }));
+    }
+}
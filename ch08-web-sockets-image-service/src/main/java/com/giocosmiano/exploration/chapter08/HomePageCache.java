@@ -0,0 +1,221 @@
+package com.giocosmiano.exploration.chapter08;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.comments.view.CommentView;
+import com.giocosmiano.exploration.chapter08.comments.view.ViewedComments;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter08.images.domain.ImagePage;
+import com.giocosmiano.exploration.chapter08.images.service.ImageService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+@Component
+public class HomePageCache {
+
+    /*
+     Puts together what the home page's template is rendered from, the rows of a page of images (each image's
+     id, name and comments) and the cursor of the page that follows
+
+     The first page is what every visit of the home page asks for, and it only changes when an image is created
+     or deleted, or one of its images gets a comment. So it's kept around, and only put together again after one
+     of these happened, rather than on every visit:
+     - ImageService publishes an ImageEvent for every image it creates or deletes
+     - CommentView publishes every saved comment, which only matters when it's about an image on that page
+
+     Either of them simply bumps a version. The page that's kept is then stale, but it's still served, to every
+     request, while a single one of them puts the new page together in the background (stale-while-revalidate).
+     The requests don't wait on it, nor on each other, and a burst of comments costs one rebuild at a time, not
+     one per request. Only when there's no page at all yet (right after startup) do the requests wait, and then
+     they all wait on the very same rebuild
+
+     A page put together while the comments of some of its images couldn't be backfilled (see ViewedComments)
+     is served, but kept as stale already, so the next request puts it together again rather than serving it
+     without those comments until the TTL is up
+
+     Those events never leave the instance they happened on though. An image uploaded through another instance
+     only shows up once the page is older than images.home-cache.ttl-ms, which then goes stale as well
+
+     Thymeleaf still renders the page on every request (links depend on the request), but from a ready-made list,
+     without going to MongoDB or the CommentView. Served pages are counted (images.home-cache.hits, .stale and
+     .misses, the latter being the requests that had to wait), and so are rebuilds (images.home-cache.rebuilds)
+
+     Any other page (GET /images?after=...), or the first one when the cache is off, is put together on every
+     request, the page itself (findPage(), which holds the cursor of the next one) first, then its rows (rows())
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(HomePageCache.class);
+
+    private static final long STALE = -1;
+
+    private final ImageService imageService;
+    private final CommentView commentView;
+    private final int pageSize;
+    private final boolean enabled;
+    private final long ttlMs;
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<MonoProcessor<HomePage>> rebuilding = new AtomicReference<>();
+    private volatile HomePage current;
+
+    private final Counter hits;
+    private final Counter stale;
+    private final Counter misses;
+    private final Counter rebuilds;
+
+    public HomePageCache(ImageService imageService,
+                         CommentView commentView,
+                         MeterRegistry meterRegistry,
+                         @Value("${images.page.size:20}") int pageSize,
+                         @Value("${images.home-cache.enabled:true}") boolean enabled,
+                         @Value("${images.home-cache.ttl-ms:30000}") long ttlMs) {
+        this.imageService = imageService;
+        this.commentView = commentView;
+        this.pageSize = pageSize;
+        this.enabled = enabled;
+        this.ttlMs = ttlMs;
+
+        this.hits = meterRegistry.counter("images.home-cache.hits");
+        this.stale = meterRegistry.counter("images.home-cache.stale");
+        this.misses = meterRegistry.counter("images.home-cache.misses");
+        this.rebuilds = meterRegistry.counter("images.home-cache.rebuilds");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Mono<HomePage> firstPage() {
+        return Mono.defer(() -> {
+            HomePage page = current;
+            if (page == null) {
+                misses.increment();
+                return rebuild();
+            }
+            if (page.version != version.get()
+                    || System.currentTimeMillis() - page.builtAt > ttlMs) {
+                stale.increment();
+                rebuild().subscribe(
+                        rebuilt -> {},
+                        e -> log.warn("Couldn't rebuild the home page", e));
+            } else {
+                hits.increment();
+            }
+            return Mono.just(page);
+        })
+                .log("homePageCache-firstPage");
+    }
+
+    public Mono<ImagePage> findPage(String after) {
+        return imageService.findImagePage(after, pageSize);
+    }
+
+    public Flux<Map<String, Object>> rows(ImagePage imagePage) {
+        return commentView
+                .getComments(imagePage.getImages())
+                .flatMapIterable(comments -> rows(imagePage, comments))
+                .log("homePageCache-rows");
+    }
+
+    private static List<Map<String, Object>> rows(ImagePage imagePage, ViewedComments comments) {
+        return imagePage.getImages().stream()
+                .map(image -> {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", image.getId());
+                    row.put("name", image.getName());
+                    row.put("comments", comments.getComments().getOrDefault(
+                            image.getId(), Collections.emptyList()));
+                    return row;
+                })
+                .collect(Collectors.toList());
+    }
+
+    @EventListener
+    public void onImage(ImageEvent event) {
+        version.incrementAndGet();
+    }
+
+    @EventListener
+    public void onComment(Comment comment) {
+        HomePage page = current;
+        if (page != null && page.imageIds.contains(comment.getImageId())) {
+            version.incrementAndGet();
+        }
+    }
+
+    /*
+     The first request to find the page stale starts the rebuild, the others get the one under way. The
+     version is read before the page is put together, so an event coming in meanwhile makes it stale right away.
+     A page missing some of its comments gets a version that's never current (STALE) for the same reason. The
+     rebuild isn't tied to any request, a request going away doesn't cancel it
+     */
+    private Mono<HomePage> rebuild() {
+        while (true) {
+            MonoProcessor<HomePage> underway = rebuilding.get();
+            if (underway != null) {
+                return underway;
+            }
+            MonoProcessor<HomePage> rebuilt = MonoProcessor.create();
+            if (rebuilding.compareAndSet(null, rebuilt)) {
+                rebuilds.increment();
+                firstPage(version.get())
+                        .doOnNext(page -> current = page)
+                        .doFinally(signal -> rebuilding.compareAndSet(rebuilt, null))
+                        .subscribe(rebuilt);
+                return rebuilt;
+            }
+        }
+    }
+
+    private Mono<HomePage> firstPage(long version) {
+        return findPage(null)
+                .flatMap(imagePage -> commentView
+                        .getComments(imagePage.getImages())
+                        .map(comments -> new HomePage(rows(imagePage, comments),
+                                imagePage.getNext() == null ? "" : imagePage.getNext(),
+                                comments.isComplete() ? version : STALE)))
+                .log("homePageCache-page");
+    }
+
+    public static class HomePage {
+
+        private final List<Map<String, Object>> images;
+        private final String next;
+        private final Set<String> imageIds;
+        private final long version;
+        private final long builtAt = System.currentTimeMillis();
+
+        private HomePage(List<Map<String, Object>> images, String next, long version) {
+            this.images = Collections.unmodifiableList(images);
+            this.next = next;
+            this.imageIds = images.stream()
+                    .map(image -> (String) image.get("id"))
+                    .collect(Collectors.toSet());
+            this.version = version;
+        }
+
+        public List<Map<String, Object>> getImages() {
+            return images;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+}
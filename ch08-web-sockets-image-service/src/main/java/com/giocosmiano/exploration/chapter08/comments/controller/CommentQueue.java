@@ -0,0 +1,242 @@
+package com.giocosmiano.exploration.chapter08.comments.controller;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+public class CommentQueue {
+
+    /*
+     The comments posted to the CommentController, on their way to the comments service, see messages()
+
+     It used to be a FluxSink ignoring back-pressure. Whenever RabbitMQ was slow to take the comments, they piled
+     up in memory without any limit, and a comment posted before Spring Cloud Stream had subscribed was simply
+     dropped. Now they wait in a bounded queue, at most comments.ingest.capacity of them, and are only handed on
+     as fast as the channel takes them. A comment posted before the channel is there just waits for it
+
+     The channel asks for everything at once (Spring Cloud Stream subscribes with unbounded demand), and sending
+     a message is a blocking publish to RabbitMQ. So the comments are sent from a thread of their own
+     (comment-publish), which only takes comments.ingest.prefetch of them off the queue at a time, and the next
+     ones once those are sent. Whoever posts a comment only ever queues it, a slow broker holds up the
+     comment-publish thread, never a request thread, and the comments wait in the queue meanwhile
+
+     When the queue is full, comments.ingest.overflow decides what happens to the comment being posted
+       reject (default) - it's turned down, and the CommentController answers with a 503
+       drop-oldest - the comment that has been waiting the longest is dropped to make room for it
+       block - it waits up to comments.ingest.block-timeout-ms for some room, then it's turned down. The waiting
+               is done on Reactor's elastic scheduler, never on the Netty event loop
+
+     The queue's depth is a gauge (comments.ingest.queue.depth), comments turned down and dropped are counted
+     (comments.ingest.rejected and comments.ingest.dropped), and how long a comment waits before it's handed on
+     is timed (comments.ingest.publish-latency), which is what to size the capacity by under peak load
+
+     The comments are either handed on one message each (messages()), or a batch of them to a message
+     (batches()), see CommentController
+     */
+
+    public static final String BATCH_SIZE_HEADER = "comment-batch-size";
+
+    public enum Overflow {
+        REJECT, DROP_OLDEST, BLOCK
+    }
+
+    private final BlockingQueue<Pending> queue;
+    private final Overflow overflow;
+    private final long blockTimeoutMs;
+    private final int prefetch;
+    private final Scheduler publisher;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile FluxSink<Pending> sink;
+
+    private final Counter rejected;
+    private final Counter dropped;
+    private final Timer publishLatency;
+    private final DistributionSummary batchSize;
+    private final Timer batchDelay;
+
+    public CommentQueue(MeterRegistry meterRegistry,
+                        @Value("${comments.ingest.capacity:1000}") int capacity,
+                        @Value("${comments.ingest.overflow:reject}") String overflow,
+                        @Value("${comments.ingest.block-timeout-ms:100}") long blockTimeoutMs,
+                        @Value("${comments.ingest.prefetch:16}") int prefetch) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflow = Overflow.valueOf(overflow.trim().toUpperCase().replace('-', '_'));
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.prefetch = Math.max(prefetch, 1);
+        this.publisher = Schedulers.newSingle("comment-publish");
+
+        this.rejected = meterRegistry.counter("comments.ingest.rejected");
+        this.dropped = meterRegistry.counter("comments.ingest.dropped");
+        this.publishLatency = meterRegistry.timer("comments.ingest.publish-latency");
+        this.batchSize = meterRegistry.summary("comments.publish.batch-size");
+        this.batchDelay = meterRegistry.timer("comments.publish.batch-delay");
+        meterRegistry.gauge("comments.ingest.queue.depth", queue, BlockingQueue::size);
+    }
+
+    /*
+     Completes with true once the message has been queued, false when it has been turned down
+     */
+    public Mono<Boolean> offer(Message<Comment> message) {
+        Pending pending = new Pending(message);
+        Mono<Boolean> queued;
+        switch (overflow) {
+            case DROP_OLDEST:
+                queued = Mono.fromSupplier(() -> {
+                    while (!queue.offer(pending)) {
+                        if (queue.poll() != null) {
+                            dropped.increment();
+                        }
+                    }
+                    return true;
+                });
+                break;
+            case BLOCK:
+                queued = Mono.fromCallable(() -> queue.offer(pending)
+                        || queue.offer(pending, blockTimeoutMs, TimeUnit.MILLISECONDS))
+                        .subscribeOn(Schedulers.elastic());
+                break;
+            default:
+                queued = Mono.fromSupplier(() -> queue.offer(pending));
+        }
+        return queued
+                .doOnNext(accepted -> {
+                    if (accepted) {
+                        drain();
+                    } else {
+                        rejected.increment();
+                    }
+                });
+    }
+
+    /*
+     The queued messages, handed on (on the comment-publish thread) no faster than they're sent. There's a single
+     subscriber at a time (the @StreamEmitter), a new one takes over from the previous one, and whatever is left
+     in the queue when a subscriber goes away waits for the next one. The few comments already taken off the
+     queue (comments.ingest.prefetch at most) go away with it though
+     */
+    public Flux<Message<Comment>> messages() {
+        return pending()
+                .publishOn(publisher, prefetch)
+                .map(pending -> {
+                    publishLatency.record(System.nanoTime() - pending.queuedAt, TimeUnit.NANOSECONDS);
+                    return pending.message;
+                })
+                .log("commentQueue-messages");
+    }
+
+    /*
+     The queued comments, a batch of them to a message, with a comment-batch-size header holding how many. A
+     batch is handed on as soon as it holds maxSize comments, or maxDelay after its first comment left the queue,
+     whichever comes first, so a quiet moment doesn't hold a comment back any longer than that. Either way, the
+     batch is sent on the comment-publish thread
+
+     How many comments the batches hold is recorded (comments.publish.batch-size), and so is how long the first
+     comment of each batch waited for it to be handed on (comments.publish.batch-delay)
+     */
+    public Flux<Message<List<Comment>>> batches(int maxSize, Duration maxDelay) {
+        return pending()
+                .publishOn(publisher, prefetch)
+                .bufferTimeout(maxSize, maxDelay, publisher)
+                .map(batch -> {
+                    long now = System.nanoTime();
+                    List<Comment> comments = new ArrayList<>(batch.size());
+                    for (Pending pending : batch) {
+                        publishLatency.record(now - pending.queuedAt, TimeUnit.NANOSECONDS);
+                        comments.add(pending.message.getPayload());
+                    }
+                    batchSize.record(batch.size());
+                    batchDelay.record(now - batch.get(0).queuedAt, TimeUnit.NANOSECONDS);
+                    return MessageBuilder
+                            .withPayload(comments)
+                            .setHeader(MessageHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setHeader(BATCH_SIZE_HEADER, batch.size())
+                            .build();
+                })
+                .log("commentQueue-batches");
+    }
+
+    private Flux<Pending> pending() {
+        return Flux.<Pending>create(emitter -> {
+            requested.set(0);
+            sink = emitter;
+            emitter.onRequest(n -> {
+                requested.accumulateAndGet(n, (current, more) ->
+                        current + more < 0 ? Long.MAX_VALUE : current + more);
+                drain();
+            });
+            emitter.onDispose(() -> {
+                if (sink == emitter) {
+                    sink = null;
+                }
+            });
+        });
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    @PreDestroy
+    public void close() {
+        publisher.dispose();
+    }
+
+    /*
+     Only ever runs on one thread at a time, whoever calls it while it's running has it go around once more
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            FluxSink<Pending> emitter = sink;
+            while (emitter != null && requested.get() > 0) {
+                Pending pending = queue.poll();
+                if (pending == null) {
+                    break;
+                }
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                emitter.next(pending);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private static class Pending {
+        private final Message<Comment> message;
+        private final long queuedAt = System.nanoTime();
+
+        private Pending(Message<Comment> message) {
+            this.message = message;
+        }
+    }
+}
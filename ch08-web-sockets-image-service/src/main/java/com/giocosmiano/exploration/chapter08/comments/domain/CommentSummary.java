@@ -0,0 +1,34 @@
+package com.giocosmiano.exploration.chapter08.comments.domain;
+
+import lombok.Data;
+
+import java.time.Instant;
+
+@Data
+public class CommentSummary {
+
+    /*
+     How many comments an image has, and its latest one, as handed out by the comments service's summaries
+     (POST /comments/summaries). An image without any comments has none there, see empty()
+     */
+
+    private String imageId;
+    private long count;
+    private String lastCommentId;
+    private String lastComment;
+    private Instant updatedAt;
+
+    public CommentSummary() {}
+
+    public CommentSummary(String imageId, long count, String lastCommentId, String lastComment, Instant updatedAt) {
+        this.imageId = imageId;
+        this.count = count;
+        this.lastCommentId = lastCommentId;
+        this.lastComment = lastComment;
+        this.updatedAt = updatedAt;
+    }
+
+    public static CommentSummary empty(String imageId) {
+        return new CommentSummary(imageId, 0, null, null, null);
+    }
+}
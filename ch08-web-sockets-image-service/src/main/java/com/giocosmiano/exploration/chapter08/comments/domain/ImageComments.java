@@ -0,0 +1,19 @@
+package com.giocosmiano.exploration.chapter08.comments.domain;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImageComments {
+
+    private String imageId;
+    private List<Comment> comments;
+
+    public ImageComments() {}
+
+    public ImageComments(String imageId, List<Comment> comments) {
+        this.imageId = imageId;
+        this.comments = comments;
+    }
+}
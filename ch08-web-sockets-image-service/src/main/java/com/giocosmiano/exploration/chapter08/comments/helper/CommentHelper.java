@@ -1,79 +1,173 @@
 package com.giocosmiano.exploration.chapter08.comments.helper;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.comments.domain.CommentSummary;
+import com.giocosmiano.exploration.chapter08.comments.domain.ImageComments;
 import com.giocosmiano.exploration.chapter08.images.domain.Image;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpMethod;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.netflix.hystrix.HystrixCommands;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
-
-import com.netflix.hystrix.contrib.javanica.annotation.HystrixCommand;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
 
 @Component
 public class CommentHelper {
 
-	private final RestTemplate restTemplate;
-
-	CommentHelper(RestTemplate restTemplate) {
-		this.restTemplate = restTemplate;
+	private final WebClient webClient;
+	private final Duration timeout;
+	private final Duration hedgeAfter;
+	private final int maxConcurrentRequests;
+	private final Counter hedges;
+
+	CommentHelper(WebClient commentsWebClient,
+				  MeterRegistry meterRegistry,
+				  @Value("${comments.client.timeout-ms:1000}") long timeoutMs,
+				  @Value("${comments.client.hedge-after-ms:0}") long hedgeAfterMs,
+				  @Value("${comments.client.max-concurrent-requests:100}") int maxConcurrentRequests) {
+		this.webClient = commentsWebClient;
+		this.timeout = Duration.ofMillis(timeoutMs);
+		this.hedgeAfter = Duration.ofMillis(hedgeAfterMs);
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.hedges = meterRegistry.counter("comments.client.hedges");
 	}
 
 	/*
-	 restTemplate.exchange() is the generic method for making remote calls. There are shortcuts such as
-	 getForObject() and getForEntity() , but when dealing with generics (such as List<Comment> ), we need to
-	 switch to exchange()
-
-	 First argument is the URL to the comments service that we just picked. It has the port number we
-	 selected along with the route ( /comments/{imageId} , a template) where we can serve up a list of
-	 comments based on the image's ID
-
-	 Second argument is the HTTP verb we wish to use-- GET
-
-	 Third argument is for headers and any body. Since this is a GET , there are none
-
-	 Fourth argument is the return type of the data. Due to limitations of Java's generics and type
-	 erasure, we have created a dedicated anonymous class to capture the type details for List<Comment> ,
-	 which Spring can use to interact with Jackson to properly deserialize
+	 The comments of a whole page of images, fetched with a single call to the comments service's batch
+	 endpoint ( POST /comments/batch ), and handed out keyed by image id. Images without any comments are simply
+	 missing from the map
+
+	 This used to be a RestTemplate call inside a @HystrixCommand. RestTemplate doesn't speak Reactive Streams,
+	 so every call tied up one of Hystrix's pool threads, while the (otherwise reactive) home page waited on it.
+	 Now it's a WebClient call, which is non-blocking from end to end, and the home page simply flatMaps the
+	 Mono it gets back
+
+	 The URL is still http://COMMENTS/comments/batch. COMMENTS is the logical name that our comments micro
+	 service registered itself with in Eureka. The WebClient comes from Config, with a
+	 LoadBalancerExchangeFilterFunction in front of it, which has Ribbon pick one of the COMMENTS instances for
+	 every request
+
+	 We ask for application/stream+json, so the comments are decoded one image at a time, as they arrive
+
+	 Every attempt is cut short after comments.client.timeout-ms. Optionally (comments.client.hedge-after-ms, off
+	 when 0), a second, hedged request is sent when the first one hasn't answered within that delay. Ribbon will
+	 most likely route it to another instance. Whichever answers first wins and the other one is cancelled. An
+	 attempt failing doesn't fail the call as long as the other one may still succeed. That way a single slow
+	 instance (a GC pause, a cold cache) doesn't hold up the whole page. Set the delay to about the call's 95th
+	 percentile latency, so only the slowest 5% of calls cost a second request. Hedged requests are counted
+	 (comments.client.hedges)
+
+	 The call is still guarded by a Hystrix circuit breaker, through HystrixCommands, the reactive flavor of
+	 @HystrixCommand. It's backed by a HystrixObservableCommand, which runs with semaphore isolation instead of a
+	 thread pool, at most comments.client.max-concurrent-requests at a time. Hystrix's own timeout is turned off
+	 in favor of the ones above. When the call fails, or the circuit is open, the fallback (defaultComments())
+	 completes empty, so the CommentView can tell "no answer" apart from "no comments", and doesn't remember
+	 anything. The page is then rendered without those comments. Its metrics still show up on /hystrix.stream
+
+	 There is some classic advice to offer when talking about Hystrix--be careful about using thread locals.
+	 However, the recommendation against thread locals is even stronger when we are talking about Reactor-powered
+	 applications, the basis for this entire book. That's because Project Reactor uses work stealing, a
+	 well-documented concept that involves different threads pulling work down when idle. Reactor's scheduler
+	 is thread agnostic, which means that we don't know where the work is actually being carried out. So
+	 don't use thread locals when writing Reactor applications. This impacts other areas too
+	 such as Spring Security, which uses thread locals to maintain contextual security status
+	 with SecurityContextHolder
+	 */
+	public Mono<Map<String, List<Comment>>> getComments(List<Image> images) {
+		if (images.isEmpty()) {
+			return Mono.just(Collections.emptyMap());
+		}
+
+		return guarded("comments",
+				hedged(request("/comments/batch", imageIds(images), ImageComments.class)
+						.collectMap(ImageComments::getImageId, ImageComments::getComments)
+						.timeout(timeout)),
+				defaultComments())
+				.log("getComments");
+	}
 
-	 Final argument is the parameter ( image.getId() ) that will be used to expand our URI template's
-	 {imageId} field
+	public Mono<Map<String, List<Comment>>> defaultComments() {
+		return Mono.empty();
+	}
 
-	 Since exchange() returns a Spring ResponseEntity<T> , we need to invoke the body() method to extract the
-	 response body
+	/*
+	 How many comments each of the given images has, and its latest one, keyed by image id, out of the comments
+	 service's summaries ( POST /comments/summaries ). It's much cheaper than getComments() for a listing that
+	 doesn't show the comments themselves, the comments service answers it without reading a single comment.
+	 Images without any comments are missing from the map
 
-	 The URL has been revamped into http://COMMENTS/comments/{imageId}. COMMENTS is the logical name that our
-	 comments micro service registered itself with in Eureka
+	 The call goes the same way as getComments(), with the same timeout, hedging, and a circuit breaker of its
+	 own (commentSummaries). When it fails, it completes empty as well
+	 */
+	public Mono<Map<String, CommentSummary>> getSummaries(List<Image> images) {
+		if (images.isEmpty()) {
+			return Mono.just(Collections.emptyMap());
+		}
+
+		return guarded("commentSummaries",
+				hedged(request("/comments/summaries", imageIds(images), CommentSummary.class)
+						.collectMap(CommentSummary::getImageId)
+						.timeout(timeout)),
+				Mono.empty())
+				.log("getSummaries");
+	}
 
-	 Hystrix commands operate using Spring AOP (Aspect Oriented Programming). The standard
-	 approach is through Java proxies (as opposed to AspectJ weaving, which requires extra setup). A well-
-	 known issue with proxies is that in-class invocations don't trigger the enclosing advice. Hence, the
-	 Hystrix command method must be put inside another Spring bean, and injected into our controller
+	private <T> Mono<T> guarded(String commandName, Mono<T> call, Mono<T> fallback) {
+		return HystrixCommands
+				.from(call)
+				.commandName(commandName)
+				.groupName("comments")
+				.commandProperties(properties -> properties
+						.withExecutionTimeoutEnabled(false)
+						.withExecutionIsolationSemaphoreMaxConcurrentRequests(maxConcurrentRequests)
+						.withFallbackIsolationSemaphoreMaxConcurrentRequests(maxConcurrentRequests))
+				.fallback(fallback)
+				.toMono();
+	}
 
-	 There is some classic advice to offer when talking about Hystrix's AOP advice--be careful
-	 about using thread locals. However, the recommendation against thread locals is even
-	 stronger when we are talking about Reactor-powered applications, the basis for this entire
-	 book. That's because Project Reactor uses work stealing, a well-documented concept that
-	 involves different threads pulling work down when idle. Reactor's scheduler is thread
-	 agnostic, which means that we don't know where the work is actually being carried out. So
-	 don't use thread locals when writing Reactor applications. This impacts other areas too
-	 such as Spring Security, which uses thread locals to maintain contextual security status
-	 with SecurityContextHolder
-	 */
-	@HystrixCommand(fallbackMethod = "defaultComments")
-	public List<Comment> getComments(Image image) {
-		return restTemplate.exchange(
-				"http://COMMENTS/comments/{imageId}",
-				HttpMethod.GET,
-				null,
-				new ParameterizedTypeReference<List<Comment>>() {}, // this is how to get around type-erasure in java
-				image.getId()).getBody();
+	private <T> Flux<T> request(String path, List<String> imageIds, Class<T> type) {
+		return webClient
+				.post()
+				.uri("http://COMMENTS" + path)
+				.contentType(MediaType.APPLICATION_JSON)
+				.accept(MediaType.APPLICATION_STREAM_JSON)
+				.syncBody(imageIds)
+				.retrieve()
+				.bodyToFlux(type);
+	}
 
+	private static List<String> imageIds(List<Image> images) {
+		return images.stream()
+				.map(Image::getId)
+				.collect(Collectors.toList());
 	}
 
-	public List<Comment> defaultComments(Image image) {
-		return Collections.emptyList();
+	/*
+	 Both attempts are materialized, so the first one to fail doesn't cancel the other. The first value wins
+	 (takeUntil cancels the other attempt, or the pending hedge). If both fail, the last failure goes through
+	 */
+	private <T> Mono<T> hedged(Mono<T> request) {
+		if (hedgeAfter.isZero() || hedgeAfter.isNegative()) {
+			return request;
+		}
+		return Flux
+				.merge(request.materialize(),
+						Mono.delay(hedgeAfter)
+								.doOnNext(tick -> hedges.increment())
+								.then(request)
+								.materialize())
+				.takeUntil(Signal::isOnNext)
+				.last()
+				.<T>dematerialize();
 	}
 }
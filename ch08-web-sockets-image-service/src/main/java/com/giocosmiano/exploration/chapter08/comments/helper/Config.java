@@ -1,9 +1,9 @@
 package com.giocosmiano.exploration.chapter08.comments.helper;
 
-import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.cloud.client.loadbalancer.reactive.LoadBalancerExchangeFilterFunction;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 
 @Configuration
 public class Config {
@@ -18,21 +18,32 @@ public class Config {
 	 The solution? We should tie in with Netflix's Ribbon service, a software load balancer that also
 	 integrates with Eureka. To do so, we only need some small additions to our images service
 
-	 First, let's create a RestTemplate object then mark this `class` as @Configuration
+	 First, let's create a WebClient object then mark this `class` as @Configuration
 
 	 @Configuration marks this as a configuration class containing bean definitions. Since it's located
-	 underneath SpringCloudImageApplication, it will be automatically picked up by component
+	 underneath WebSocketsImageApplication, it will be automatically picked up by component
 	 scanning
 
-	 @Bean marks the restTemplate() method as a bean definition
+	 @Bean marks the commentsWebClient() method as a bean definition
 
-	 restTemplate() method returns a plain old Spring RestTemplate instance
+	 commentsWebClient() method returns a plain old Spring WebClient, built from a clone of Boot's
+	 WebClient.Builder (so it keeps the application's codecs and customizers) with a
+	 LoadBalancerExchangeFilterFunction added, so it resolves logical hostnames (http://COMMENTS/...) through
+	 Ribbon and Eureka. This used to be a @LoadBalanced RestTemplate,
+	 which blocks. WebClient speaks Reactive Streams (see CommentHelper)
 
-	 @LoadBalanced instructs Netflix Ribbon to wrap this RestTemplate bean with load balancing advice
+	 The filter is added right here rather than through @LoadBalanced. Spring Cloud only adds it to @LoadBalanced
+	 builders once every singleton has been created, too late for a WebClient that is itself a singleton, built
+	 while the beans are still being created
+
+	 Boot's own WebClient.Builder is left as it is. Any other WebClient in the application still gets a builder
+	 without a load balancer, one that can call a plain URL
 	 */
 	@Bean
-	@LoadBalanced
-	RestTemplate restTemplate() {
-		return new RestTemplate();
+	WebClient commentsWebClient(WebClient.Builder webClientBuilder,
+								LoadBalancerExchangeFilterFunction loadBalancerFunction) {
+		return webClientBuilder.clone()
+				.filter(loadBalancerFunction)
+				.build();
 	}
 }
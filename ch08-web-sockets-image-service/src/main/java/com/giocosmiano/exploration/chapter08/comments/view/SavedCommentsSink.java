@@ -0,0 +1,20 @@
+package com.giocosmiano.exploration.chapter08.comments.view;
+
+import org.springframework.cloud.stream.annotation.Input;
+import org.springframework.messaging.SubscribableChannel;
+
+public interface SavedCommentsSink {
+    String INPUT = "savedComments";
+
+    /*
+     The comments service hands every comment it has saved on to its output channel. This channel is bound to
+     that very destination (spring.cloud.stream.bindings.savedComments), so we get to see them too
+
+     Unlike the comments service's own input, it has no consumer group. Every instance of the images service then
+     gets its own (anonymous) queue, and hence its own copy of every comment, which is exactly what each
+     instance's CommentView needs
+     */
+
+    @Input(SavedCommentsSink.INPUT)
+    SubscribableChannel savedComments();
+}
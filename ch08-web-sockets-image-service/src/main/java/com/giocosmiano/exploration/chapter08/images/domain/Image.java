@@ -1,19 +1,76 @@
 package com.giocosmiano.exploration.chapter08.images.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.time.Instant;
+
 @Data
 @Document
 public class Image {
 
+    /*
+     name identifies the image, there's a single record per name. Uploading a name again replaces its record (see
+     ImageService.createImage), and the unique index makes sure no two records ever end up with the same one.
+     A database still holding duplicate names has to be cleaned up before the index can be built
+
+     hash is the SHA-256 of the image's content, i.e. the address of its blob in the ImageStore. This is the
+     name -> hash mapping, several images (names) may very well point to the same blob
+
+     Counting the images pointing at a hash gives the blob's reference count. @Indexed makes Spring Data
+     MongoDB create an index on it, so that count doesn't scan the whole collection
+
+     size, contentType, width, height and uploadedAt are captured once, when the image is uploaded (see
+     ImageService.createImage), so serving it can build its headers (Content-Length, Content-Type, ETag,
+     Last-Modified) out of this very record instead of asking the filesystem every time
+
+     Images stored before blobs were content-addressed don't have a hash, and those stored before their metadata
+     was captured don't have any of it either (see isDescribed)
+     */
+
     @Id
     final private String id;
+    @Indexed(unique = true)
     final private String name;
+    @Indexed
+    final private String hash;
+    final private Long size;
+    final private String contentType;
+    final private Integer width;
+    final private Integer height;
+    final private Instant uploadedAt;
 
     public Image(String id, String name) {
+        this(id, name, null);
+    }
+
+    public Image(String id, String name, String hash) {
+        this(id, name, hash, null, null, null, null, null);
+    }
+
+    @PersistenceConstructor
+    public Image(String id, String name, String hash, Long size, String contentType,
+                 Integer width, Integer height, Instant uploadedAt) {
         this.id = id;
         this.name = name;
+        this.hash = hash;
+        this.size = size;
+        this.contentType = contentType;
+        this.width = width;
+        this.height = height;
+        this.uploadedAt = uploadedAt;
+    }
+
+    /*
+     Whether everything needed to serve the image, without looking at its file, was recorded. width and height
+     aren't part of it, since they're unknown for content ImageIO can't decode
+     */
+    @JsonIgnore
+    public boolean isDescribed() {
+        return hash != null && size != null && contentType != null && uploadedAt != null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package com.giocosmiano.exploration.chapter08.images.domain;
+
+import lombok.Data;
+
+@Data
+public class ImageDeleteResult {
+
+    /*
+     The outcome of deleting one image through the bulk delete API, streamed back to the client as soon as
+     that image has been dealt with
+     */
+
+    public enum Status {
+        DELETED, NOT_FOUND, FAILED
+    }
+
+    final private String name;
+    final private Status status;
+    final private String error;
+
+    public ImageDeleteResult(String name, Status status, String error) {
+        this.name = name;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static ImageDeleteResult deleted(String name) {
+        return new ImageDeleteResult(name, Status.DELETED, null);
+    }
+
+    public static ImageDeleteResult notFound(String name) {
+        return new ImageDeleteResult(name, Status.NOT_FOUND, null);
+    }
+
+    public static ImageDeleteResult failed(String name, Throwable error) {
+        return new ImageDeleteResult(name, Status.FAILED, error.getMessage());
+    }
+}
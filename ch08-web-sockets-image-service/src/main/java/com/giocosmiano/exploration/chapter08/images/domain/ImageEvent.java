@@ -0,0 +1,43 @@
+package com.giocosmiano.exploration.chapter08.images.domain;
+
+import lombok.Data;
+
+@Data
+public class ImageEvent {
+
+    /*
+     Published (as a Spring application event) by the ImageService whenever an image has been created, replaced
+     (its name uploaded again) or deleted, once its record has been saved or removed, and by the ImageReconciler
+     when it removes the record of an image whose blob is gone. Only the instance that did it gets to know, it
+     doesn't leave the JVM
+
+     It's also what the ImageFeed hands out to the browsers. A deletion picked up from MongoDB's change stream
+     only carries the image's id, its name is null when the ImageFeed hasn't come across the image before
+     */
+
+    public enum Type {
+        CREATED, REPLACED, DELETED
+    }
+
+    final private Type type;
+    final private String id;
+    final private String name;
+
+    public ImageEvent(Type type, String id, String name) {
+        this.type = type;
+        this.id = id;
+        this.name = name;
+    }
+
+    public static ImageEvent created(Image image) {
+        return new ImageEvent(Type.CREATED, image.getId(), image.getName());
+    }
+
+    public static ImageEvent replaced(Image image) {
+        return new ImageEvent(Type.REPLACED, image.getId(), image.getName());
+    }
+
+    public static ImageEvent deleted(Image image) {
+        return new ImageEvent(Type.DELETED, image.getId(), image.getName());
+    }
+}
@@ -2,8 +2,11 @@ package com.giocosmiano.exploration.chapter08.images.repository;
 
 import com.giocosmiano.exploration.chapter08.images.domain.Image;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface ImageRepository extends ReactiveCrudRepository<Image, String> {
 
     /*
@@ -12,10 +15,21 @@ public interface ImageRepository extends ReactiveCrudRepository<Image, String> {
      supporting Reactor types
 
      Custom finder named findByName that matches on `Image.name` based on parsing the name of the method (not the input argument)
+     Names are unique (see Image), so there's at most one
      */
 
     Mono<Image> findByName(String name);
 
+    /*
+     All the images matching any of the given names, in a single query ($in)
+     */
+    Flux<Image> findByNameIn(Collection<String> names);
+
+    /*
+     Number of images pointing at the same content-addressed blob, i.e. its reference count
+     */
+    Mono<Long> countByHash(String hash);
+
     /*
      Each of the operations inherited from ReactiveCrudRepository accepts direct arguments or a Reactor-friendly variant.
      This means, we can invoke either save(Image) or saveAll(Publisher<Image>). Since Mono and Flux both implement Publisher,
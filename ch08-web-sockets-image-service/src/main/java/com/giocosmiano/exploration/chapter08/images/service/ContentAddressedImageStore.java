@@ -0,0 +1,173 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+@Component
+@ConditionalOnProperty(name = "images.store.type", havingValue = "directory", matchIfMissing = true)
+public class ContentAddressedImageStore implements ImageStore {
+
+    private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final ResourceLoader resourceLoader;
+    private final ImageFileWriter imageFileWriter;
+    private final FileIoScheduler fileIoScheduler;
+    private final BlobGuard blobGuard;
+    private final Path root;
+
+    public ContentAddressedImageStore(ResourceLoader resourceLoader,
+                                      ImageFileWriter imageFileWriter,
+                                      FileIoScheduler fileIoScheduler,
+                                      BlobGuard blobGuard) {
+        this.resourceLoader = resourceLoader;
+        this.imageFileWriter = imageFileWriter;
+        this.fileIoScheduler = fileIoScheduler;
+        this.blobGuard = blobGuard;
+        this.root = Paths.get(ImageService.UPLOAD_ROOT);
+    }
+
+    /*
+     Every blob is addressed by the SHA-256 of its content rather than by the user-supplied filename, and
+     lives in a sharded directory layout made of the first two pairs of hex digits of the hash, e.g.
+
+        upload-dir/3f/a9/3fa9c2...e1
+
+     No directory ever holds more than a handful of entries, no matter how many images we have, which keeps
+     lookups cheap. And uploading the same bytes twice, whatever their names, stores them only once since
+     ImageFileWriter drops the new copy when the blob is already there
+
+     The name -> hash mapping lives on the Image document. The reference count of a blob is the number of
+     Image documents pointing at its hash (an indexed count), and ImageService only asks to delete a blob once
+     no image references it anymore. The delete itself goes through the BlobGuard, so a blob an upload has just
+     reused stays
+
+     Images stored before this layout existed carry no hash, those are still found by name directly
+     underneath upload-dir
+
+     Deleting a blob blocks, so it runs on the FileIoScheduler. Resolving one doesn't touch the disk at all
+
+     This is the default store (images.store.type=directory). See PackedSegmentImageStore for the alternative
+     */
+    @Override
+    public Mono<UploadedFile> store(FilePart file) {
+        return imageFileWriter.write(file, root, this::blobPath)
+                .log("contentAddressedImageStore-store");
+    }
+
+    @Override
+    public Mono<Resource> findOne(Image image) {
+        return Mono.fromSupplier(() ->
+                resourceLoader.getResource(
+                        "file:" + pathOf(image)))
+                .log("contentAddressedImageStore-findOne");
+    }
+
+    @Override
+    public Mono<Boolean> delete(Image image, BlobGuard.Claim claim) {
+        return fileIoScheduler.call(() -> {
+            if (claim == null) {
+                Files.deleteIfExists(pathOf(image));
+                return true;
+            }
+            return blobGuard.delete(claim, () -> Files.deleteIfExists(pathOf(image)));
+        })
+                .log("contentAddressedImageStore-delete");
+    }
+
+    @Override
+    public Flux<StoredBlob> blobs(String after) {
+        return blobs(root, after, fileIoScheduler)
+                .log("contentAddressedImageStore-blobs");
+    }
+
+    /*
+     Walks the sharded layout in hash order, one directory at a time, so a single directory listing is all that's
+     ever held in memory. Shards that only hold hashes up to the given one aren't even listed. Whatever isn't
+     part of the layout (legacy images and temp files directly underneath upload-dir, segments/, thumbnails/)
+     is skipped. Listing a directory blocks, so each of them is listed on the FileIoScheduler
+     */
+    static Flux<StoredBlob> blobs(Path root, String after, FileIoScheduler fileIoScheduler) {
+        return list(root, SHARD, first -> notBefore(first, after), fileIoScheduler)
+                .concatMap(first -> list(first, SHARD,
+                        second -> notBefore(first.getFileName() + second, after), fileIoScheduler))
+                .concatMap(second -> fileIoScheduler.call(() -> {
+                    List<StoredBlob> blobs = new ArrayList<>();
+                    for (Path blob : sorted(second, HASH, hash -> hash.compareTo(after) > 0)) {
+                        try {
+                            blobs.add(new StoredBlob(blob.getFileName().toString(),
+                                    Files.getLastModifiedTime(blob).toMillis()));
+                        } catch (NoSuchFileException e) {
+                            // deleted since the directory was listed
+                        }
+                    }
+                    return blobs;
+                }))
+                .flatMapIterable(blobs -> blobs);
+    }
+
+    private static Flux<Path> list(Path directory, Pattern pattern, Predicate<String> wanted,
+                                   FileIoScheduler fileIoScheduler) {
+        return fileIoScheduler.call(() -> sorted(directory, pattern, wanted))
+                .flatMapIterable(entries -> entries);
+    }
+
+    private static List<Path> sorted(Path directory, Pattern pattern, Predicate<String> wanted) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (pattern.matcher(name).matches() && wanted.test(name)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(entry -> entry.getFileName().toString()));
+        return entries;
+    }
+
+    /*
+     Whether a shard (a prefix of the hashes underneath it) may still hold hashes past the given one
+     */
+    private static boolean notBefore(String prefix, String after) {
+        return prefix.compareTo(after.substring(0, Math.min(prefix.length(), after.length()))) >= 0;
+    }
+
+    private Path pathOf(Image image) {
+        return image.getHash() == null
+                ? root.resolve(image.getName())
+                : blobPath(image.getHash());
+    }
+
+    Path blobPath(String hash) {
+        return blobPath(root, hash);
+    }
+
+    static Path blobPath(Path root, String hash) {
+        return root
+                .resolve(hash.substring(0, 2))
+                .resolve(hash.substring(2, 4))
+                .resolve(hash);
+    }
+}
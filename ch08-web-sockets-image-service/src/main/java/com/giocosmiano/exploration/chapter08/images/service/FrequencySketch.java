@@ -0,0 +1,73 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+class FrequencySketch {
+
+    /*
+     A Count-Min sketch estimating how often each key has been asked for, in a fixed amount of memory no matter
+     how many distinct keys we see
+
+     Every key maps to one counter in each of the DEPTH rows, and its frequency is the smallest of those
+     counters. Collisions can only ever over-estimate a key's frequency, never under-estimate it
+
+     Counters saturate at MAX_COUNT, and once sampleSize increments have been recorded all counters are halved.
+     That aging is what lets the sketch forget yesterday's hot images, the idea behind TinyLFU
+     */
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final int[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int width) {
+        int tableWidth = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.counters = new int[DEPTH * tableWidth];
+        this.mask = tableWidth - 1;
+        this.sampleSize = 10 * tableWidth;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        h ^= h >>> 16;
+        return (row * (mask + 1)) + (h & mask);
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x45D9F3B;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,171 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageEvent;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.reactivestreams.client.ChangeStreamPublisher;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Service
+public class ImageFeed {
+
+    /*
+     Every image created, replaced (its name uploaded again) or deleted, as it happens, for the browsers to update
+     the listing in place (see HomeController.feed()) instead of reloading the whole page
+
+     images.feed.source picks where they come from
+       local (default) - the ImageEvents this very instance publishes, which only covers the images it created,
+                         replaced or deleted
+       change-stream - MongoDB's change stream on the Image collection, so an image changed through any instance
+                       shows up. Change streams need MongoDB 3.6+ running as a replica set (a single node one will
+                       do), which the embedded MongoDB isn't, hence local being the default
+
+     An insert is a created image, an update (or replace) of a record a replaced one, since re-uploading a name
+     upserts its record (see ImageService.replace()). Updates come with the record as it is now
+     (FullDocument.UPDATE_LOOKUP), so they carry the image's name. A delete only carries the record's _id, its
+     name is looked up among the names of the images seen lately (images.feed.max-names of them, out of the
+     change stream and this instance's own ImageEvents). An image that hasn't been seen is deleted without a name
+
+     The change stream is resumed where it left off (its resume token) after an error, or after it ended (e.g.
+     the collection was dropped), images.feed.retry-delay-ms later and for as long as it takes, with a warning
+     every time. Should MongoDB itself turn the resume down (e.g. the token is older than its oplog), the stream
+     is opened afresh instead, from now on
+
+     There's a single subscription to the source, shared by every client (publish().refCount()), opened with
+     the first client and closed with the last one. The chat service broadcasts comments the same way. A client
+     that can't keep up, and falls more than images.feed.buffer-size changes behind, is disconnected rather than
+     holding up the others (its browser reconnects right away, but the changes it missed only show up on reload)
+     */
+
+    private static final Logger log = LoggerFactory.getLogger(ImageFeed.class);
+
+    private final ReactiveMongoOperations mongoOperations;
+    private final int bufferSize;
+    private final Duration retryDelay;
+    private final Map<String, String> names;
+    private final Flux<ImageEvent> changes;
+    private volatile FluxSink<ImageEvent> localSink;
+    private volatile BsonDocument resumeToken;
+
+    public ImageFeed(ReactiveMongoOperations mongoOperations,
+                     @Value("${images.feed.source:local}") String source,
+                     @Value("${images.feed.buffer-size:256}") int bufferSize,
+                     @Value("${images.feed.retry-delay-ms:5000}") long retryDelayMs,
+                     @Value("${images.feed.max-names:10000}") int maxNames) {
+        this.mongoOperations = mongoOperations;
+        this.bufferSize = bufferSize;
+        this.retryDelay = Duration.ofMillis(retryDelayMs);
+        this.names = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxNames;
+            }
+        });
+
+        Flux<ImageEvent> local = Flux.<ImageEvent>create(
+                emitter -> this.localSink = emitter,
+                FluxSink.OverflowStrategy.IGNORE)
+                .doFinally(signal -> this.localSink = null);
+
+        this.changes = ("change-stream".equalsIgnoreCase(source) ? changeStream() : local)
+                .log("imageFeed")
+                .publish()
+                .refCount();
+    }
+
+    public Flux<ImageEvent> changes() {
+        return changes.onBackpressureBuffer(bufferSize);
+    }
+
+    @EventListener
+    public void onImage(ImageEvent event) {
+        remember(event);
+        FluxSink<ImageEvent> sink = localSink;
+        if (sink != null) {
+            sink.next(event);
+        }
+    }
+
+    private Flux<ImageEvent> changeStream() {
+        return Flux.defer(() -> {
+                    BsonDocument resumeAfter = resumeToken;
+                    ChangeStreamPublisher<Document> watch = mongoOperations
+                            .getCollection(mongoOperations.getConverter().getMappingContext()
+                                    .getRequiredPersistentEntity(Image.class)
+                                    .getCollection())
+                            .watch()
+                            .fullDocument(FullDocument.UPDATE_LOOKUP);
+                    AtomicBoolean resumed = new AtomicBoolean();
+                    return Flux.from(resumeAfter != null ? watch.resumeAfter(resumeAfter) : watch)
+                            .doOnNext(change -> {
+                                resumed.set(true);
+                                resumeToken = change.getResumeToken();
+                            })
+                            .doOnError(MongoServerException.class, e -> {
+                                if (resumeAfter != null && !resumed.get()) {
+                                    resumeToken = null;
+                                }
+                            });
+                })
+                .retryWhen(errors -> errors
+                        .doOnNext(e -> log.warn("Lost the change stream of the images, resuming it in "
+                                + retryDelay.toMillis() + "ms", e))
+                        .delayElements(retryDelay))
+                .repeatWhen(completions -> completions.delayElements(retryDelay))
+                .flatMap(change -> Mono.justOrEmpty(toEvent(change)));
+    }
+
+    ImageEvent toEvent(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                Document image = change.getFullDocument();
+                if (image == null) {
+                    // deleted by the time the update was looked up, its delete follows
+                    return null;
+                }
+                ImageEvent event = new ImageEvent(
+                        change.getOperationType() == OperationType.INSERT
+                                ? ImageEvent.Type.CREATED
+                                : ImageEvent.Type.REPLACED,
+                        String.valueOf(image.get("_id")), image.getString("name"));
+                remember(event);
+                return event;
+            case DELETE:
+                BsonValue id = change.getDocumentKey().get("_id");
+                String imageId = id.isString() ? id.asString().getValue() : id.asObjectId().getValue().toHexString();
+                return new ImageEvent(ImageEvent.Type.DELETED, imageId, names.remove(imageId));
+            default:
+                return null;
+        }
+    }
+
+    private void remember(ImageEvent event) {
+        if (event.getId() != null && event.getName() != null) {
+            names.put(event.getId(), event.getName());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+@Component
+public class ImageFileWriter {
+
+    private static final String TEMP_FILE_PREFIX = ".upload-";
+    private static final String TEMP_FILE_SUFFIX = ".part";
+
+    private final ReactiveSemaphore uploadSlots;
+    private final ReactiveSemaphore bytesInFlight;
+    private final long maxBytesInFlight;
+    private final FileIoScheduler fileIoScheduler;
+    private final BlobGuard blobGuard;
+    private final Timer writing;
+
+    public ImageFileWriter(@Value("${images.upload.concurrency:4}") int concurrency,
+                           @Value("${images.upload.max-bytes-in-flight:8388608}") long maxBytesInFlight,
+                           FileIoScheduler fileIoScheduler,
+                           BlobGuard blobGuard,
+                           MeterRegistry meterRegistry) {
+        this.fileIoScheduler = fileIoScheduler;
+        this.blobGuard = blobGuard;
+        this.writing = meterRegistry.timer("images.upload.write");
+        this.uploadSlots = new ReactiveSemaphore(concurrency);
+        this.bytesInFlight = new ReactiveSemaphore(maxBytesInFlight);
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    /*
+     FilePart.transferTo() followed by a File.length() walks the upload twice, and both steps block whichever
+     thread happens to subscribe. Instead, the FilePart's Flux<DataBuffer> is consumed exactly once
+
+     Each DataBuffer is fed into a SHA-256 MessageDigest and counted on its way to an AsynchronousFileChannel
+     through DataBufferUtils.write(). The digest reads through asByteBuffer(), which doesn't move the buffer's
+     read position, so the very same bytes are then written to disk. Once written, the buffer is released
+
+     The bytes go into a temp file (.upload-*.part) inside the given directory. Only once the whole upload has
+     been written, and its hash is known, is the final target resolved from that hash. The temp file is then
+     atomically renamed into place, so readers either see the previous file or the complete new one, never a
+     half-written upload. If the target already exists and was addressed by the content's hash, it already holds
+     these very bytes, so the temp file is dropped instead. Should anything fail along the way, the temp file is
+     removed
+
+     That last step goes through the BlobGuard, so a blob can't be deleted while it's being reused, and it pins
+     the blob. Whoever asked for the write unpins it, once the blob is referenced
+
+     Creating, opening, renaming and deleting the temp file all block, so they run on the FileIoScheduler. The
+     bytes themselves are written by the AsynchronousFileChannel, which never blocks the caller
+
+     Two ReactiveSemaphores, shared by every request, keep a burst of multi-file posts in check:
+
+     uploadSlots (images.upload.concurrency) bounds how many files are being written at the same time
+
+     bytesInFlight (images.upload.max-bytes-in-flight) bounds how many bytes have been accepted from the
+     network but not yet written to disk. A DataBuffer is only pulled from the upload once its bytes fit
+     in the budget, and they are given back as soon as it has been written
+
+     images.upload.write times how long each DataBuffer takes to be written, from the moment it's handed to the
+     channel until it's on disk
+     */
+    public Mono<UploadedFile> write(FilePart file, Path directory, Function<String, Path> targetForHash) {
+        return uploadSlots.withPermits(1, () -> fileIoScheduler
+                .call(() -> createTempFile(directory))
+                .flatMap(tempFile -> {
+                    MessageDigest digest = sha256();
+                    AtomicLong size = new AtomicLong();
+                    AtomicLong heldPermits = new AtomicLong();
+                    Queue<Long> handedOver = new ConcurrentLinkedQueue<>();
+
+                    Flux<DataBuffer> content = file.content()
+                            .concatMap(buffer -> bytesInFlight
+                                    .acquire(permitsFor(buffer))
+                                    .map(permits -> {
+                                        heldPermits.addAndGet(permits);
+                                        digest.update(buffer.asByteBuffer());
+                                        size.addAndGet(buffer.readableByteCount());
+                                        handedOver.add(System.nanoTime());
+                                        return buffer;
+                                    }));
+
+                    return Mono.using(
+                            () -> AsynchronousFileChannel.open(tempFile,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING),
+                            channel -> DataBufferUtils.write(content, channel, 0)
+                                    .doOnNext(buffer -> {
+                                        writing.record(System.nanoTime() - handedOver.remove(),
+                                                TimeUnit.NANOSECONDS);
+                                        long permits = permitsFor(buffer);
+                                        heldPermits.addAndGet(-permits);
+                                        bytesInFlight.release(permits);
+                                        DataBufferUtils.release(buffer);
+                                    })
+                                    .then(),
+                            this::close)
+                            .then(fileIoScheduler.call(() -> {
+                                String sha256 = toHex(digest.digest());
+                                Path target = targetForHash.apply(sha256);
+                                return blobGuard.commit(sha256, () -> {
+                                    if (target.endsWith(sha256) && Files.exists(target)) {
+                                        Files.delete(tempFile);
+                                    } else {
+                                        Files.createDirectories(target.toAbsolutePath().getParent());
+                                        Files.move(tempFile, target,
+                                                StandardCopyOption.ATOMIC_MOVE,
+                                                StandardCopyOption.REPLACE_EXISTING);
+                                    }
+                                    return new UploadedFile(target, size.get(), sha256);
+                                });
+                            }))
+                            .doOnError(e -> fileIoScheduler.execute(() -> deleteQuietly(tempFile)))
+                            .doOnCancel(() -> fileIoScheduler.execute(() -> deleteQuietly(tempFile)))
+                            .doFinally(signal -> bytesInFlight.release(heldPermits.getAndSet(0)));
+                }))
+                .log("imageFileWriter-write");
+    }
+
+    /*
+     A buffer larger than the whole budget only asks for the whole budget, otherwise it could never be written
+     */
+    private long permitsFor(DataBuffer buffer) {
+        return Math.max(1, Math.min(buffer.readableByteCount(), maxBytesInFlight));
+    }
+
+    private static Path createTempFile(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+    }
+
+    private void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
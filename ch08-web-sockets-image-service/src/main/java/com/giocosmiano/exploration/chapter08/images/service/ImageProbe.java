@@ -0,0 +1,66 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import lombok.Data;
+import org.springframework.core.io.Resource;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+@Data
+public class ImageProbe {
+
+    /*
+     What an image's content says about itself: its format (as a MIME type) and its dimensions in pixels
+
+     Only the image's header is read, never its pixels. ImageIO picks the reader by sniffing the first few bytes,
+     and ImageReader.getWidth()/getHeight() stop as soon as they know. So probing a large photo costs a few KB of
+     reading, not a decode. It's done once, right after the upload was stored, and the result is recorded on the
+     Image document
+
+     The stream is cached in memory (MemoryCacheImageInputStream), since ImageIO would otherwise spill it to a
+     temp file. Content none of ImageIO's readers recognize leaves every field null
+     */
+
+    private static final ImageProbe UNKNOWN = new ImageProbe(null, null, null);
+
+    final private String contentType;
+    final private Integer width;
+    final private Integer height;
+
+    public ImageProbe(String contentType, Integer width, Integer height) {
+        this.contentType = contentType;
+        this.width = width;
+        this.height = height;
+    }
+
+    /*
+     Reading the header blocks, so call it on the FileIoScheduler
+     */
+    public static ImageProbe probe(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream();
+             ImageInputStream stream = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return UNKNOWN;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+                return new ImageProbe(
+                        mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : null,
+                        reader.getWidth(0),
+                        reader.getHeight(0));
+            } catch (IOException | RuntimeException e) {
+                return UNKNOWN;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import lombok.Data;
+import org.springframework.core.io.Resource;
+
+@Data
+public class ImageResource {
+
+    /*
+     An image's record along with the Resource holding its bytes, so whoever serves the image can take its
+     headers from the record (see Image) and only ever read the bytes themselves
+     */
+
+    final private Image image;
+    final private Resource resource;
+
+    public ImageResource(Image image, Resource resource) {
+        this.image = image;
+        this.resource = resource;
+    }
+}
@@ -1,82 +1,248 @@
 package com.giocosmiano.exploration.chapter08.images.service;
 
 import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageDeleteResult;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter08.images.domain.ImagePage;
 import com.giocosmiano.exploration.chapter08.images.repository.ImageRepository;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.ResourceLoader;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileCopyUtils;
-import org.springframework.util.FileSystemUtils;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 @Service
 public class ImageService {
 
-    private static String UPLOAD_ROOT = "upload-dir";
-    private final ResourceLoader resourceLoader;
+    static final String UPLOAD_ROOT = "upload-dir";
+    private static final Sort BY_NAME = Sort.by("name", "id");
+
     private final ImageRepository imageRepository;
     private final MeterRegistry meterRegistry;
-
-    public ImageService(ResourceLoader resourceLoader,
-                        ImageRepository imageRepository,
-                        MeterRegistry meterRegistry) {
-        this.resourceLoader = resourceLoader;
+    private final ImageStore imageStore;
+    private final HotImageCache hotImageCache;
+    private final ThumbnailService thumbnailService;
+    private final FileIoScheduler fileIoScheduler;
+    private final ReactiveMongoOperations mongoOperations;
+    private final ApplicationEventPublisher eventPublisher;
+    private final BlobGuard blobGuard;
+    private final int deleteBatchSize;
+    private final int deleteConcurrency;
+    private final int maxPageSize;
+
+    public ImageService(ImageRepository imageRepository,
+                        ReactiveMongoOperations mongoOperations,
+                        MeterRegistry meterRegistry,
+                        ImageStore imageStore,
+                        HotImageCache hotImageCache,
+                        ThumbnailService thumbnailService,
+                        FileIoScheduler fileIoScheduler,
+                        ApplicationEventPublisher eventPublisher,
+                        BlobGuard blobGuard,
+                        @Value("${images.delete.batch-size:500}") int deleteBatchSize,
+                        @Value("${images.delete.concurrency:8}") int deleteConcurrency,
+                        @Value("${images.page.max-size:100}") int maxPageSize) {
         this.imageRepository = imageRepository;
+        this.mongoOperations = mongoOperations;
         this.meterRegistry = meterRegistry;
+        this.imageStore = imageStore;
+        this.hotImageCache = hotImageCache;
+        this.thumbnailService = thumbnailService;
+        this.fileIoScheduler = fileIoScheduler;
+        this.eventPublisher = eventPublisher;
+        this.blobGuard = blobGuard;
+        this.deleteBatchSize = deleteBatchSize;
+        this.deleteConcurrency = deleteConcurrency;
+        this.maxPageSize = maxPageSize;
     }
 
     /**
      * Pre-load some test images
      *
+     * Only the ones that are missing are written, whatever is already in upload-dir survives a restart. Keeping
+     * it in line with MongoDB is up to the {@link ImageReconciler}
+     *
      * @return Spring Boot {@link CommandLineRunner} automatically run after app context is loaded.
      */
     @Bean
     CommandLineRunner setUpImages() throws IOException {
         return (args) -> {
-            FileSystemUtils.deleteRecursively(new File(UPLOAD_ROOT));
-
-            Files.createDirectory(Paths.get(UPLOAD_ROOT));
+            Files.createDirectories(Paths.get(UPLOAD_ROOT));
 
-            FileCopyUtils.copy("Test file",
-                    new FileWriter(UPLOAD_ROOT +
-                            "/learning-spring-boot-cover.jpg"));
+            seedImage("learning-spring-boot-cover.jpg", "Test file");
 
-            FileCopyUtils.copy("Test file2",
-                    new FileWriter(UPLOAD_ROOT +
-                            "/learning-spring-boot-2nd-edition-cover.jpg"));
+            seedImage("learning-spring-boot-2nd-edition-cover.jpg", "Test file2");
 
-            FileCopyUtils.copy("Test file3",
-                    new FileWriter(UPLOAD_ROOT + "/bazinga.png"));
+            seedImage("bazinga.png", "Test file3");
         };
     }
 
+    private static void seedImage(String filename, String content) throws IOException {
+        File file = new File(UPLOAD_ROOT, filename);
+        if (!file.exists()) {
+            FileCopyUtils.copy(content, new FileWriter(file));
+        }
+    }
+
     public Flux<Image> findAllImages() {
         return imageRepository.findAll().log("findAllImages");
     }
 
+    /*
+     Keyset (cursor) pagination, instead of pulling the whole collection. Images are listed by name, and a page
+     picks up right after the last image of the previous one:
+
+        name > :name OR (name = :name AND _id > :id)
+
+     Backed by the (name, _id) index created at startup (see InitDatabase), MongoDB seeks straight to the first
+     image of the page and reads no more than the page itself, however deep into the listing it is. Skipping
+     (offset pagination) would walk over every image before it instead, and shift whenever images come or go
+
+     Names are unique (see Image), so the name alone decides the order. The id only rides along as a tiebreak,
+     which keeps the order total and a cursor well defined should a name ever be held by two records, like while
+     an image is being renamed or replaced, or on a database the unique index hasn't been built on yet
+
+     One image more than asked for is fetched, to tell whether there's a next page without a second query. The
+     cursor handed out for it is opaque to clients (the last image's id and name, base64url encoded). A page is
+     at most images.page.max-size images
+     */
+    public Mono<ImagePage> findImagePage(String after, int size) {
+        int limit = Math.max(1, Math.min(size, maxPageSize));
+        return Mono.fromCallable(() -> afterCursor(after).with(BY_NAME).limit(limit + 1))
+                .flatMap(query -> mongoOperations.find(query, Image.class).collectList())
+                .map(images -> images.size() > limit
+                        ? new ImagePage(images.subList(0, limit), cursorOf(images.get(limit - 1)))
+                        : new ImagePage(images, null))
+                .log("findImagePage");
+    }
+
+    /*
+     Every image after the cursor (all of them without one), in the same order as the pages. It's a single
+     MongoDB cursor, read in batches as the subscriber asks for more, so the listing is never held in memory
+     */
+    public Flux<Image> streamImages(String after) {
+        return Mono.fromCallable(() -> afterCursor(after).with(BY_NAME))
+                .flatMapMany(query -> mongoOperations.find(query, Image.class))
+                .log("streamImages");
+    }
+
+    private static Query afterCursor(String after) {
+        if (after == null || after.isEmpty()) {
+            return new Query();
+        }
+        String cursor;
+        try {
+            cursor = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor " + after);
+        }
+        int separator = cursor.indexOf(':');
+        if (separator < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor " + after);
+        }
+        String id = cursor.substring(0, separator);
+        String name = cursor.substring(separator + 1);
+        return query(new Criteria().orOperator(
+                where("name").gt(name),
+                where("name").is(name).and("id").gt(id)));
+    }
+
+    private static String cursorOf(Image image) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((image.getId() + ":" + image.getName()).getBytes(StandardCharsets.UTF_8));
+    }
+
     public Mono<Image> findOneImage(String filename) {
         return imageRepository.findByName(filename).log("findOneImage");
     }
 
-    public Mono<Resource> findOneImageResource(String filename) {
-        return Mono.fromSupplier(() ->
-                resourceLoader.getResource(
-                        "file:" + UPLOAD_ROOT + "/" + filename))
+    /*
+     The image's bytes are kept by the ImageStore, which addresses them by the hash recorded on the Image
+     document. So the name is first resolved through MongoDB (findByName), then handed to the store
+
+     The image comes back along with its record, which carries everything its response headers are made of (see
+     Image). A file of an image described by its record is handed out as a DescribedFileResource, which knows its
+     length and timestamp without a stat. findByName is a single lookup on the (name, _id) index
+
+     The HotImageCache sits in front of both. A hit skips MongoDB and the filesystem altogether, and on a miss
+     the freshly found image is offered to the cache, which decides whether it is popular enough to keep.
+     Letting it in means reading the whole file, so that happens on the FileIoScheduler
+     */
+    public Mono<ImageResource> findOneImageResource(String filename) {
+        return Mono.defer(() -> {
+            HotImageCache.Lookup lookup = hotImageCache.lookup(filename);
+            if (lookup.isHit()) {
+                return Mono.just(lookup.getCached());
+            }
+            return imageRepository.findByName(filename)
+                    .flatMap(image -> imageStore.findOne(image)
+                            .map(resource -> described(image, resource)))
+                    .flatMap(found -> fileIoScheduler.call(() ->
+                            hotImageCache.admit(found.getImage(), found.getResource(), lookup)));
+        })
                 .log("findOneImageResource");
     }
 
+    private static ImageResource described(Image image, Resource resource) {
+        if (!image.isDescribed() || !resource.isFile()) {
+            return new ImageResource(image, resource);
+        }
+        try {
+            return new ImageResource(image, new DescribedFileResource(
+                    resource.getFile(), image.getSize(), image.getUploadedAt().toEpochMilli()));
+        } catch (IOException e) {
+            return new ImageResource(image, resource);
+        }
+    }
+
+    /*
+     A smaller copy of the image, at least the given width, made and cached by the ThumbnailService
+     */
+    public Mono<Resource> findOneThumbnail(String filename, int width) {
+        return imageRepository.findByName(filename)
+                .flatMap(image -> thumbnailService.thumbnail(image, width))
+                .log("findOneThumbnail");
+    }
+
     /*
      Project Reactor's Mono.when() is akin to the A+ Promise spec's promise.all() API, that waits until all
      sub-promises are completed before moving forward. Project Reactor can be thought of as promises on
@@ -99,6 +265,24 @@ public class ImageService {
      registered is both a value and an occurrence. Each time a meter is added, it counts it, and the running
      total is tabulated
 
+     The file itself is streamed into the ImageStore in a single pass, which also counts its bytes and hashes
+     them. So the summary is fed from the UploadedFile it hands back, instead of re-stat'ing the file once it has
+     been copied, and the hash is recorded on the Image document
+
+     Along with the hash, the Image document records the image's size, content type, dimensions and the time it
+     was uploaded, which is all that serving it needs to know (see describe()). That way nobody has to go back to
+     the filesystem for them, on every single request, later on
+
+     The blob the ImageStore hands back is pinned (see BlobGuard), so it can't be deleted from under the record,
+     until the record has been saved. Whatever happens to the upload, the blob is unpinned at the end
+
+     Uploading a name that's already taken replaces that image, releasing the blob it used to point at (see
+     replace())
+
+     Once the record is saved, any cached copy of an image by the same name is invalidated, the image is handed
+     to the ThumbnailService so its thumbnails get generated in the background, and an ImageEvent (created, or
+     replaced when the name was taken) lets the rest of the application (e.g. the HomePageCache) know about it
+
      Micrometer is a new project at Pivotal. It's a facade for metrics gathering. Think SLF4J, but for metrics
      instead. It is designed to integrate with lots of metric-gathering systems, including Atlas, Prometheus,
      Datadog, Influx, Graphite, and more. In this case, it's using a memory-based solution
@@ -107,83 +291,271 @@ public class ImageService {
     public Mono<Void> createImage(Flux<FilePart> files) {
         return files
                 .flatMap(file -> {
-                    Mono<Image> saveDatabaseImage =
-                            imageRepository.save(
-                                    new Image(
-                                            UUID.randomUUID().toString(),
-                                            file.filename()))
-                                    .log("createImage-save");
-
-                    Mono<Void> copyFile = Mono.just(
-                            Paths.get(UPLOAD_ROOT, file.filename())
-                                    .toFile())
-                            .log("createImage-picktarget")
-                            .map(destFile -> {
-                                try {
-                                    destFile.createNewFile();
-                                    return destFile;
-                                } catch (IOException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            })
-                            .log("createImage-newFile")
-                            .flatMap(file::transferTo)
+                    Mono<UploadedFile> copyFile = imageStore
+                            .store(file)
                             .log("createImage-copy");
 
-                    Mono<Void> countFile = Mono.fromRunnable(() -> {
-                        meterRegistry
-                                .summary("files.uploaded.bytes")
-                                .record(Paths.get(UPLOAD_ROOT,
-                                        file.filename()).toFile().length());
-                    });
-
-                    // using Mono.when() to combine two separate actions similar to promise.all() in JS
-                    return Mono.when(saveDatabaseImage, copyFile, countFile)
-                            .log("createImage-when");
+                    // the record is only saved once the file has been completely written and moved into place
+                    return copyFile
+                            .doOnNext(uploadedFile -> meterRegistry
+                                    .summary("files.uploaded.bytes")
+                                    .record(uploadedFile.getSize()))
+                            .flatMap(uploadedFile -> save(file, uploadedFile))
+                            .log("createImage-save")
+                            .doOnSuccess(saved -> hotImageCache.invalidate(file.filename()))
+                            .doOnNext(saved -> thumbnailService.enqueue(saved.getT1()))
+                            .doOnNext(saved -> eventPublisher.publishEvent(saved.getT2()
+                                    ? ImageEvent.replaced(saved.getT1())
+                                    : ImageEvent.created(saved.getT1())))
+                            .log("createImage-then");
                 })
                 .log("createImage-flatMap")
                 .then()
                 .log("createImage-done");
     }
 
+    private Mono<Tuple2<Image, Boolean>> save(FilePart file, UploadedFile uploadedFile) {
+        return describe(file, uploadedFile)
+                .flatMap(this::replace)
+                .doFinally(signal -> blobGuard.unpin(uploadedFile.getSha256()));
+    }
+
+    /*
+     A name is a single image (Image.name is uniquely indexed), so uploading a name that already exists replaces
+     that image. The record is upserted by name with a single findAndModify, which keeps the existing id and
+     hands back the record as it was before. The blob that one pointed at, and its thumbnails, are then let go
+     of just like deleteImage does, once nothing references them anymore. Should that fail, they're left for
+     the ImageReconciler, the upload itself went through
+
+     Two uploads of a brand new name may both try to insert it. The one the unique index turns down tries again,
+     and replaces the other
+
+     The saved image comes along with whether it replaced one (true) or is a new one (false)
+     */
+    private Mono<Tuple2<Image, Boolean>> replace(Image image) {
+        Update update = new Update()
+                .setOnInsert("_id", image.getId())
+                .set("hash", image.getHash())
+                .set("size", image.getSize())
+                .set("contentType", image.getContentType())
+                .set("width", image.getWidth())
+                .set("height", image.getHeight())
+                .set("uploadedAt", image.getUploadedAt());
+        return mongoOperations
+                .findAndModify(query(where("name").is(image.getName())), update,
+                        FindAndModifyOptions.options().upsert(true), Image.class)
+                .retry(1, DuplicateKeyException.class::isInstance)
+                .log("createImage-replace")
+                .flatMap(replaced -> (Objects.equals(replaced.getHash(), image.getHash())
+                        ? Mono.<Void>empty()
+                        : deleteIfUnreferenced(replaced).onErrorResume(e -> Mono.empty()))
+                        .then(Mono.just(Tuples.of(new Image(
+                                replaced.getId(),
+                                image.getName(),
+                                image.getHash(),
+                                image.getSize(),
+                                image.getContentType(),
+                                image.getWidth(),
+                                image.getHeight(),
+                                image.getUploadedAt()), true))))
+                .defaultIfEmpty(Tuples.of(image, false));
+    }
+
+    /*
+     The content type and dimensions come from the stored image's header (see ImageProbe), read on the
+     FileIoScheduler. The content type falls back to the file name's extension, then to whatever the client
+     claimed the part was. An image that can't be probed is still saved, just without its dimensions
+     */
+    private Mono<Image> describe(FilePart file, UploadedFile uploadedFile) {
+        Image stored = new Image(UUID.randomUUID().toString(), file.filename(), uploadedFile.getSha256());
+        return imageStore.findOne(stored)
+                .flatMap(resource -> fileIoScheduler.call(() -> ImageProbe.probe(resource)))
+                .onErrorResume(IOException.class, e -> Mono.empty())
+                .defaultIfEmpty(new ImageProbe(null, null, null))
+                .map(probe -> new Image(
+                        stored.getId(),
+                        stored.getName(),
+                        stored.getHash(),
+                        uploadedFile.getSize(),
+                        probe.getContentType() != null
+                                ? probe.getContentType()
+                                : contentTypeOf(file).toString(),
+                        probe.getWidth(),
+                        probe.getHeight(),
+                        Instant.now()))
+                .log("createImage-describe");
+    }
+
+    private static MediaType contentTypeOf(FilePart file) {
+        return MediaTypeFactory.getMediaType(file.filename())
+                .orElse(file.headers().getContentType() != null
+                        ? file.headers().getContentType()
+                        : MediaType.APPLICATION_OCTET_STREAM);
+    }
+
     /*
-     First we create a Mono to delete the MongoDB image record. It uses imageRepository to first findByName,
-     and then it uses a Java 8 method handle to invoke imageRepository.delete.
+     First we find the MongoDB image record using imageRepository.findByName.
 
-     Next, we create a Mono using Mono.fromRunnable to delete the file using Files.deleteIfExists . This delays
-     deletion until Mono is invoked.
+     Then we delete that record with imageRepository.delete, and only once it is gone do we ask the ImageStore
+     to delete the image's bytes. The order matters. A blob may be shared by several images (same content,
+     different names), so it's only removed once no other Image record references it anymore (countByHash)
 
-     To have both of these operations completed together, we join them with Mono.when().
+     The hash is claimed (see BlobGuard) before the references are counted, so an upload reusing the blob in
+     the meantime, whose record isn't saved yet, keeps it from being deleted
+
+     The image is dropped from the HotImageCache as soon as its record is gone, so it can't be served anymore,
+     and an ImageEvent is published. Its thumbnails follow the same rule as its bytes, they're only removed with
+     the last reference
 
      Since we're not interested in the results, we append a then(), which will be completed when the
-     combined Mono is done.
+     whole chain is done.
      */
 
     public Mono<Void> deleteImage(String filename) {
-        Mono<Void> deleteDatabaseImage =
-                imageRepository
-                        .findByName(filename)
-                        .log("deleteImage-find")
-                        .flatMap(imageRepository::delete)
-                        .log("deleteImage-record");
-
-        Mono<Void> deleteFile = Mono.fromRunnable(() -> {
-            try {
-                Files.deleteIfExists(
-                        Paths.get(UPLOAD_ROOT, filename));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        })
-                .log("deleteImage-file")
-                .then();
-
-        return Mono.when(deleteDatabaseImage, deleteFile)
-                .log("deleteImage-when")
+        return imageRepository
+                .findByName(filename)
+                .log("deleteImage-find")
+                .flatMap(image -> imageRepository
+                        .delete(image)
+                        .log("deleteImage-record")
+                        .doOnSuccess(deleted -> {
+                            hotImageCache.invalidate(filename);
+                            eventPublisher.publishEvent(ImageEvent.deleted(image));
+                        })
+                        .then(deleteIfUnreferenced(image))
+                        .log("deleteImage-file"))
                 .then()
                 .log("deleteImage-done");
     }
 
+    /*
+     Deleting images one by one costs two MongoDB round trips per image (find, then delete) plus one to count
+     the references to its blob. Cleaning up thousands of images that way means thousands of round trips
+
+     Instead, the names are taken in batches of images.delete.batch-size, and each batch costs three round
+     trips, however many images it holds:
+
+     1. imageRepository.findByNameIn() finds all of the batch's images with a single $in query
+     2. mongoOperations.remove() deletes all of their records with a single $in query on their ids
+     3. referencedHashes() finds, with a single $in query, which of their blobs are still referenced by other
+        images, and therefore must stay
+
+     Every hash of the batch is claimed (see BlobGuard) before its references are looked up, and the claims are
+     only released once the batch is done, so a blob an upload reuses in the meantime isn't deleted either
+
+     The bytes and thumbnails of everything else are then deleted in parallel, at most images.delete.concurrency
+     at a time, the file operations themselves running on the bounded FileIoScheduler. Images sharing the
+     same blob only delete it once
+
+     A result is streamed back for every name as soon as it is known: NOT_FOUND right after the lookup, DELETED
+     or FAILED once its files have been dealt with. A failure only affects its own image, never the batch
+     */
+    public Flux<ImageDeleteResult> deleteImages(Flux<String> filenames) {
+        return filenames
+                .distinct()
+                .buffer(deleteBatchSize)
+                .concatMap(this::deleteBatch)
+                .log("deleteImages");
+    }
+
+    private Flux<ImageDeleteResult> deleteBatch(List<String> names) {
+        return imageRepository
+                .findByNameIn(names)
+                .collectList()
+                .log("deleteImages-find")
+                .flatMapMany(images -> {
+                    Set<String> found = images.stream()
+                            .map(Image::getName)
+                            .collect(Collectors.toSet());
+                    Flux<ImageDeleteResult> notFound = Flux.fromIterable(names)
+                            .filter(name -> !found.contains(name))
+                            .map(ImageDeleteResult::notFound);
+                    if (images.isEmpty()) {
+                        return notFound;
+                    }
+
+                    List<String> ids = images.stream()
+                            .map(Image::getId)
+                            .collect(Collectors.toList());
+                    Set<String> deletedBlobs = ConcurrentHashMap.newKeySet();
+
+                    Flux<ImageDeleteResult> deleted = Flux.using(
+                            () -> claim(images),
+                            claims -> mongoOperations
+                                    .remove(query(where("id").in(ids)), Image.class)
+                                    .log("deleteImages-records")
+                                    .doOnSuccess(result -> images.forEach(image -> {
+                                        hotImageCache.invalidate(image.getName());
+                                        eventPublisher.publishEvent(ImageEvent.deleted(image));
+                                    }))
+                                    .then(referencedHashes(images))
+                                    .flatMapMany(referenced -> Flux.fromIterable(images)
+                                            .flatMap(image -> {
+                                                String blob = image.getHash() != null
+                                                        ? image.getHash()
+                                                        : image.getName();
+                                                Mono<Void> content = referenced.contains(blob)
+                                                        || !deletedBlobs.add(blob)
+                                                        ? Mono.empty()
+                                                        : deleteContent(image, claims.get(image.getHash()));
+                                                return content
+                                                        .then(Mono.just(ImageDeleteResult.deleted(image.getName())))
+                                                        .onErrorResume(e -> Mono.just(
+                                                                ImageDeleteResult.failed(image.getName(), e)));
+                                            }, deleteConcurrency)),
+                            claims -> claims.values().forEach(blobGuard::release));
+
+                    return notFound.concatWith(deleted);
+                });
+    }
+
+    /*
+     Images without a hash don't share their bytes with anybody, so they are never referenced elsewhere
+     */
+    private Mono<Void> deleteIfUnreferenced(Image image) {
+        if (image.getHash() == null) {
+            return deleteContent(image, null);
+        }
+        return Mono.using(
+                () -> blobGuard.claim(image.getHash()),
+                claim -> imageRepository.countByHash(image.getHash())
+                        .filter(references -> references == 0)
+                        .flatMap(unreferenced -> deleteContent(image, claim)),
+                blobGuard::release);
+    }
+
+    private Map<String, BlobGuard.Claim> claim(List<Image> images) {
+        return images.stream()
+                .map(Image::getHash)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toMap(hash -> hash, blobGuard::claim));
+    }
+
+    private Mono<Set<String>> referencedHashes(List<Image> images) {
+        List<String> hashes = images.stream()
+                .map(Image::getHash)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList());
+        if (hashes.isEmpty()) {
+            return Mono.just(Collections.emptySet());
+        }
+        Query query = query(where("hash").in(hashes));
+        query.fields().include("hash");
+        return mongoOperations
+                .find(query, Image.class)
+                .map(Image::getHash)
+                .collect(Collectors.toSet())
+                .log("deleteImages-referenced");
+    }
+
+    private Mono<Void> deleteContent(Image image, BlobGuard.Claim claim) {
+        return imageStore.delete(image, claim)
+                .filter(Boolean::booleanValue)
+                .flatMap(deleted -> thumbnailService.delete(image));
+    }
+
     /*
      Traditionally, Runnable objects are started in some multithreaded fashion, and are meant to
      run in the background. In this situation, Reactor is in full control of how it gets started
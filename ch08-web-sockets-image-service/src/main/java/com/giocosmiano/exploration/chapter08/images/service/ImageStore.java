@@ -0,0 +1,37 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import org.springframework.core.io.Resource;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public interface ImageStore {
+
+    /*
+     Where ImageService keeps the bytes of its images, while the Image records themselves stay in MongoDB
+
+     store() streams an upload into the store, and hands back its size and SHA-256 so ImageService can record
+     them on the Image document. The blob is committed through the BlobGuard, and stays pinned until the caller
+     unpins it, once the Image record pointing at it has been saved
+
+     findOne() resolves the Resource holding an image's bytes
+
+     delete() removes an image's bytes. Since several images may share the same bytes, ImageService only calls
+     it once the last Image record referencing them has been removed, with the claim it made on the hash before
+     counting them (see BlobGuard). The bytes are only removed if that claim still holds, and it completes with
+     whether they were. Images without a hash share their bytes with nobody, they don't need a claim (null)
+
+     blobs() lists every blob the store holds, ordered by hash, starting right after the given hash ("" lists
+     them all). ImageReconciler walks it side by side with the Image records, to find what only exists on one
+     side. It must not hold the whole listing in memory
+     */
+
+    Mono<UploadedFile> store(FilePart file);
+
+    Mono<Resource> findOne(Image image);
+
+    Mono<Boolean> delete(Image image, BlobGuard.Claim claim);
+
+    Flux<StoredBlob> blobs(String after);
+}
@@ -0,0 +1,478 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.synchronoss.cloud.nio.multipart.Multipart;
+import org.synchronoss.cloud.nio.multipart.MultipartContext;
+import org.synchronoss.cloud.nio.multipart.NioMultipartParser;
+import org.synchronoss.cloud.nio.multipart.NioMultipartParserListener;
+import org.synchronoss.cloud.nio.stream.storage.StreamStorage;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class MultipartUploadReader {
+
+    /*
+     With the default codecs, a multipart upload goes through Spring's SynchronossPartHttpMessageReader, which
+     has the nio-multipart parser store every part (in memory, then in a temp file once it grows) and only
+     hands it over once it has been received completely. A large upload is therefore written to disk twice,
+     and nothing stops a client from sending as many (or as large) parts as it likes
+
+     In streaming mode (images.upload.multipart.mode=streaming, the default) the request body is fed to the
+     nio-multipart parser by hand, as it arrives. Instead of storing part bodies, the parser hands their bytes
+     to us, and they're passed on as the content() of a FilePart while the part is still being received. So
+     ImageFileWriter writes them into the ImageStore as they come off the network, and a new network buffer is
+     only asked for once the previous one has been taken care of. There is no intermediate copy on disk, and
+     only a buffer's worth of the upload is ever held in memory
+
+     Nor is there more than one copy in memory. The parser reads a network buffer straight from its backing array
+     (or, for a direct buffer, from the one array every buffer of the request is copied into), and the bytes of a
+     file it hands over while going through that buffer are all copied into one array, each chunk handed on as a
+     slice of it
+
+     Four limits apply to every request, and breaking any of them aborts the upload with a 413 (Payload Too
+     Large) right away, dropping whatever was written of the part so far:
+
+       images.upload.multipart.max-request-bytes - the whole body. A request announcing a larger Content-Length
+                                                   is turned down before a single byte of it is read
+       images.upload.multipart.max-part-bytes - any single part
+       images.upload.multipart.max-field-bytes - any single form field (a part that isn't a file)
+       images.upload.multipart.max-parts - how many parts a request may have
+
+     Only files are streamed. Form fields are small, and kept in memory (up to max-field-bytes) until their part
+     is done, so the storage the parser writes them to can always hand their value back
+
+     Rejections are counted as images.upload.rejected, tagged with the limit that was hit.
+     images.upload.parse times how long the parser takes over each network buffer, to be weighed against
+     images.upload.write (see ImageFileWriter), how long writing the bytes to disk takes
+
+     images.upload.multipart.mode=buffered goes back to the default codecs
+     */
+
+    private static final String MODE_STREAMING = "streaming";
+
+    private final boolean streaming;
+    private final long maxRequestBytes;
+    private final long maxPartBytes;
+    private final int maxFieldBytes;
+    private final int maxParts;
+    private final MeterRegistry meterRegistry;
+    private final Timer parsing;
+
+    public MultipartUploadReader(MeterRegistry meterRegistry,
+                                 @Value("${images.upload.multipart.mode:streaming}") String mode,
+                                 @Value("${images.upload.multipart.max-request-bytes:52428800}") long maxRequestBytes,
+                                 @Value("${images.upload.multipart.max-part-bytes:10485760}") long maxPartBytes,
+                                 @Value("${images.upload.multipart.max-field-bytes:65536}") int maxFieldBytes,
+                                 @Value("${images.upload.multipart.max-parts:16}") int maxParts) {
+        this.streaming = MODE_STREAMING.equalsIgnoreCase(mode);
+        this.maxRequestBytes = maxRequestBytes;
+        this.maxPartBytes = maxPartBytes;
+        this.maxFieldBytes = maxFieldBytes;
+        this.maxParts = maxParts;
+        this.meterRegistry = meterRegistry;
+        this.parsing = meterRegistry.timer("images.upload.parse");
+    }
+
+    /*
+     The files uploaded as the given part name, one after the other, in the order they were sent. Each one's
+     content() has to be consumed (or cancelled) before the next one shows up
+     */
+    public Flux<FilePart> fileParts(ServerWebExchange exchange, String name) {
+        if (!streaming) {
+            return exchange.getMultipartData()
+                    .flatMapIterable(parts -> parts.getOrDefault(name, Collections.emptyList()))
+                    .ofType(FilePart.class)
+                    .log("multipartUploadReader-buffered");
+        }
+        return Flux.defer(() -> {
+            ServerHttpRequest request = exchange.getRequest();
+            MediaType contentType = request.getHeaders().getContentType();
+            long contentLength = request.getHeaders().getContentLength();
+            if (contentType == null || !MediaType.MULTIPART_FORM_DATA.isCompatibleWith(contentType)) {
+                return Flux.error(new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE,
+                        "Expected " + MediaType.MULTIPART_FORM_DATA_VALUE));
+            }
+            if (contentLength > maxRequestBytes) {
+                return Flux.error(tooLarge("request-size",
+                        "Request of " + contentLength + " bytes exceeds " + maxRequestBytes));
+            }
+
+            Upload upload = new Upload(contentType, contentLength, exchange.getResponse().bufferFactory());
+            return request.getBody()
+                    .concatMap(upload::parse)
+                    .concatWith(Flux.defer(upload::finish))
+                    .groupBy(Event::getPart)
+                    .concatMap(events -> {
+                        Flux<DataBuffer> content = events
+                                .takeUntil(Event::isLast)
+                                .filter(event -> event.getChunk() != null)
+                                .map(Event::getChunk);
+                        StreamingPart part = events.key();
+                        if (name.equals(part.name()) && part.filename() != null) {
+                            return Mono.just(part.withContent(content));
+                        }
+                        return content.doOnNext(DataBufferUtils::release).then(Mono.<FilePart>empty());
+                    });
+        })
+                .log("multipartUploadReader-streaming");
+    }
+
+    private ResponseStatusException tooLarge(String limit, String reason) {
+        meterRegistry.counter("images.upload.rejected", "limit", limit).increment();
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, reason);
+    }
+
+    /*
+     The parser's state for one request. It's only ever touched by one network buffer at a time (concatMap),
+     and whatever the parser reports while going through a buffer is collected in events, then handed on
+     */
+    private class Upload implements NioMultipartParserListener {
+
+        private final NioMultipartParser parser;
+        private final DataBufferFactory bufferFactory;
+        private final List<Event> events = new ArrayList<>();
+        private byte[] input = new byte[0];
+        private byte[] chunks;
+        private int chunksUsed;
+        private int bufferSize;
+        private long requestBytes;
+        private int parts;
+        private boolean complete;
+        private RuntimeException failure;
+
+        private Upload(MediaType contentType, long contentLength, DataBufferFactory bufferFactory) {
+            this.bufferFactory = bufferFactory;
+            this.parser = Multipart
+                    .multipart(new MultipartContext(contentType.toString(),
+                            (int) Math.min(contentLength, Integer.MAX_VALUE),
+                            StandardCharsets.UTF_8.name()))
+                    .usePartBodyStreamStorageFactory(this::newPart)
+                    .forNIO(this);
+        }
+
+        private Flux<Event> parse(DataBuffer buffer) {
+            try {
+                requestBytes += buffer.readableByteCount();
+                if (requestBytes > maxRequestBytes) {
+                    fail(tooLarge("request-size", "Request exceeds " + maxRequestBytes + " bytes"));
+                } else {
+                    ByteBuffer bytes = buffer.asByteBuffer();
+                    bufferSize = bytes.remaining();
+                    chunks = null;
+                    long start = System.nanoTime();
+                    if (bytes.hasArray()) {
+                        parser.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                    } else {
+                        if (input.length < bufferSize) {
+                            input = new byte[bufferSize];
+                        }
+                        bytes.get(input, 0, bufferSize);
+                        parser.write(input, 0, bufferSize);
+                    }
+                    parsing.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            return drain();
+        }
+
+        private Flux<Event> finish() {
+            if (failure == null && !complete) {
+                fail(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Multipart request ended prematurely"));
+            }
+            return drain();
+        }
+
+        private Flux<Event> drain() {
+            List<Event> drained = new ArrayList<>(events);
+            events.clear();
+            if (failure != null) {
+                drained.forEach(event -> DataBufferUtils.release(event.getChunk()));
+                closeParser();
+                return Flux.error(failure);
+            }
+            return Flux.fromIterable(drained);
+        }
+
+        private StreamStorage newPart(Map<String, List<String>> headers, int index) {
+            StreamingPart part = new StreamingPart(toHttpHeaders(headers));
+            if (++parts > maxParts) {
+                fail(tooLarge("parts", "Request has more than " + maxParts + " parts"));
+            } else {
+                events.add(new Event(part, null, false));
+            }
+            return part.filename() != null ? new StreamedBody(part) : new FieldBody(part);
+        }
+
+        private void fail(RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private void closeParser() {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void onPartFinished(StreamStorage partBody, Map<String, List<String>> headers) {
+            if (failure == null) {
+                events.add(new Event(((PartBody) partBody).part, null, true));
+            }
+        }
+
+        @Override
+        public void onAllPartsFinished() {
+            complete = true;
+        }
+
+        @Override
+        public void onNestedPartStarted(Map<String, List<String>> headers) {
+        }
+
+        @Override
+        public void onNestedPartFinished() {
+        }
+
+        @Override
+        public void onError(String message, Throwable cause) {
+            fail(new ResponseStatusException(HttpStatus.BAD_REQUEST, message, cause));
+        }
+
+        /*
+         A slice holding a copy of the given bytes, out of the array shared by every chunk the parser hands over
+         while going through the current network buffer. The parser holds back what might be the start of a
+         boundary, so a little more than a network buffer may come out of one; that spills into a new array
+         */
+        private DataBuffer chunk(byte[] bytes, int offset, int length) {
+            if (chunks == null || chunks.length - chunksUsed < length) {
+                chunks = new byte[Math.max(bufferSize, length)];
+                chunksUsed = 0;
+            }
+            System.arraycopy(bytes, offset, chunks, chunksUsed, length);
+            DataBuffer chunk = bufferFactory.wrap(ByteBuffer.wrap(chunks, chunksUsed, length).slice());
+            chunksUsed += length;
+            return chunk;
+        }
+
+        /*
+         Where the parser writes a part's body, counting its bytes against max-part-bytes
+         */
+        private abstract class PartBody extends StreamStorage {
+
+            private final StreamingPart part;
+            private final long maxBytes;
+            private final String limit;
+            private long size;
+
+            private PartBody(StreamingPart part, long maxBytes, String limit) {
+                this.part = part;
+                this.maxBytes = maxBytes;
+                this.limit = limit;
+            }
+
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                if (failure != null || length == 0) {
+                    return;
+                }
+                size += length;
+                if (size > maxBytes) {
+                    fail(tooLarge(limit, "Part " + part.name() + " exceeds " + maxBytes + " bytes"));
+                    return;
+                }
+                append(bytes, offset, length);
+            }
+
+            protected abstract void append(byte[] bytes, int offset, int length);
+        }
+
+        /*
+         A file's body. Rather than keeping them, the bytes are copied out (the parser reuses its buffer) into a
+         chunk, queued as an event of their part, so there's never anything left to read back
+         */
+        private class StreamedBody extends PartBody {
+
+            private StreamedBody(StreamingPart part) {
+                super(part, maxPartBytes, "part-size");
+            }
+
+            @Override
+            protected void append(byte[] bytes, int offset, int length) {
+                events.add(new Event(((PartBody) this).part, chunk(bytes, offset, length), false));
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            public boolean dispose() {
+                return true;
+            }
+        }
+
+        /*
+         A form field's body, kept in memory, and no larger than max-field-bytes
+         */
+        private class FieldBody extends PartBody {
+
+            private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+            private FieldBody(StreamingPart part) {
+                super(part, Math.min(maxPartBytes, maxFieldBytes), "field-size");
+            }
+
+            @Override
+            protected void append(byte[] bytes, int offset, int length) {
+                value.write(bytes, offset, length);
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(value.toByteArray());
+            }
+
+            @Override
+            public boolean dispose() {
+                value.reset();
+                return true;
+            }
+        }
+    }
+
+    private static HttpHeaders toHttpHeaders(Map<String, List<String>> headers) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        headers.forEach(httpHeaders::put);
+        return httpHeaders;
+    }
+
+    private static class Event {
+
+        private final StreamingPart part;
+        private final DataBuffer chunk;
+        private final boolean last;
+
+        private Event(StreamingPart part, DataBuffer chunk, boolean last) {
+            this.part = part;
+            this.chunk = chunk;
+            this.last = last;
+        }
+
+        private StreamingPart getPart() {
+            return part;
+        }
+
+        private DataBuffer getChunk() {
+            return chunk;
+        }
+
+        private boolean isLast() {
+            return last;
+        }
+    }
+
+    /*
+     A FilePart whose content() is still arriving. It can only be consumed once
+     */
+    private static class StreamingPart implements FilePart {
+
+        private final HttpHeaders headers;
+        private final ContentDisposition disposition;
+        private final Flux<DataBuffer> content;
+
+        private StreamingPart(HttpHeaders headers) {
+            this(headers, Flux.empty());
+        }
+
+        private StreamingPart(HttpHeaders headers, Flux<DataBuffer> content) {
+            this.headers = headers;
+            this.disposition = headers.getContentDisposition();
+            this.content = content;
+        }
+
+        private StreamingPart withContent(Flux<DataBuffer> content) {
+            return new StreamingPart(headers, content);
+        }
+
+        @Override
+        public String name() {
+            return disposition.getName();
+        }
+
+        @Override
+        public String filename() {
+            return disposition.getFilename();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return headers;
+        }
+
+        @Override
+        public Flux<DataBuffer> content() {
+            return content;
+        }
+
+        @Override
+        public Mono<Void> transferTo(File dest) {
+            return Mono.using(
+                    () -> AsynchronousFileChannel.open(dest.toPath(),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE),
+                    channel -> DataBufferUtils.write(content, channel, 0)
+                            .doOnNext(DataBufferUtils::release)
+                            .then(),
+                    channel -> {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@Component
+@ConditionalOnProperty(name = "images.store.type", havingValue = "packed")
+public class PackedSegmentImageStore implements ImageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PackedSegmentImageStore.class);
+
+    private static final String SEGMENT_DIRECTORY = "segments";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index.log";
+    private static final byte PUT = 'P';
+    private static final byte DELETE = 'D';
+    private static final int LISTING_PAGE_SIZE = 1024;
+
+    private final ResourceLoader resourceLoader;
+    private final ImageFileWriter imageFileWriter;
+    private final FileIoScheduler fileIoScheduler;
+    private final BlobGuard blobGuard;
+    private final Path root;
+    private final Path segmentDirectory;
+    private final long maxBlobBytes;
+    private final long maxSegmentBytes;
+    private final double compactionThreshold;
+    private final Counter compactions;
+    private final Scheduler compactor;
+    private final Disposable compaction;
+
+    private final TreeMap<String, Location> index = new TreeMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private FileChannel indexChannel;
+    private boolean opened;
+
+    @Autowired
+    public PackedSegmentImageStore(ResourceLoader resourceLoader,
+                                   ImageFileWriter imageFileWriter,
+                                   FileIoScheduler fileIoScheduler,
+                                   BlobGuard blobGuard,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${images.store.packed.max-blob-bytes:262144}") long maxBlobBytes,
+                                   @Value("${images.store.packed.max-segment-bytes:67108864}") long maxSegmentBytes,
+                                   @Value("${images.store.packed.compaction-threshold:0.5}") double compactionThreshold,
+                                   @Value("${images.store.packed.compaction-interval-ms:60000}") long compactionIntervalMs) {
+        this(resourceLoader, imageFileWriter, fileIoScheduler, blobGuard, meterRegistry, maxBlobBytes,
+                maxSegmentBytes, compactionThreshold, compactionIntervalMs, Paths.get(ImageService.UPLOAD_ROOT));
+    }
+
+    /*
+     With a root other than upload-dir, for the tests
+     */
+    PackedSegmentImageStore(ResourceLoader resourceLoader,
+                            ImageFileWriter imageFileWriter,
+                            FileIoScheduler fileIoScheduler,
+                            BlobGuard blobGuard,
+                            MeterRegistry meterRegistry,
+                            long maxBlobBytes,
+                            long maxSegmentBytes,
+                            double compactionThreshold,
+                            long compactionIntervalMs,
+                            Path root) {
+        this.resourceLoader = resourceLoader;
+        this.imageFileWriter = imageFileWriter;
+        this.fileIoScheduler = fileIoScheduler;
+        this.blobGuard = blobGuard;
+        this.root = root;
+        this.segmentDirectory = root.resolve(SEGMENT_DIRECTORY);
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+        this.maxBlobBytes = Math.min(maxBlobBytes, this.maxSegmentBytes);
+        this.compactionThreshold = compactionThreshold;
+
+        this.compactions = meterRegistry.counter("images.store.packed.compactions");
+        meterRegistry.gauge("images.store.packed.segments", this, PackedSegmentImageStore::segmentCount);
+        meterRegistry.gauge("images.store.packed.live.bytes", this, PackedSegmentImageStore::liveBytes);
+        meterRegistry.gauge("images.store.packed.garbage.bytes", this, PackedSegmentImageStore::garbageBytes);
+
+        this.compactor = Schedulers.newSingle("image-store-compactor");
+        this.compaction = Flux.interval(Duration.ofMillis(compactionIntervalMs), compactor)
+                .subscribe(tick -> compact());
+    }
+
+    /*
+     Most of our images are small thumbnails and avatars. Keeping each of them in a file of its own burns an
+     inode per image, and costs an open/stat/close on every single read. This store packs them instead
+
+     Blobs are appended, one after the other, to large segment files (upload-dir/segments/segment-NNNNNN.dat).
+     Where each blob lives (segment, offset, length and when it was stored) is kept in memory, sorted by the
+     blob's SHA-256, and every change to it is appended to index.log, which is replayed when the store is opened.
+     A record cut short by a crash is simply dropped from the tail of the log
+
+     Reads never copy anything. Each segment is memory-mapped (MappedByteBuffer), and an image is served as a
+     ByteBufferResource over a slice of that mapping, straight out of the OS page cache
+
+     Like ContentAddressedImageStore, blobs are addressed by their hash, so the same bytes are only stored once
+     whatever their names, and a blob only goes away with the last Image referencing it. Deleting a blob only
+     drops it from the index, its bytes become garbage in their segment. A background compactor
+     (image-store-compactor) periodically picks the full segments in which garbage has reached
+     images.store.packed.compaction-threshold, moves their live blobs to the end of the current segment,
+     deletes them and rewrites index.log from scratch. A response still reading from a deleted segment keeps
+     working, since its mapping stays valid until nobody references it anymore
+
+     Anything larger than images.store.packed.max-blob-bytes isn't worth packing, those are kept as their own
+     file in the very same sharded layout ContentAddressedImageStore uses. So are images from before this store
+     existed (without a hash), found by name directly underneath upload-dir
+
+     Packing, looking up (which may open or remap a segment) and deleting all block, so they run on the
+     FileIoScheduler, while compaction has a thread of its own
+
+     A blob is committed (as a loose file, see ImageFileWriter) and deleted through the BlobGuard, the same way
+     as with ContentAddressedImageStore. Packing happens while the blob is pinned, so it's never deleted in the
+     middle of it, and should packing fail, the blob is unpinned right away
+
+     It is selected with images.store.type=packed, so it can be A/B'ed against the plain directory store
+     */
+    @Override
+    public Mono<UploadedFile> store(FilePart file) {
+        return imageFileWriter.write(file, root, hash -> ContentAddressedImageStore.blobPath(root, hash))
+                .flatMap(uploadedFile -> fileIoScheduler.call(() -> pack(uploadedFile))
+                        .doOnError(e -> blobGuard.unpin(uploadedFile.getSha256())))
+                .log("packedSegmentImageStore-store");
+    }
+
+    @Override
+    public Mono<Resource> findOne(Image image) {
+        return fileIoScheduler.call(() -> {
+            if (image.getHash() != null) {
+                synchronized (this) {
+                    open();
+                    Location location = index.get(image.getHash());
+                    if (location != null) {
+                        Segment segment = segments.get(location.segment);
+                        return (Resource) new ByteBufferResource(image.getName(),
+                                segment.slice(location.offset, location.length),
+                                location.storedAt);
+                    }
+                }
+            }
+            return resourceLoader.getResource("file:" + loosePathOf(image));
+        })
+                .log("packedSegmentImageStore-findOne");
+    }
+
+    @Override
+    public Mono<Boolean> delete(Image image, BlobGuard.Claim claim) {
+        return fileIoScheduler.call(() -> {
+            if (claim == null) {
+                Files.deleteIfExists(loosePathOf(image));
+                return true;
+            }
+            return blobGuard.delete(claim, () -> {
+                remove(image.getHash());
+                return Files.deleteIfExists(loosePathOf(image));
+            });
+        })
+                .log("packedSegmentImageStore-delete");
+    }
+
+    /*
+     The packed blobs, merged in hash order with the loose ones. The index is kept sorted by hash, so the packed
+     blobs are handed out a page at a time, each page picking up right after the previous one
+     */
+    @Override
+    public Flux<StoredBlob> blobs(String after) {
+        return Flux.mergeOrdered(Comparator.comparing(StoredBlob::getHash),
+                packedBlobs(after),
+                ContentAddressedImageStore.blobs(root, after, fileIoScheduler))
+                .log("packedSegmentImageStore-blobs");
+    }
+
+    private Flux<StoredBlob> packedBlobs(String after) {
+        return fileIoScheduler.call(() -> packedPage(after))
+                .expand(page -> page.size() < LISTING_PAGE_SIZE
+                        ? Mono.empty()
+                        : fileIoScheduler.call(() -> packedPage(page.get(page.size() - 1).getHash())))
+                .flatMapIterable(page -> page);
+    }
+
+    private synchronized List<StoredBlob> packedPage(String after) throws IOException {
+        open();
+        List<StoredBlob> page = new ArrayList<>(LISTING_PAGE_SIZE);
+        for (Map.Entry<String, Location> entry : index.tailMap(after, false).entrySet()) {
+            if (page.size() == LISTING_PAGE_SIZE) {
+                break;
+            }
+            page.add(new StoredBlob(entry.getKey(), entry.getValue().storedAt));
+        }
+        return page;
+    }
+
+    /*
+     Runs on the image-store-compactor thread. Each blob is moved under the lock on its own, so readers and
+     writers are only ever held up for the time it takes to copy one (small) blob
+     */
+    void compact() {
+        try {
+            for (Segment victim : compactionCandidates()) {
+                for (String hash : liveHashesIn(victim)) {
+                    relocate(hash, victim);
+                }
+                retire(victim);
+                compactions.increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Compacting " + segmentDirectory + " failed, will retry", e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        compaction.dispose();
+        compactor.dispose();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long liveBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.liveBytes).sum();
+    }
+
+    public synchronized long garbageBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size - segment.liveBytes).sum();
+    }
+
+    private synchronized UploadedFile pack(UploadedFile uploadedFile) throws IOException {
+        if (uploadedFile.getSize() > maxBlobBytes) {
+            return uploadedFile;
+        }
+        open();
+        String hash = uploadedFile.getSha256();
+        Path loosePath = uploadedFile.getPath();
+        if (!index.containsKey(hash)) {
+            try (FileChannel source = FileChannel.open(loosePath, StandardOpenOption.READ)) {
+                int length = (int) source.size();
+                Segment segment = segmentFor(length);
+                long offset = segment.size;
+                long transferred = 0;
+                while (transferred < length) {
+                    long count = segment.channel.transferFrom(source, offset + transferred, length - transferred);
+                    if (count <= 0) {
+                        throw new EOFException(loosePath + " ended before " + length + " bytes");
+                    }
+                    transferred += count;
+                }
+                append(hash, segment, offset, length, System.currentTimeMillis());
+            }
+        }
+        Files.deleteIfExists(loosePath);
+        return new UploadedFile(segmentDirectory, uploadedFile.getSize(), hash);
+    }
+
+    private synchronized void remove(String hash) throws IOException {
+        open();
+        Location location = index.remove(hash);
+        if (location != null) {
+            segments.get(location.segment).liveBytes -= location.length;
+            writeIndexRecord(DELETE, hash, null);
+        }
+    }
+
+    private synchronized List<Segment> compactionCandidates() throws IOException {
+        open();
+        List<Segment> candidates = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.size > 0
+                    && (segment.size - segment.liveBytes) >= compactionThreshold * segment.size) {
+                candidates.add(segment);
+            }
+        }
+        return candidates;
+    }
+
+    private synchronized List<String> liveHashesIn(Segment segment) {
+        List<String> hashes = new ArrayList<>();
+        index.forEach((hash, location) -> {
+            if (location.segment == segment.id) {
+                hashes.add(hash);
+            }
+        });
+        return hashes;
+    }
+
+    private synchronized void relocate(String hash, Segment victim) throws IOException {
+        Location location = index.get(hash);
+        if (location == null || location.segment != victim.id) {
+            return;
+        }
+        ByteBuffer content = victim.slice(location.offset, location.length);
+        Segment segment = segmentFor(location.length);
+        long offset = segment.size;
+        while (content.hasRemaining()) {
+            segment.channel.write(content, offset + content.position());
+        }
+        victim.liveBytes -= location.length;
+        append(hash, segment, offset, location.length, location.storedAt);
+    }
+
+    private synchronized void retire(Segment victim) throws IOException {
+        if (victim.liveBytes > 0) {
+            return;
+        }
+        segments.remove(victim.id);
+        victim.channel.close();
+        Files.deleteIfExists(victim.path);
+        rewriteIndex();
+    }
+
+    /*
+     Records where a blob now lives. The segment is forced to disk first, so the index never points at bytes
+     that didn't make it
+     */
+    private void append(String hash, Segment segment, long offset, int length, long storedAt) throws IOException {
+        segment.channel.force(false);
+        segment.size = offset + length;
+        segment.liveBytes += length;
+        Location location = new Location(segment.id, offset, length, storedAt);
+        writeIndexRecord(PUT, hash, location);
+        index.put(hash, location);
+    }
+
+    private Segment segmentFor(int length) throws IOException {
+        if (active == null || active.size + length > maxSegmentBytes) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = openSegment(id);
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = segmentDirectory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(id, path, channel);
+    }
+
+    /*
+     The store is opened on first use rather than on startup, since upload-dir is only set up by the
+     CommandLineRunners once the application context is ready
+     */
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        Files.createDirectories(segmentDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = openSegment(id);
+                segment.size = segment.channel.size();
+                segments.put(id, segment);
+            }
+        }
+        replayIndex();
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            active = last.size < maxSegmentBytes ? last : null;
+        }
+        opened = true;
+    }
+
+    private void replayIndex() throws IOException {
+        Path indexFile = segmentDirectory.resolve(INDEX_FILE);
+        long validLength = 0;
+        if (Files.exists(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                while (true) {
+                    byte op = in.readByte();
+                    String hash = in.readUTF();
+                    long length = 1 + 2 + hash.length();
+                    if (op == PUT) {
+                        index.put(hash, new Location(in.readInt(), in.readLong(), in.readInt(), in.readLong()));
+                        length += 4 + 8 + 4 + 8;
+                    } else if (op == DELETE) {
+                        index.remove(hash);
+                    } else {
+                        break;
+                    }
+                    validLength += length;
+                }
+            } catch (EOFException e) {
+                // a record cut short by a crash, everything before it is fine
+            }
+        }
+
+        index.values().removeIf(location -> {
+            Segment segment = segments.get(location.segment);
+            return segment == null || location.offset + location.length > segment.size;
+        });
+        index.values().forEach(location -> segments.get(location.segment).liveBytes += location.length);
+
+        indexChannel = FileChannel.open(indexFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        indexChannel.truncate(validLength);
+        indexChannel.position(validLength);
+    }
+
+    private void rewriteIndex() throws IOException {
+        Path indexFile = segmentDirectory.resolve(INDEX_FILE);
+        Path rewritten = segmentDirectory.resolve(INDEX_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(rewritten,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                writeFully(channel, indexRecord(PUT, entry.getKey(), entry.getValue()));
+            }
+            channel.force(false);
+        }
+        indexChannel.close();
+        Files.move(rewritten, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeIndexRecord(byte op, String hash, Location location) throws IOException {
+        writeFully(indexChannel, indexRecord(op, hash, location));
+    }
+
+    private static ByteBuffer indexRecord(byte op, String hash, Location location) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            out.writeUTF(hash);
+            if (op == PUT) {
+                out.writeInt(location.segment);
+                out.writeLong(location.offset);
+                out.writeInt(location.length);
+                out.writeLong(location.storedAt);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Path loosePathOf(Image image) {
+        return image.getHash() == null
+                ? root.resolve(image.getName())
+                : ContentAddressedImageStore.blobPath(root, image.getHash());
+    }
+
+    private static class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final long storedAt;
+
+        private Location(int segment, long offset, int length, long storedAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+        private MappedByteBuffer mapped;
+
+        private Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /*
+         The mapping only covers what the segment held when it was last mapped. Reading a blob appended since
+         then remaps the segment to its current size, which for a full segment happens at most once
+         */
+        private ByteBuffer slice(long offset, int length) throws IOException {
+            if (mapped == null || offset + length > mapped.capacity()) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) offset);
+            slice.limit((int) offset + length);
+            return slice.slice();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+
+@Data
+public class UploadedFile {
+
+    /*
+     What ImageFileWriter learned about an upload while streaming it to disk, so nobody has to go back
+     to the filesystem to find out its size or re-read it to compute its hash
+     */
+
+    final private Path path;
+    final private long size;
+    final private String sha256;
+
+    public UploadedFile(Path path, long size, String sha256) {
+        this.path = path;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+}
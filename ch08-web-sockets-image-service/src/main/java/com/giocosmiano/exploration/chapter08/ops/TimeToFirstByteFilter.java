@@ -0,0 +1,97 @@
+package com.giocosmiano.exploration.chapter08.ops;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Component
+public class TimeToFirstByteFilter implements WebFilter {
+
+	/*
+	 Records how long every HTML page takes to send its first byte (http.server.ttfb, tagged with the page's
+	 uri pattern), which is what decides how soon the browser starts fetching the page's stylesheet and images.
+	 Spring Boot's own http.server.requests only tells how long the whole response took
+
+	 The response is decorated, so the clock is stopped when the first buffer of its body is handed to the
+	 server, whether it's written all at once (writeWith) or a chunk at a time (writeAndFlushWith, as Thymeleaf
+	 does in chunked mode). Only text/html responses are recorded, the images and the JSON APIs are left out,
+	 and so are bodiless ones (e.g. a 304)
+
+	 Only the GETs of the pages (images.ttfb.paths, the home page and the rows of its next pages) are decorated
+	 at all, every other request goes down the chain with its response untouched. The decorator isn't a
+	 ZeroCopyHttpOutputMessage, so the images (/raw, /thumb) going through it would lose sendfile, and have every
+	 byte copied through the heap instead
+	 */
+
+	private final MeterRegistry meterRegistry;
+	private final Set<String> paths;
+
+	public TimeToFirstByteFilter(MeterRegistry meterRegistry,
+								 @Value("${images.ttfb.paths:/,/images}") String[] paths) {
+		this.meterRegistry = meterRegistry;
+		this.paths = new HashSet<>(Arrays.asList(paths));
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		ServerHttpRequest request = exchange.getRequest();
+		if (request.getMethod() != HttpMethod.GET
+				|| !paths.contains(request.getPath().pathWithinApplication().value())) {
+			return chain.filter(exchange);
+		}
+
+		long start = System.nanoTime();
+		AtomicBoolean recorded = new AtomicBoolean();
+
+		ServerHttpResponse response = new ServerHttpResponseDecorator(exchange.getResponse()) {
+			@Override
+			public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+				return super.writeWith(Flux.from(body)
+						.doOnNext(buffer -> firstByte(exchange, start, recorded)));
+			}
+
+			@Override
+			public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+				return super.writeAndFlushWith(Flux.from(body)
+						.map(chunk -> Flux.from(chunk)
+								.doOnNext(buffer -> firstByte(exchange, start, recorded))));
+			}
+		};
+
+		return chain.filter(exchange.mutate().response(response).build());
+	}
+
+	private void firstByte(ServerWebExchange exchange, long start, AtomicBoolean recorded) {
+		MediaType contentType = exchange.getResponse().getHeaders().getContentType();
+		if (contentType == null || !MediaType.TEXT_HTML.isCompatibleWith(contentType)
+				|| !recorded.compareAndSet(false, true)) {
+			return;
+		}
+		Object pattern = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		Timer
+				.builder("http.server.ttfb")
+				.tag("uri", pattern != null ? pattern.toString() : "UNKNOWN")
+				.register(meterRegistry)
+				.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,167 @@
+package com.giocosmiano.exploration.chapter08.comments.controller;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.comments.metrics.HotImages;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.messaging.Message;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.Disposable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class CommentControllerTests {
+
+    /*
+     The CommentController with a real CommentQueue (room for 2 comments, 1 taken off it at a time, reject when
+     full), and a slow channel. The channel subscribes the way Spring Cloud Stream's FluxSender does, asking for
+     everything at once, and blocks on every message until it's let go, like a publish to a RabbitMQ that can't
+     keep up
+
+     Posting a comment must never wait for the channel. The first comment is taken off the queue and stuck in the
+     channel, the next two wait in the queue, and the fourth finds it full and is turned down with a 503. Once the
+     channel is let go, the comments that were accepted all get through
+
+     The id a comment is saved with is stamped here. A client's own id (an ObjectId) makes a retried post the same
+     comment again, but it can't make a different comment pass for one already posted
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private final List<Message<Comment>> sent = new CopyOnWriteArrayList<>();
+    private final CountDownLatch slow = new CountDownLatch(1);
+    private final CountDownLatch delivered = new CountDownLatch(3);
+
+    private CommentQueue commentQueue;
+    private Disposable channel;
+    private WebTestClient webClient;
+
+    @Before
+    public void setUp() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        commentQueue = new CommentQueue(meterRegistry, 2, "reject", 100, 1);
+        channel = commentQueue.messages()
+                .subscribe(message -> {
+                    try {
+                        slow.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    sent.add(message);
+                    delivered.countDown();
+                });
+
+        webClient = WebTestClient
+                .bindToController(new CommentController(new HotImages(meterRegistry, 100, 20),
+                        commentQueue, false, 100, 50))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        slow.countDown();
+        channel.dispose();
+        commentQueue.close();
+    }
+
+    @Test(timeout = 10000)
+    public void commentsShouldBeTurnedDownOnceTheQueueIsFull() throws InterruptedException {
+        // when
+        HttpStatus first = post("first");
+        HttpStatus second = post("second");
+        HttpStatus third = post("third");
+        HttpStatus fourth = post("fourth");
+
+        // then
+        assertThat(first).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(second).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(third).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(fourth).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        assertThat(commentQueue.size()).isEqualTo(2);
+        assertThat(sent).isEmpty();
+
+        // and when
+        slow.countDown();
+
+        // then
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(sent)
+                .extracting(message -> message.getPayload().getComment())
+                .containsExactly("first", "second", "third");
+        assertThat(commentQueue.size()).isZero();
+    }
+
+    @Test(timeout = 10000)
+    public void aRetriedPostShouldKeepItsIdButAClashingOneShouldNot() throws InterruptedException {
+        // given
+        String clientId = new ObjectId().toHexString();
+        slow.countDown();
+
+        // when
+        post(clientId, "1", "first");
+        post(clientId, "1", "first");
+        post(clientId, "1", "second");
+
+        // then
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(sent.get(0).getPayload().getId())
+                .isEqualTo(sent.get(1).getPayload().getId())
+                .isNotEqualTo(sent.get(2).getPayload().getId())
+                .isNotEqualTo(clientId);
+    }
+
+    @Test
+    public void anIdOfTheClientShouldOnlyBeTakenIfItIsAnObjectId() {
+        // given
+        String clientId = new ObjectId().toHexString();
+
+        // when
+        String retried = CommentController.commentId(new Comment(clientId, "1", "first"));
+        String otherImage = CommentController.commentId(new Comment(clientId, "2", "first"));
+        String notAnObjectId = CommentController.commentId(new Comment("someone-else's", "1", "first"));
+        String none = CommentController.commentId(new Comment(null, "1", "first"));
+
+        // then
+        assertThat(retried)
+                .isEqualTo(CommentController.commentId(new Comment(clientId, "1", "first")))
+                .isNotEqualTo(otherImage);
+        assertThat(new ObjectId(retried).getTimestamp()).isEqualTo(new ObjectId(clientId).getTimestamp());
+        assertThat(ObjectId.isValid(notAnObjectId)).isTrue();
+        assertThat(notAnObjectId)
+                .isNotEqualTo(CommentController.commentId(new Comment("someone-else's", "1", "first")));
+        assertThat(ObjectId.isValid(none)).isTrue();
+    }
+
+    private HttpStatus post(String comment) {
+        return post(null, "1", comment);
+    }
+
+    private HttpStatus post(String id, String imageId, String comment) {
+        BodyInserters.FormInserter<String> form = BodyInserters.fromFormData("imageId", imageId)
+                .with("comment", comment);
+        if (id != null) {
+            form = form.with("id", id);
+        }
+        return webClient
+                .post()
+                .uri("/comments")
+                .body(form)
+                .exchange()
+                .returnResult(Void.class)
+                .getStatus();
+    }
+}
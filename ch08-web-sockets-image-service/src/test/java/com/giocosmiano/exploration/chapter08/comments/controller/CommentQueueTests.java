@@ -0,0 +1,62 @@
+package com.giocosmiano.exploration.chapter08.comments.controller;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class CommentQueueTests {
+
+    /*
+     A CommentQueue holding five comments, handed on in batches of at most two comments, or whatever is there
+     200ms after a batch's first comment left the queue
+
+     The comments go out in order, two full batches right away, then the fifth one on its own once the delay is up
+     rather than waiting for a sixth. Every batch says how many comments it holds, in its comment-batch-size header
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CommentQueue commentQueue = new CommentQueue(meterRegistry, 100, "reject", 100, 16);
+
+    @After
+    public void tearDown() {
+        commentQueue.close();
+    }
+
+    @Test(timeout = 10000)
+    public void commentsShouldBeBatchedBySizeThenByDelay() {
+        // given
+        for (int i = 1; i <= 5; i++) {
+            Comment comment = new Comment("c" + i, "image-1", "Comment #" + i);
+            assertThat(commentQueue.offer(MessageBuilder.withPayload(comment).build())
+                    .block(Duration.ofSeconds(5))).isTrue();
+        }
+
+        // when
+        List<Message<List<Comment>>> batches = commentQueue.batches(2, Duration.ofMillis(200))
+                .take(3)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(batches.stream().map(batch -> batch.getHeaders().get(CommentQueue.BATCH_SIZE_HEADER)))
+                .containsExactly(2, 2, 1);
+        assertThat(batches.stream().flatMap(batch -> batch.getPayload().stream()).map(Comment::getId))
+                .containsExactly("c1", "c2", "c3", "c4", "c5");
+        assertThat(commentQueue.size()).isZero();
+        assertThat(meterRegistry.summary("comments.publish.batch-size").count()).isEqualTo(3);
+        assertThat(meterRegistry.summary("comments.publish.batch-size").totalAmount()).isEqualTo(5);
+    }
+}
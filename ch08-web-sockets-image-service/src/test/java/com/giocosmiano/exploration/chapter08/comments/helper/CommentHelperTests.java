@@ -0,0 +1,148 @@
+package com.giocosmiano.exploration.chapter08.comments.helper;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.reactive.function.client.WebClientAutoConfiguration;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerRequest;
+import org.springframework.cloud.client.loadbalancer.reactive.LoadBalancerExchangeFilterFunction;
+import org.springframework.cloud.client.loadbalancer.reactive.ReactiveLoadBalancerAutoConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.NettyContext;
+import reactor.ipc.netty.http.server.HttpServer;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class CommentHelperTests {
+
+	/*
+	 CommentHelper wired up by Spring the way the application wires it, Config's WebClient, Boot's
+	 WebClientAutoConfiguration and Spring Cloud's ReactiveLoadBalancerAutoConfiguration included, so the
+	 WebClient it's handed is the one it really gets
+
+	 COMMENTS is a stubbed comments service, a Reactor Netty server on a random port, and the LoadBalancerClient
+	 (Ribbon, in the application) resolves COMMENTS to it. The call only gets an answer if the load balancer sits
+	 in front of the WebClient, otherwise http://COMMENTS/... doesn't resolve and the fallback completes empty.
+	 Boot's WebClient.Builder, which the rest of the application builds from, must be left without it
+	 */
+
+	@ClassRule
+	public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+	private static volatile int commentsPort;
+
+	private NettyContext comments;
+	private AnnotationConfigApplicationContext context;
+
+	@Before
+	public void setUp() {
+		comments = HttpServer.create(0)
+				.newRouter(routes -> routes.post("/comments/batch", (request, response) -> response
+						.header(HttpHeaderNames.CONTENT_TYPE, MediaType.APPLICATION_STREAM_JSON_VALUE)
+						.sendString(Mono.just("{\"imageId\":\"1\",\"comments\":"
+								+ "[{\"id\":\"c1\",\"imageId\":\"1\",\"comment\":\"Nice!\"}]}\n"))))
+				.block();
+		commentsPort = comments.address().getPort();
+
+		context = new AnnotationConfigApplicationContext(StubComments.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+		comments.dispose();
+	}
+
+	@Test
+	public void commentsShouldComeFromTheLoadBalancedCommentsService() {
+		// when
+		Map<String, List<Comment>> found = context.getBean(CommentHelper.class)
+				.getComments(Collections.singletonList(new Image("1", "alpha.png")))
+				.block();
+
+		// then
+		assertThat(found).containsOnlyKeys("1");
+		assertThat(found.get("1"))
+				.extracting(Comment::getId, Comment::getComment)
+				.containsExactly(tuple("c1", "Nice!"));
+	}
+
+	@Test
+	public void theApplicationsWebClientBuilderShouldNotBeLoadBalanced() {
+		// when
+		List<ExchangeFilterFunction> filters = new ArrayList<>();
+		context.getBean(WebClient.Builder.class).filters(filters::addAll);
+
+		// then
+		assertThat(filters).noneMatch(LoadBalancerExchangeFilterFunction.class::isInstance);
+	}
+
+	@Configuration
+	@Import({Config.class, CommentHelper.class})
+	@ImportAutoConfiguration({WebClientAutoConfiguration.class, ReactiveLoadBalancerAutoConfiguration.class})
+	static class StubComments {
+
+		@Bean
+		MeterRegistry meterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+
+		@Bean
+		LoadBalancerClient loadBalancerClient() {
+			return new LoadBalancerClient() {
+
+				@Override
+				public ServiceInstance choose(String serviceId) {
+					return "COMMENTS".equals(serviceId)
+							? new DefaultServiceInstance(serviceId, "localhost", commentsPort, false)
+							: null;
+				}
+
+				@Override
+				public URI reconstructURI(ServiceInstance instance, URI original) {
+					return UriComponentsBuilder.fromUri(original)
+							.host(instance.getHost())
+							.port(instance.getPort())
+							.build(true)
+							.toUri();
+				}
+
+				@Override
+				public <T> T execute(String serviceId, LoadBalancerRequest<T> request) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public <T> T execute(String serviceId, ServiceInstance serviceInstance,
+									 LoadBalancerRequest<T> request) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.giocosmiano.exploration.chapter08.comments.view;
+
+import com.giocosmiano.exploration.chapter08.comments.domain.Comment;
+import com.giocosmiano.exploration.chapter08.comments.helper.CommentHelper;
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.images.service.ImageService;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CommentViewTests {
+
+    /*
+     A CommentView holding at most two images, and at most two comments for each, over a stand-in for the
+     comments service that has a single comment for every image it's asked about
+
+     An image is backfilled from the comments service the first time it's shown, and served from the view after
+     that, along with the comments saved for it in the meantime (the most recent ones only). Once a third image is
+     shown, the image shown least recently is dropped, and backfilled again the next time it's shown. So is an
+     image whose comments have grown older than the TTL. When the comments service can't be reached, the images
+     it was asked about are reported as unavailable, and backfilled on the next try
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Image alpha = new Image("1", "alpha.png");
+    private final Image bravo = new Image("2", "bravo.png");
+    private final Image charlie = new Image("3", "charlie.png");
+
+    private CommentHelper commentHelper;
+
+    @Before
+    public void setUp() {
+        commentHelper = mock(CommentHelper.class);
+        when(commentHelper.getComments(anyList())).then(invocation -> {
+            List<Image> images = invocation.getArgument(0);
+            Map<String, List<Comment>> comments = images.stream().collect(Collectors.toMap(Image::getId, image ->
+                    Collections.singletonList(new Comment("c" + image.getId(), image.getId(), "backfilled"))));
+            return Mono.just(comments);
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void aShownImageShouldBeServedFromTheViewWithItsNewComments() {
+        // given
+        CommentView view = view(60000);
+        assertThat(comments(view, alpha)).extracting(Comment::getId).containsExactly("c1");
+
+        // when
+        view.onSavedComment(new Comment("n1", "1", "first"));
+        view.onSavedComment(new Comment("n2", "1", "second"));
+        view.onSavedComment(new Comment("n3", "2", "not shown yet"));
+
+        // then
+        assertThat(comments(view, alpha)).extracting(Comment::getId).containsExactly("n1", "n2");
+        assertThat(view.size()).isEqualTo(1);
+        verify(commentHelper, times(1)).getComments(anyList());
+        assertThat(meterRegistry.counter("comments.view.hits").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("comments.view.misses").count()).isEqualTo(1);
+    }
+
+    @Test(timeout = 10000)
+    public void theImageShownLeastRecentlyShouldBeDroppedFirst() {
+        // given
+        CommentView view = view(60000);
+        comments(view, alpha);
+        comments(view, bravo);
+        comments(view, alpha);
+
+        // when
+        comments(view, charlie);
+
+        // then
+        assertThat(view.size()).isEqualTo(2);
+
+        // and when
+        assertThat(comments(view, bravo)).extracting(Comment::getId).containsExactly("c2");
+
+        // then
+        verify(commentHelper, times(1)).getComments(Collections.singletonList(alpha));
+        verify(commentHelper, times(2)).getComments(Collections.singletonList(bravo));
+        assertThat(meterRegistry.counter("comments.view.hits").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("comments.view.misses").count()).isEqualTo(4);
+    }
+
+    @Test(timeout = 10000)
+    public void commentsOlderThanTheTtlShouldBeBackfilledAgain() throws InterruptedException {
+        // given
+        CommentView view = view(50);
+        comments(view, alpha);
+
+        // when
+        Thread.sleep(100);
+        comments(view, alpha);
+
+        // then
+        verify(commentHelper, times(2)).getComments(Collections.singletonList(alpha));
+        assertThat(meterRegistry.counter("comments.view.misses").count()).isEqualTo(2);
+    }
+
+    @Test(timeout = 10000)
+    public void imagesThatCouldNotBeBackfilledShouldBeReported() {
+        // given
+        CommentView view = view(60000);
+        comments(view, alpha);
+        when(commentHelper.getComments(Collections.singletonList(bravo))).thenReturn(Mono.empty(),
+                Mono.just(Collections.singletonMap("2", Collections.singletonList(new Comment("c2", "2", "back")))));
+
+        // when
+        ViewedComments viewed = view.getComments(Arrays.asList(alpha, bravo)).block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(viewed.isComplete()).isFalse();
+        assertThat(viewed.getUnavailable()).containsExactly("2");
+        assertThat(viewed.getComments()).containsOnlyKeys("1");
+
+        // and when
+        viewed = view.getComments(Arrays.asList(alpha, bravo)).block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(viewed.isComplete()).isTrue();
+        assertThat(viewed.getComments()).containsOnlyKeys("1", "2");
+        verify(commentHelper, times(2)).getComments(Collections.singletonList(bravo));
+    }
+
+    private CommentView view(long ttlMs) {
+        return new CommentView(commentHelper, mock(ImageService.class), mock(ApplicationEventPublisher.class),
+                meterRegistry, 20, 2, 2, ttlMs);
+    }
+
+    private static List<Comment> comments(CommentView view, Image image) {
+        return view.getComments(Collections.singletonList(image))
+                .block(Duration.ofSeconds(5))
+                .getComments()
+                .get(image.getId());
+    }
+}
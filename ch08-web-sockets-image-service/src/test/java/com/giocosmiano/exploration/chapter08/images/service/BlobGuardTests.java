@@ -0,0 +1,72 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class BlobGuardTests {
+
+    /*
+     A delete of a blob against the upload reusing it. The delete claims the hash, then only deletes the blob if
+     no upload has committed it in the meantime, and none still holds it pinned
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private static final String HASH = "3fa9c2";
+
+    private final BlobGuard blobGuard = new BlobGuard();
+
+    @Test
+    public void aBlobShouldNotBeDeletedWhileItIsPinned() throws Exception {
+        // given
+        blobGuard.commit(HASH, () -> null);
+        BlobGuard.Claim claim = blobGuard.claim(HASH);
+        AtomicBoolean deleted = new AtomicBoolean();
+
+        // when
+        boolean ran = blobGuard.delete(claim, () -> deleted.getAndSet(true));
+
+        // then
+        assertThat(ran).isFalse();
+        assertThat(deleted).isFalse();
+    }
+
+    @Test
+    public void aBlobCommittedAgainSinceTheClaimShouldNotBeDeleted() throws Exception {
+        // given
+        BlobGuard.Claim claim = blobGuard.claim(HASH);
+        blobGuard.commit(HASH, () -> null);
+        blobGuard.unpin(HASH);
+        AtomicBoolean deleted = new AtomicBoolean();
+
+        // when
+        boolean ran = blobGuard.delete(claim, () -> deleted.getAndSet(true));
+
+        // then
+        assertThat(ran).isFalse();
+        assertThat(deleted).isFalse();
+    }
+
+    @Test
+    public void aBlobNobodyUsesShouldBeDeleted() throws Exception {
+        // given
+        blobGuard.commit(HASH, () -> null);
+        blobGuard.unpin(HASH);
+        BlobGuard.Claim claim = blobGuard.claim(HASH);
+        AtomicBoolean deleted = new AtomicBoolean();
+
+        // when
+        boolean ran = blobGuard.delete(claim, () -> deleted.getAndSet(true));
+        blobGuard.release(claim);
+
+        // then
+        assertThat(ran).isTrue();
+        assertThat(deleted).isTrue();
+    }
+}
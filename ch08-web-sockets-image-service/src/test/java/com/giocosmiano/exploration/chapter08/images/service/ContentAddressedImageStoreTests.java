@@ -0,0 +1,94 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class ContentAddressedImageStoreTests {
+
+    /*
+     The content-addressed layout in a temporary upload-dir. Blobs are written the way the store writes them,
+     to the sharded path of their hash (upload-dir/3f/a9/3fa9...)
+
+     The same bytes uploaded under two names are stored once. And listing the blobs walks the shards in hash
+     order, starting after the given hash, skipping whatever isn't part of the layout
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private final ImageFileWriter writer =
+            new ImageFileWriter(2, 1024, io.fileIoScheduler(), new BlobGuard(), io.meterRegistry());
+
+    @Test(timeout = 10000)
+    public void theSameBytesUploadedTwiceShouldBeStoredOnce() throws IOException {
+        // given
+        Path root = io.root();
+
+        // when
+        UploadedFile first = store(root, "cover.jpg", "the same bytes");
+        UploadedFile second = store(root, "copy-of-cover.jpg", "the same bytes");
+
+        // then
+        assertThat(second.getPath())
+                .isEqualTo(first.getPath())
+                .isEqualTo(root.resolve(first.getSha256().substring(0, 2))
+                        .resolve(first.getSha256().substring(2, 4))
+                        .resolve(first.getSha256()));
+        assertThat(blobs(root, "")).extracting(StoredBlob::getHash).containsExactly(first.getSha256());
+    }
+
+    @Test(timeout = 10000)
+    public void blobsShouldBeListedInHashOrderAfterTheGivenOne() throws IOException {
+        // given
+        Path root = io.root();
+        String a = store(root, "a.png", "alpha").getSha256();
+        String b = store(root, "b.png", "bravo").getSha256();
+        String c = store(root, "c.png", "charlie").getSha256();
+        Files.write(root.resolve("legacy.png"), new byte[]{1});
+        Files.createDirectories(root.resolve("thumbnails"));
+        String[] hashes = {a, b, c};
+        Arrays.sort(hashes);
+
+        // when
+        List<StoredBlob> all = blobs(root, "");
+        List<StoredBlob> afterFirst = blobs(root, hashes[0]);
+
+        // then
+        assertThat(all).extracting(StoredBlob::getHash).containsExactly(hashes);
+        assertThat(afterFirst).extracting(StoredBlob::getHash).containsExactly(hashes[1], hashes[2]);
+    }
+
+    private UploadedFile store(Path root, String name, String content) {
+        FilePart filePart = mock(FilePart.class);
+        when(filePart.filename()).thenReturn(name);
+        when(filePart.content()).thenReturn(Flux.just(new DefaultDataBufferFactory()
+                .wrap(content.getBytes(StandardCharsets.UTF_8))));
+        return writer.write(filePart, root, hash -> ContentAddressedImageStore.blobPath(root, hash))
+                .block(Duration.ofSeconds(5));
+    }
+
+    private List<StoredBlob> blobs(Path root, String after) {
+        return ContentAddressedImageStore.blobs(root, after, io.fileIoScheduler())
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,56 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class FrequencySketchTests {
+
+    /*
+     Collisions in a FrequencySketch far smaller than the number of keys counted may only ever make a key look
+     more popular than it is, never less. And its counts age (halve) once its sample (10 increments per counter
+     of a row) is full
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Test
+    public void aKeysFrequencyShouldNeverBeUnderestimated() {
+        // given
+        FrequencySketch sketch = new FrequencySketch(64);
+
+        // when
+        for (int key = 0; key < 200; key++) {
+            for (int i = 0; i < key % 5; i++) {
+                sketch.increment("image-" + key);
+            }
+        }
+
+        // then
+        for (int key = 0; key < 200; key++) {
+            assertThat(sketch.frequency("image-" + key)).isGreaterThanOrEqualTo(key % 5);
+        }
+    }
+
+    @Test
+    public void frequenciesShouldAgeOnceTheSampleIsFull() {
+        // given
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 12; i++) {
+            sketch.increment("hot.png");
+        }
+        int before = sketch.frequency("hot.png");
+
+        // when
+        for (int key = 0; key < 10 * 1024; key++) {
+            sketch.increment("one-off-" + key);
+        }
+
+        // then
+        assertThat(before).isEqualTo(12);
+        assertThat(sketch.frequency("hot.png")).isLessThan(before);
+    }
+}
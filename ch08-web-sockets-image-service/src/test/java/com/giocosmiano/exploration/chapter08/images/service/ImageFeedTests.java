@@ -0,0 +1,166 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.reactivestreams.client.ChangeStreamPublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.MonoProcessor;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ImageFeedTests {
+
+    /*
+     The ImageFeed following a stand-in for MongoDB's change stream on the Image collection. The first time it's
+     opened, it hands out a single insert, then fails the way a dropped connection does. Every time after that,
+     it hands out an update of that very image (its name uploaded again), then stays open
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private MongoCollection<Document> collection;
+    private ChangeStreamPublisher<Document> watch;
+    private ReactiveMongoOperations operations;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(mock(DbRefResolver.class), mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+
+        watch = mock(ChangeStreamPublisher.class);
+        when(watch.fullDocument(any())).thenReturn(watch);
+        when(watch.resumeAfter(any())).thenReturn(watch);
+
+        collection = mock(MongoCollection.class);
+        when(collection.watch()).thenReturn(watch);
+
+        operations = mock(ReactiveMongoOperations.class);
+        when(operations.getConverter()).thenReturn(converter);
+        when(operations.getCollection("image")).thenReturn(collection);
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings("unchecked")
+    public void theChangeStreamShouldBeResumedWhereItLeftOffAfterItFails() {
+        // given
+        BsonDocument token = token("1");
+        AtomicInteger opened = new AtomicInteger();
+        doAnswer(invocation -> {
+            Subscriber<ChangeStreamDocument<Document>> subscriber = invocation.getArgument(0);
+            if (opened.getAndIncrement() == 0) {
+                Flux.just(change(OperationType.INSERT, token, image("cover.jpg")))
+                        .concatWith(Flux.error(new MongoSocketReadException("Gone", new ServerAddress())))
+                        .subscribe(subscriber);
+            } else {
+                Flux.just(change(OperationType.UPDATE, token("2"), image("cover.jpg")))
+                        .concatWith(Flux.never())
+                        .subscribe(subscriber);
+            }
+            return null;
+        }).when(watch).subscribe(any());
+        ImageFeed imageFeed = new ImageFeed(operations, "change-stream", 16, 10, 100);
+
+        // when
+        List<ImageEvent> events = imageFeed.changes()
+                .take(2)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // then
+        assertThat(events)
+                .extracting(ImageEvent::getType, ImageEvent::getName)
+                .containsExactly(
+                        tuple(ImageEvent.Type.CREATED, "cover.jpg"),
+                        tuple(ImageEvent.Type.REPLACED, "cover.jpg"));
+        verify(watch).resumeAfter(token);
+    }
+
+    @Test
+    public void aDeletionShouldCarryTheNameOfAnImageSeenBefore() {
+        // given
+        ImageFeed imageFeed = new ImageFeed(operations, "change-stream", 16, 10, 100);
+        imageFeed.toEvent(change(OperationType.INSERT, token("1"), image("cover.jpg")));
+
+        // when
+        ImageEvent deleted = imageFeed.toEvent(deletion("id-cover.jpg"));
+        ImageEvent unknown = imageFeed.toEvent(deletion("id-never-seen.jpg"));
+
+        // then
+        assertThat(deleted.getType()).isEqualTo(ImageEvent.Type.DELETED);
+        assertThat(deleted.getId()).isEqualTo("id-cover.jpg");
+        assertThat(deleted.getName()).isEqualTo("cover.jpg");
+        assertThat(unknown.getName()).isNull();
+    }
+
+    @Test(timeout = 10000)
+    public void theLocalFeedShouldHandOutThisInstancesEvents() {
+        // given
+        ImageFeed imageFeed = new ImageFeed(operations, "local", 16, 10, 100);
+        Image image = new Image("id-1", "cover.jpg", "hash");
+
+        MonoProcessor<List<ImageEvent>> followed = imageFeed.changes()
+                .take(1)
+                .collectList()
+                .toProcessor();
+
+        // when
+        imageFeed.onImage(ImageEvent.replaced(image));
+
+        // then
+        List<ImageEvent> events = followed.block(Duration.ofSeconds(5));
+        assertThat(events)
+                .extracting(ImageEvent::getType, ImageEvent::getName)
+                .containsExactly(tuple(ImageEvent.Type.REPLACED, "cover.jpg"));
+        verifyZeroInteractions(collection);
+    }
+
+    private static Document image(String name) {
+        return new Document("_id", "id-" + name).append("name", name);
+    }
+
+    private static BsonDocument token(String data) {
+        return new BsonDocument("_data", new BsonString(data));
+    }
+
+    private static ChangeStreamDocument<Document> change(OperationType type, BsonDocument token, Document image) {
+        return new ChangeStreamDocument<>(token, new MongoNamespace("test.image"), image,
+                new BsonDocument("_id", new BsonString(image.getString("_id"))), type, null);
+    }
+
+    private static ChangeStreamDocument<Document> deletion(String id) {
+        return new ChangeStreamDocument<>(token("3"), new MongoNamespace("test.image"), null,
+                new BsonDocument("_id", new BsonString(id)), OperationType.DELETE, null);
+    }
+}
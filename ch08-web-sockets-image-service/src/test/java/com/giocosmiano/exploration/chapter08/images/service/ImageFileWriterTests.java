@@ -0,0 +1,112 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static com.giocosmiano.exploration.chapter08.images.service.ImageIoFixture.image;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class ImageFileWriterTests {
+
+    /*
+     The ImageFileWriter with a budget of 256 bytes in flight, writing files handed over in buffers of 100 bytes
+     into a temporary upload-dir, each one addressed by its hash
+
+     The file's bytes are read a single time, yet it ends up on disk as it was sent, along with its size and
+     SHA-256. No temp file (.upload-*.part) is ever left behind, neither once the file is in place nor when the
+     upload fails half way
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private final ImageFileWriter writer =
+            new ImageFileWriter(2, 256, io.fileIoScheduler(), new BlobGuard(), io.meterRegistry());
+
+    @Test(timeout = 10000)
+    public void aFileShouldBeWrittenInASinglePassAndAddressedByItsHash() throws IOException {
+        // given
+        byte[] image = image(1000);
+        Path directory = io.root();
+
+        // when
+        UploadedFile uploaded = writer.write(filePart(Flux.fromIterable(buffers(image))), directory,
+                directory::resolve)
+                .block(Duration.ofSeconds(5));
+
+        // then
+        String sha256 = ImageFileWriter.toHex(ImageFileWriter.sha256().digest(image));
+        assertThat(uploaded.getSha256()).isEqualTo(sha256);
+        assertThat(uploaded.getSize()).isEqualTo(image.length);
+        assertThat(uploaded.getPath()).isEqualTo(directory.resolve(sha256));
+        assertThat(Files.readAllBytes(uploaded.getPath())).isEqualTo(image);
+        assertThat(tempFiles(directory)).isEmpty();
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedUploadShouldLeaveNoTempFileBehind() throws InterruptedException {
+        // given
+        Path directory = io.root();
+        Flux<DataBuffer> content = Flux.fromIterable(buffers(image(300)))
+                .concatWith(Flux.error(new IllegalStateException("Connection reset")));
+
+        // when
+        Throwable failure = catchThrowable(() -> writer.write(filePart(content), directory, directory::resolve)
+                .block(Duration.ofSeconds(5)));
+
+        // then
+        assertThat(failure).hasMessageContaining("Connection reset");
+        while (!tempFiles(directory).isEmpty()) {
+            Thread.sleep(10);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    private static FilePart filePart(Flux<DataBuffer> content) {
+        FilePart filePart = mock(FilePart.class);
+        when(filePart.filename()).thenReturn("cover.jpg");
+        when(filePart.content()).thenReturn(content);
+        return filePart;
+    }
+
+    private static List<DataBuffer> buffers(byte[] bytes) {
+        List<DataBuffer> buffers = new ArrayList<>();
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        for (int offset = 0; offset < bytes.length; offset += 100) {
+            int length = Math.min(100, bytes.length - offset);
+            buffers.add(bufferFactory.allocateBuffer(length).write(bytes, offset, length));
+        }
+        return buffers;
+    }
+
+    private static List<Path> tempFiles(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> tempFiles = new ArrayList<>();
+            files.filter(file -> file.getFileName().toString().endsWith(".part")).forEach(tempFiles::add);
+            return tempFiles;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
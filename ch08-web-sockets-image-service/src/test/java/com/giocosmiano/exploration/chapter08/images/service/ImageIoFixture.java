@@ -0,0 +1,75 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class ImageIoFixture extends ExternalResource {
+
+    /*
+     What the tests of the classes doing image I/O all need, as a single @Rule: a temporary upload-dir, a
+     SimpleMeterRegistry, and a FileIoScheduler (2 image-io threads and room for 16 operations, unless told
+     otherwise) that's shut down once the test is done
+
+     The scheduler is there as soon as the rule is, so a test's fields can be built on it, the upload-dir only
+     once the test starts
+
+     image() makes up the bytes of an image. Nothing decodes them, so any bytes do, as long as two seeds make
+     two different images
+     */
+
+    private final TemporaryFolder uploadDir = new TemporaryFolder();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FileIoScheduler fileIoScheduler;
+
+    public ImageIoFixture() {
+        this(2, 16);
+    }
+
+    public ImageIoFixture(int threads, int queueSize) {
+        this.fileIoScheduler = new FileIoScheduler(meterRegistry, threads, queueSize);
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        uploadDir.create();
+    }
+
+    @Override
+    protected void after() {
+        fileIoScheduler.shutdown();
+        uploadDir.delete();
+    }
+
+    public Path root() {
+        return uploadDir.getRoot().toPath();
+    }
+
+    public File newFile(String name) throws IOException {
+        return uploadDir.newFile(name);
+    }
+
+    public SimpleMeterRegistry meterRegistry() {
+        return meterRegistry;
+    }
+
+    public FileIoScheduler fileIoScheduler() {
+        return fileIoScheduler;
+    }
+
+    public static byte[] image(int size) {
+        return image(size, 0);
+    }
+
+    public static byte[] image(int size, int seed) {
+        byte[] image = new byte[size];
+        for (int i = 0; i < size; i++) {
+            image[i] = (byte) ((seed * 31 + i) % 251);
+        }
+        return image;
+    }
+}
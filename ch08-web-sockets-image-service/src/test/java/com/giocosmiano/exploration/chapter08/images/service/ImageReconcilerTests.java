@@ -0,0 +1,126 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.images.domain.ImageEvent;
+import com.giocosmiano.exploration.chapter08.images.domain.ReconciliationCheckpoint;
+import com.giocosmiano.exploration.chapter08.images.repository.ImageRepository;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import com.mongodb.client.result.DeleteResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ImageReconcilerTests {
+
+    /*
+     The ImageReconciler going through a store holding the blobs a, b and d, and MongoDB holding the images
+     bravo.png (blob b) and charlie.png (blob c). So blob a is referenced by no image, and charlie.png's blob is
+     gone. Blob d was written a moment ago, its image may simply not be saved yet
+
+     Reporting, the orphans are only counted. Repairing, blob a is deleted and charlie.png's record removed (which
+     publishes an ImageEvent), while blob b, still referenced, and blob d, too recent to tell, are left alone.
+     Either way, the pass goes all the way through, and the next one starts over
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private static final long HOUR = 3600000;
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private final Image bravo = new Image("2", "bravo.png", "b");
+    private final Image charlie = new Image("3", "charlie.png", "c");
+
+    private ImageStore imageStore;
+    private ImageRepository imageRepository;
+    private ReactiveMongoOperations operations;
+    private ThumbnailService thumbnailService;
+    private ApplicationEventPublisher eventPublisher;
+    private ImageReconciler reconciler;
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        imageStore = mock(ImageStore.class);
+        when(imageStore.blobs("")).thenReturn(Flux.just(
+                new StoredBlob("a", now - 2 * HOUR),
+                new StoredBlob("b", now - 2 * HOUR),
+                new StoredBlob("d", now)));
+        when(imageStore.findOne(charlie))
+                .thenReturn(Mono.just(new FileSystemResource(io.root().resolve("c").toFile())));
+        when(imageStore.delete(any(), any())).thenReturn(Mono.just(true));
+
+        imageRepository = mock(ImageRepository.class);
+        when(imageRepository.countByHash(anyString())).thenReturn(Mono.just(0L));
+        when(imageRepository.countByHash("b")).thenReturn(Mono.just(1L));
+
+        operations = mock(ReactiveMongoOperations.class);
+        when(operations.findById("images", ReconciliationCheckpoint.class)).thenReturn(Mono.empty());
+        when(operations.save(any(ReconciliationCheckpoint.class))).then(invocation ->
+                Mono.just(invocation.getArgument(0)));
+        when(operations.find(any(Query.class), eq(Image.class))).thenReturn(Flux.just(bravo, charlie), Flux.empty());
+        when(operations.remove(any(Query.class), eq(Image.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        thumbnailService = mock(ThumbnailService.class);
+        when(thumbnailService.delete(any())).thenReturn(Mono.empty());
+        eventPublisher = mock(ApplicationEventPublisher.class);
+    }
+
+    @After
+    public void tearDown() {
+        reconciler.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void orphansShouldOnlyBeCountedWhenReporting() {
+        // given
+        reconciler = reconciler("report");
+
+        // when
+        reconciler.reconcile();
+
+        // then
+        assertThat(io.meterRegistry().counter("images.reconcile.orphan.blobs").count()).isEqualTo(1);
+        assertThat(io.meterRegistry().counter("images.reconcile.orphan.records").count()).isEqualTo(1);
+        assertThat(io.meterRegistry().counter("images.reconcile.repaired").count()).isZero();
+        verify(imageStore, never()).delete(any(), any());
+        verify(operations, never()).remove(any(Query.class), eq(Image.class));
+    }
+
+    @Test(timeout = 10000)
+    public void orphansShouldBeRemovedWhenRepairing() {
+        // given
+        reconciler = reconciler("repair");
+
+        // when
+        reconciler.reconcile();
+
+        // then
+        verify(imageStore).delete(argThat(image -> "a".equals(image.getHash())), any());
+        verify(imageStore, never()).delete(argThat(image -> !"a".equals(image.getHash())), any());
+        verify(operations).remove(any(Query.class), eq(Image.class));
+        verify(eventPublisher).publishEvent((Object) ImageEvent.deleted(charlie));
+        assertThat(io.meterRegistry().counter("images.reconcile.repaired").count()).isEqualTo(2);
+        verify(operations, atLeastOnce()).save(new ReconciliationCheckpoint("images", ""));
+    }
+
+    private ImageReconciler reconciler(String mode) {
+        return new ImageReconciler(imageStore, imageRepository, operations,
+                new HotImageCache(0, 0, 16, io.meterRegistry()), thumbnailService, io.fileIoScheduler(),
+                new BlobGuard(), eventPublisher, io.meterRegistry(), mode, HOUR, HOUR, 10000, 1000, HOUR, io.root());
+    }
+}
@@ -0,0 +1,143 @@
+package com.giocosmiano.exploration.chapter08.images.service;
+
+import com.giocosmiano.exploration.chapter08.images.domain.Image;
+import com.giocosmiano.exploration.chapter08.ops.BlockingCallDetector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.util.StreamUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import static com.giocosmiano.exploration.chapter08.images.service.ImageIoFixture.image;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class PackedSegmentImageStoreTests {
+
+    /*
+     A PackedSegmentImageStore in a temporary upload-dir, with segments of 100 bytes and images of 40, so every
+     segment holds two of them. Compaction only runs when a test asks for it
+
+     Images are found again after the store is reopened, from index.log, even with a record cut short at its end.
+     Once half of a full segment is garbage, compacting it moves its live image to the current segment and
+     deletes it, and the index that's left behind still finds every image
+     */
+
+    @ClassRule
+    public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+    private static final int SIZE = 40;
+
+    @Rule
+    public final ImageIoFixture io = new ImageIoFixture();
+
+    private final BlobGuard blobGuard = new BlobGuard();
+    private final ImageFileWriter writer =
+            new ImageFileWriter(2, 1024, io.fileIoScheduler(), blobGuard, io.meterRegistry());
+
+    private Path root;
+    private PackedSegmentImageStore store;
+
+    @Before
+    public void setUp() {
+        root = io.root();
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test(timeout = 10000)
+    public void imagesShouldBeFoundAgainOnceTheIndexIsReplayed() throws IOException {
+        // given
+        Image alpha = store("alpha.png", 1);
+        Image bravo = store("bravo.png", 2);
+        store.close();
+        Files.write(root.resolve("segments").resolve("index.log"), new byte[]{'P', 0, 64, '3', 'f'},
+                StandardOpenOption.APPEND);
+
+        // when
+        store = open();
+
+        // then
+        assertThat(bytes(alpha)).isEqualTo(image(SIZE, 1));
+        assertThat(bytes(bravo)).isEqualTo(image(SIZE, 2));
+        assertThat(store.liveBytes()).isEqualTo(80);
+        assertThat(bytes(store("charlie.png", 3))).isEqualTo(image(SIZE, 3));
+    }
+
+    @Test(timeout = 10000)
+    public void aSegmentHalfGarbageShouldBeCompactedAway() throws IOException {
+        // given
+        Image alpha = store("alpha.png", 1);
+        Image bravo = store("bravo.png", 2);
+        Image charlie = store("charlie.png", 3);
+        Image delta = store("delta.png", 4);
+        delete(alpha);
+
+        // when
+        store.compact();
+
+        // then
+        assertThat(store.segmentCount()).isEqualTo(2);
+        assertThat(store.garbageBytes()).isZero();
+        assertThat(Files.exists(root.resolve("segments").resolve("segment-000001.dat"))).isFalse();
+        assertThat(bytes(bravo)).isEqualTo(image(SIZE, 2));
+
+        // and when
+        store.close();
+        store = open();
+
+        // then
+        assertThat(bytes(bravo)).isEqualTo(image(SIZE, 2));
+        assertThat(bytes(charlie)).isEqualTo(image(SIZE, 3));
+        assertThat(bytes(delta)).isEqualTo(image(SIZE, 4));
+        assertThat(store.liveBytes()).isEqualTo(120);
+    }
+
+    private PackedSegmentImageStore open() {
+        return new PackedSegmentImageStore(new DefaultResourceLoader(), writer, io.fileIoScheduler(), blobGuard,
+                io.meterRegistry(), 64, 100, 0.5, 3600000, root);
+    }
+
+    private Image store(String name, int seed) {
+        FilePart filePart = mock(FilePart.class);
+        when(filePart.filename()).thenReturn(name);
+        when(filePart.content()).thenReturn(Flux.just(new DefaultDataBufferFactory().wrap(image(SIZE, seed))));
+        UploadedFile stored = store.store(filePart).block(Duration.ofSeconds(5));
+        blobGuard.unpin(stored.getSha256());
+        return new Image(name, name, stored.getSha256());
+    }
+
+    private void delete(Image image) {
+        BlobGuard.Claim claim = blobGuard.claim(image.getHash());
+        try {
+            assertThat(store.delete(image, claim).block(Duration.ofSeconds(5))).isTrue();
+        } finally {
+            blobGuard.release(claim);
+        }
+    }
+
+    private byte[] bytes(Image image) throws IOException {
+        Resource resource = store.findOne(image).block(Duration.ofSeconds(5));
+        assertThat(resource).isInstanceOf(ByteBufferResource.class);
+        try (InputStream in = resource.getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+}
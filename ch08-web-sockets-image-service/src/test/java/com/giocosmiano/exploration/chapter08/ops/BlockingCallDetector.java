@@ -0,0 +1,197 @@
+package com.giocosmiano.exploration.chapter08.ops;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.security.Permission;
+
+public class BlockingCallDetector extends SecurityManager implements TestRule {
+
+	private static final Logger log = LoggerFactory.getLogger(BlockingCallDetector.class);
+
+	/*
+	 A test rule catching blocking file access on threads that must never block, i.e. Reactor Netty's event loops
+	 (reactor-http-*) and Reactor's parallel-* and single-* schedulers, for as long as a test class runs. Every
+	 test class of the image service has one, so whatever it exercises is checked
+
+	 	@ClassRule
+	 	public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+	 It works without any agent. The JDK asks the installed SecurityManager for permission before every file
+	 operation (opening, stat'ing, listing, deleting, ...), through checkRead(), checkWrite() and checkDelete().
+	 This one grants everything, but first looks at which thread is asking. It's only ever installed around a
+	 test, never in the application
+
+	 The JDK reads files of its own on any thread too, loading a class (out of build/classes) or looking up a
+	 resource. Those aren't what this is about, they happen once and are over, so any file access with a class
+	 loader on the stack is let through
+
+	 So is Reactor Netty opening the file it's about to send with sendfile (NettyOutbound.sendFile()). That one
+	 open is what zero-copy costs, the bytes themselves never go through the event loop
+
+	 The test task (see build.gradle) picks what happens to the others, with the system properties
+	   images.io.blocking-detection
+	     fail (the default) - the offending call throws a BlockingCallException, which fails the test
+	     log - the offending call is logged with its stack trace
+	     off - the detector isn't installed at all
+	   images.io.non-blocking-threads - the name prefixes of the threads that must never block
+
+	 So any new code path doing file I/O without going through the FileIoScheduler breaks the build instead of
+	 quietly stalling the event loop in production
+
+	 NOTE: On Java 18+ the JVM has to be started with -Djava.security.manager=allow for it to be installed, which
+	 the test task does from Java 12 on
+	 */
+
+	private final Mode mode;
+	private final String[] nonBlockingThreads;
+	private final ThreadLocal<Boolean> reporting = ThreadLocal.withInitial(() -> false);
+	private volatile SecurityManager previous;
+
+	public BlockingCallDetector() {
+		this(System.getProperty("images.io.blocking-detection", "fail"),
+				System.getProperty("images.io.non-blocking-threads", "reactor-http-,parallel-,single-").split(","));
+	}
+
+	public BlockingCallDetector(String mode, String... nonBlockingThreads) {
+		this.mode = Mode.valueOf(mode.toUpperCase());
+		this.nonBlockingThreads = nonBlockingThreads;
+	}
+
+	@Override
+	public Statement apply(Statement test, Description description) {
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				if (mode == Mode.OFF) {
+					test.evaluate();
+					return;
+				}
+				previous = System.getSecurityManager();
+				try {
+					System.setSecurityManager(BlockingCallDetector.this);
+				} catch (UnsupportedOperationException e) {
+					throw new IllegalStateException("Can't detect blocking calls, start the JVM with "
+							+ "-Djava.security.manager=allow", e);
+				}
+				try {
+					test.evaluate();
+				} finally {
+					System.setSecurityManager(previous);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void checkRead(String file) {
+		detect("read", file);
+	}
+
+	@Override
+	public void checkRead(String file, Object context) {
+		detect("read", file);
+	}
+
+	@Override
+	public void checkRead(FileDescriptor fd) {
+		detect("read", "file descriptor");
+	}
+
+	@Override
+	public void checkWrite(String file) {
+		detect("write", file);
+	}
+
+	@Override
+	public void checkWrite(FileDescriptor fd) {
+		detect("write", "file descriptor");
+	}
+
+	@Override
+	public void checkDelete(String file) {
+		detect("delete", file);
+	}
+
+	/*
+	 Everything else is allowed, this detector isn't about security
+	 */
+	@Override
+	public void checkPermission(Permission permission) {
+		SecurityManager previous = this.previous;
+		if (previous != null) {
+			previous.checkPermission(permission);
+		}
+	}
+
+	@Override
+	public void checkPermission(Permission permission, Object context) {
+		SecurityManager previous = this.previous;
+		if (previous != null) {
+			previous.checkPermission(permission, context);
+		}
+	}
+
+	private void detect(String operation, String file) {
+		if (!isNonBlocking(Thread.currentThread()) || reporting.get() || isClassLoading() || isSendingFile()) {
+			return;
+		}
+		BlockingCallException blockingCall = new BlockingCallException(
+				"Blocking " + operation + " of " + file + " on " + Thread.currentThread().getName());
+		if (mode == Mode.FAIL) {
+			throw blockingCall;
+		}
+		// logging may itself touch files (e.g. a file appender), which mustn't be reported again
+		reporting.set(true);
+		try {
+			log.warn(blockingCall.getMessage(), blockingCall);
+		} finally {
+			reporting.set(false);
+		}
+	}
+
+	private boolean isNonBlocking(Thread thread) {
+		String name = thread.getName();
+		for (String prefix : nonBlockingThreads) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isClassLoading() {
+		for (Class<?> caller : getClassContext()) {
+			if (ClassLoader.class.isAssignableFrom(caller)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSendingFile() {
+		for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+			if (frame.getClassName().startsWith("reactor.ipc.netty.") && frame.getMethodName().contains("sendFile")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private enum Mode {
+		OFF, LOG, FAIL
+	}
+
+	public static class BlockingCallException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		public BlockingCallException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.giocosmiano.exploration.chapter08.ops;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class TimeToFirstByteFilterTests {
+
+	/*
+	 The filter in front of a server whose responses are ZeroCopyHttpOutputMessages, like Reactor Netty's. An
+	 image has to reach its handler with that very response, or ResourceHttpMessageWriter can't use sendfile.
+	 The home page is still timed
+	 */
+
+	@ClassRule
+	public static final BlockingCallDetector blockingCalls = new BlockingCallDetector();
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final TimeToFirstByteFilter filter = new TimeToFirstByteFilter(meterRegistry, new String[]{"/", "/images"});
+
+	@Test
+	public void aRawImageShouldStillGetAZeroCopyResponse() {
+		// given
+		ServerWebExchange exchange = exchange("/images/learning-spring-boot-cover.jpg/raw");
+		AtomicReference<ServerWebExchange> handled = new AtomicReference<>();
+
+		// when
+		filter.filter(exchange, filtered -> {
+			handled.set(filtered);
+			return Mono.empty();
+		}).block(Duration.ofSeconds(5));
+
+		// then
+		assertThat(handled.get().getResponse())
+				.isInstanceOf(ZeroCopyHttpOutputMessage.class)
+				.isSameAs(exchange.getResponse());
+	}
+
+	@Test
+	public void theHomePageShouldHaveItsTimeToFirstByteRecorded() {
+		// given
+		ServerWebExchange exchange = exchange("/");
+
+		// when
+		filter.filter(exchange, filtered -> {
+			filtered.getResponse().getHeaders().setContentType(MediaType.TEXT_HTML);
+			return filtered.getResponse().writeWith(Mono.just(new DefaultDataBufferFactory()
+					.wrap("<html></html>".getBytes(StandardCharsets.UTF_8))));
+		}).block(Duration.ofSeconds(5));
+
+		// then
+		Timer ttfb = meterRegistry.find("http.server.ttfb").timer();
+		assertThat(ttfb).isNotNull();
+		assertThat(ttfb.count()).isEqualTo(1);
+	}
+
+	private static ServerWebExchange exchange(String path) {
+		return MockServerWebExchange.from(MockServerHttpRequest.get(path))
+				.mutate()
+				.response(new ZeroCopyResponse())
+				.build();
+	}
+
+	/*
+	 A MockServerHttpResponse that is a ZeroCopyHttpOutputMessage, the way Reactor Netty's response is
+	 */
+	private static class ZeroCopyResponse extends MockServerHttpResponse implements ZeroCopyHttpOutputMessage {
+
+		@Override
+		public Mono<Void> writeWith(File file, long position, long count) {
+			return setComplete();
+		}
+	}
+}